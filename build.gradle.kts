@@ -9,6 +9,7 @@ import org.gradle.internal.os.OperatingSystem
 plugins {
     id("java")
     id("org.bytedeco.gradle-javacpp-platform") version "1.5.10"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 project.extra.apply {
@@ -88,13 +89,25 @@ repositories {
     maven { url = uri("https://jogamp.org/deployment/maven/") }
 }
 
+// OpenCV is only needed by OpenCVCalibrationBackend, which sketches have to opt in to, so it is
+// kept out of the library's runtime classpath. The release packages it separately, as
+// <libName>-opencv.zip, for sketches that use that backend.
+val opencv: Configuration by configurations.creating
+configurations.compileOnly.get().extendsFrom(opencv)
+configurations.testImplementation.get().extendsFrom(opencv)
+configurations.named("jmhImplementation") { extendsFrom(opencv) }
+
 dependencies {
     compileOnly(group = "com.github.micycle1", name = "processing-core-4", version = "4.3.1")
 //    implementation(group = "com.github.micycle1", name = "processing-core-4", version = "4.3.1")
 
     // opencv
-    implementation(group = "org.bytedeco", name = "opencv-platform", version = "4.9.0-$javaCvVersion")
-    implementation(group = "org.bytedeco", name = "openblas-platform", version = "0.3.26-$javaCvVersion")
+    opencv(group = "org.bytedeco", name = "opencv-platform", version = "4.9.0-$javaCvVersion")
+    opencv(group = "org.bytedeco", name = "openblas-platform", version = "0.3.26-$javaCvVersion")
+
+    // processing is provided by the sketch at runtime, but the benchmarks and tests run on their own
+    jmhImplementation(group = "com.github.micycle1", name = "processing-core-4", version = "4.3.1")
+    testImplementation(group = "com.github.micycle1", name = "processing-core-4", version = "4.3.1")
 
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
@@ -104,6 +117,17 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Benchmarks live in src/jmh and run with `gradle jmh`. They don't need a display, and write
+// their results as JSON so they can be compared between releases.
+jmh {
+    jvmArgsAppend = listOf("-Djava.awt.headless=true", "-Xmx4g")
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
+
 //==============================
 // END USER BUILD CONFIGURATIONS
 //==============================
@@ -139,6 +163,7 @@ tasks.javadoc {
 val releaseRoot = "$rootDir/release"
 val releaseName = libName
 val releaseDirectory = "$releaseRoot/$releaseName"
+val releaseOpenCVDirectory = "$releaseRoot/$releaseName-opencv"
 
 // read in user-defined properties in release.properties file
 // to be saved in library.properties file, a required file in the release
@@ -170,7 +195,7 @@ tasks.javadoc.get().mustRunAfter("build")
 tasks.register("buildReleaseArtifacts") {
     group = "processing"
     dependsOn("clean","build","writeLibraryProperties")
-    finalizedBy("packageRelease", "duplicateZipToPdex")
+    finalizedBy("packageRelease", "packageOpenCVRelease", "duplicateZipToPdex")
 
     doFirst {
         println("Releasing library $libName")
@@ -195,6 +220,12 @@ tasks.register("buildReleaseArtifacts") {
             into("$releaseDirectory/library")
         }
 
+        println("Copy optional OpenCV dependencies...")
+        copy {
+            from(opencv)
+            into("$releaseOpenCVDirectory/library")
+        }
+
         println("Copy assets...")
         copy {
             from("$rootDir")
@@ -241,6 +272,18 @@ tasks.register<Zip>("packageRelease") {
     exclude("**/*.DS_Store")
 }
 
+tasks.register<Zip>("packageOpenCVRelease") {
+    dependsOn("buildReleaseArtifacts")
+    doFirst {
+        println("Create OpenCV zip file...")
+    }
+    archiveFileName.set("${libName}-opencv.zip")
+    from(releaseOpenCVDirectory)
+    into("$releaseName-opencv")
+    destinationDirectory.set(file(releaseRoot))
+    exclude("**/*.DS_Store")
+}
+
 tasks.register<Copy>("duplicateZipToPdex") {
     doFirst {
         println("Duplicate zip file to pdex extension...")
@@ -281,5 +324,5 @@ tasks.register<JavaExec>("runApp") {
     mainClass.set("spacefiller.shapemapper.examples.Test")
 
     // Include the main source set's runtime classpath
-    classpath = sourceSets.main.get().runtimeClasspath + configurations.runtimeClasspath.get()
+    classpath = sourceSets.main.get().runtimeClasspath + configurations.runtimeClasspath.get() + opencv
 }
\ No newline at end of file
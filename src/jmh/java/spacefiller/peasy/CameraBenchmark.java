@@ -0,0 +1,60 @@
+package spacefiller.peasy;
+
+import org.openjdk.jmh.annotations.*;
+import processing.core.PApplet;
+import spacefiller.peasy.org.apache.commons.math.geometry.Rotation;
+import spacefiller.peasy.org.apache.commons.math.geometry.Vector3D;
+import spacefiller.shapemapper.utils.Headless;
+
+import java.util.concurrent.TimeUnit;
+
+// One frame of camera motion: dragging to rotate and pan, and animating to a new state. The
+// camera runs on a clock that advances by exactly one 60 fps frame per call, so every run
+// replays the same motion.
+//
+// Steady state motion should allocate nothing; run with `-prof gc` and check that
+// gc.alloc.rate.norm stays at 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CameraBenchmark {
+	private static final long FRAME_NANOS = 1_000_000_000L / 60;
+	// Longer than any run, so the animation never reaches its end state
+	private static final long ANIMATION_MILLIS = 1_000_000_000_000L;
+
+	private PApplet sketch;
+	private PeasyCam camera;
+	private long now;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		sketch = Headless.createSketch();
+		sketch.mouseX = Headless.WIDTH / 3;
+		sketch.mouseY = Headless.HEIGHT / 3;
+		camera = new PeasyCam(sketch, 500);
+		camera.setClock(() -> now);
+	}
+
+	@Benchmark
+	public void drag() {
+		camera.getRotateDragHandler().handleDrag(3, 2);
+		camera.getPanDragHandler().handleDrag(1, -1);
+		now += FRAME_NANOS;
+		camera.update();
+	}
+
+	@Benchmark
+	public void animate(final AnimationState animation) {
+		now += FRAME_NANOS;
+		camera.update();
+	}
+
+	@State(Scope.Thread)
+	public static class AnimationState {
+		@Setup(Level.Iteration)
+		public void setup(final CameraBenchmark benchmark) {
+			benchmark.camera.setState(new CameraState(new Rotation(Vector3D.plusJ, 2),
+					new Vector3D(100, 50, -20), 800), ANIMATION_MILLIS);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package spacefiller.shapemapper;
+
+import org.openjdk.jmh.annotations.*;
+import processing.core.PVector;
+import spacefiller.shapemapper.utils.SyntheticMesh;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Saving and loading calibration data: a round trip through the calibration file format, the
+// same round trip through the Java serialization format used by older versions, and replaying
+// a journal of edits onto loaded data.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistenceBenchmark {
+  private static final int FACES = 10000;
+  private static final int JOURNAL_ENTRIES = 1000;
+
+  @Param({ "1", "10" })
+  int shapeCount;
+
+  @Param({ "20", "1000" })
+  int pointsPerMapping;
+
+  private Path directory;
+  private Path calibrationPath;
+  private Path legacyPath;
+  private Path journalPath;
+  private List<MappedShape> shapes;
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("shapemapper-benchmark");
+    calibrationPath = directory.resolve("calibration.bin");
+    legacyPath = directory.resolve("calibration.ser");
+    journalPath = directory.resolve("calibration.bin.journal");
+
+    shapes = new ArrayList<>();
+    for (int i = 0; i < shapeCount; i++) {
+      BitSet mask = new BitSet(FACES);
+      for (int face = 0; face < FACES; face += 7) {
+        mask.set(face);
+      }
+
+      List<Mapping> mappings = new ArrayList<>();
+      for (int j = 0; j < 2; j++) {
+        PointCorrespondences points = new PointCorrespondences();
+        int vertex = 0;
+        for (Map.Entry<PVector, PVector> entry :
+            SyntheticMesh.correspondences(pointsPerMapping, i * 2 + j).entrySet()) {
+          PVector from = entry.getKey();
+          PVector to = entry.getValue();
+          points.put(vertex++, from.x, from.y, from.z, to.x, to.y);
+        }
+        mappings.add(new Mapping(points, mask, FACES));
+      }
+      shapes.add(new MappedShape("shape" + i, mappings));
+    }
+
+    // A journal of face mask edits for the first shape, as written by EditJournal. Point
+    // edits would start calibration solves in the background, but replay the same way.
+    CalibrationWriter journalWriter = new CalibrationWriter(calibrationPath.toString(), () -> null);
+    EditJournal journal = new EditJournal(journalWriter, shapes);
+    Mapping mapping = shapes.get(0).getMapping(0);
+    for (int i = 0; i < JOURNAL_ENTRIES; i++) {
+      journal.setFaceMask(shapes.get(0), mapping, (i * 31) % FACES, i % 2 == 0);
+    }
+    journalWriter.flush();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public List<MappedShape> saveLoadRoundTrip() throws IOException {
+    Files.write(calibrationPath, CalibrationFormat.encode(shapes));
+    return CalibrationFormat.read(calibrationPath);
+  }
+
+  @Benchmark
+  public List<MappedShape> legacySaveLoadRoundTrip() throws IOException {
+    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacyPath.toFile()))) {
+      out.writeObject(shapes);
+    }
+    return CalibrationFormat.readLegacy(legacyPath);
+  }
+
+  @Benchmark
+  public int replayJournal() throws IOException {
+    return EditJournal.replay(journalPath, shapes);
+  }
+}
@@ -0,0 +1,74 @@
+package spacefiller.shapemapper.utils;
+
+import org.openjdk.jmh.annotations.*;
+import processing.core.PVector;
+import spacefiller.shapemapper.GraphicsTransform;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Calibration solves. `solveCold` and `solveWarm` both nudge one point by a fraction of a
+// pixel before solving, like dragging a point in calibrate mode, so they measure the same
+// work with and without starting from the previous solution.
+//
+// The OpenCV backend can be measured with -p backend=opencv, on machines where its natives
+// load. The calibration cache is off by default, since the nudged points repeat and would
+// otherwise always hit it; -p cached=true measures solves with the cache on.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CalibrationBenchmark {
+  @Param({ "6", "20", "100" })
+  int points;
+
+  @Param({ "dlt" })
+  String backend;
+
+  @Param({ "false" })
+  boolean cached;
+
+  private Map<PVector, PVector> mapping;
+  private PVector dragged;
+  private CameraSolution previous;
+  private int step;
+
+  @Setup
+  public void setup() {
+    CalibrationUtils.setBackend(
+        backend.equals("opencv") ? new OpenCVCalibrationBackend() : new DLTCalibrationBackend());
+    CalibrationUtils.setCache(cached ? new CalibrationCache() : null);
+    mapping = SyntheticMesh.correspondences(points, 1);
+    dragged = mapping.values().iterator().next();
+    previous = CalibrationUtils.solve(mapping, Headless.WIDTH, Headless.HEIGHT, null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    CalibrationUtils.setBackend(new DLTCalibrationBackend());
+    CalibrationUtils.setCache(new CalibrationCache());
+  }
+
+  @Benchmark
+  public GraphicsTransform calibrate() {
+    return CalibrationUtils.calibrate(mapping, Headless.WIDTH, Headless.HEIGHT);
+  }
+
+  @Benchmark
+  public CameraSolution solveCold() {
+    nudge();
+    return CalibrationUtils.solve(mapping, Headless.WIDTH, Headless.HEIGHT, null);
+  }
+
+  @Benchmark
+  public CameraSolution solveWarm() {
+    nudge();
+    CameraSolution solution = CalibrationUtils.solve(mapping, Headless.WIDTH, Headless.HEIGHT, previous);
+    previous = solution;
+    return solution;
+  }
+
+  // Move one point back and forth by up to a pixel
+  private void nudge() {
+    dragged.x += step++ % 8 < 4 ? 0.25f : -0.25f;
+  }
+}
@@ -0,0 +1,32 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PApplet;
+import processing.opengl.PGraphics3D;
+
+// Creates a P3D sketch and graphics context without opening a window or creating a GL
+// context, so benchmarks can call library code that expects them. Only the matrix state of
+// the graphics context is usable; nothing can be drawn.
+public class Headless {
+  public static final int WIDTH = 1280;
+  public static final int HEIGHT = 800;
+
+  public static PApplet createSketch() {
+    PApplet sketch = new PApplet();
+    sketch.width = WIDTH;
+    sketch.height = HEIGHT;
+    sketch.g = createGraphics(sketch);
+    return sketch;
+  }
+
+  // The camera looks at the origin from the default Processing eye position, so
+  // SyntheticMesh.grid fills most of the screen.
+  public static PGraphics3D createGraphics(PApplet sketch) {
+    PGraphics3D graphics = new PGraphics3D();
+    graphics.setParent(sketch);
+    graphics.setPrimary(true);
+    graphics.setSize(WIDTH, HEIGHT);
+    graphics.perspective();
+    graphics.camera(0, 0, HEIGHT / 2f / (float) Math.tan(Math.PI / 6), 0, 0, 0, 0, 1, 0);
+    return graphics;
+  }
+}
@@ -0,0 +1,107 @@
+package spacefiller.shapemapper.utils;
+
+import org.openjdk.jmh.annotations.*;
+import processing.core.PApplet;
+import processing.core.PShape;
+import processing.core.PVector;
+import processing.opengl.PGraphics3D;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Finding the vertex and face under the mouse, comparing the brute force GeometryUtils
+// versions with the ScreenSpaceIndex and TriangleBVH that MappedShape uses.
+//
+// The indexed lookups are measured both with a still camera, where ScreenSpaceIndex reuses its
+// cached projection, and with a camera that moves before every query, which forces a rebuild.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PickingBenchmark {
+  private static final int QUERIES = 64;
+
+  @Param({ "1000", "10000", "100000", "1000000" })
+  int triangles;
+
+  private PShape shape;
+  private MeshData mesh;
+  private PGraphics3D graphics;
+  private ScreenSpaceIndex vertexIndex;
+  private TriangleBVH faceHierarchy;
+  private PVector[] queries;
+  private int next;
+  private int frame;
+
+  @Setup
+  public void setup() {
+    PApplet sketch = Headless.createSketch();
+    graphics = Headless.createGraphics(sketch);
+    shape = SyntheticMesh.grid(triangles);
+    mesh = MeshData.of(sketch, shape);
+    vertexIndex = new ScreenSpaceIndex(mesh);
+    faceHierarchy = new TriangleBVH(mesh);
+
+    Random random = new Random(1);
+    queries = new PVector[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      queries[i] = new PVector(random.nextFloat() * Headless.WIDTH, random.nextFloat() * Headless.HEIGHT);
+    }
+  }
+
+  @Benchmark
+  public PVector closestPointBruteForce() {
+    return GeometryUtils.getClosestPointOnShape(nextQuery(), shape, graphics);
+  }
+
+  @Benchmark
+  public PVector closestPointIndexed() {
+    return vertexIndex.getClosestPoint(nextQuery(), graphics);
+  }
+
+  @Benchmark
+  public PVector closestPointIndexedMovingCamera() {
+    moveCamera();
+    return vertexIndex.getClosestPoint(nextQuery(), graphics);
+  }
+
+  @Benchmark
+  public int pickFaceBruteForce() {
+    return GeometryUtils.pickFace(shape, nextQuery(), graphics);
+  }
+
+  @Benchmark
+  public int pickFaceBVH() {
+    return faceHierarchy.pick(nextQuery(), graphics);
+  }
+
+  @Benchmark
+  public int pickFaceBVHMovingCamera() {
+    moveCamera();
+    return faceHierarchy.pick(nextQuery(), graphics);
+  }
+
+  @Benchmark
+  public ScreenSpaceIndex buildVertexIndex() {
+    return new ScreenSpaceIndex(mesh);
+  }
+
+  @Benchmark
+  public TriangleBVH buildFaceHierarchy() {
+    return new TriangleBVH(mesh);
+  }
+
+  private PVector nextQuery() {
+    next = (next + 1) % QUERIES;
+    return queries[next];
+  }
+
+  // Orbit the eye slightly around the origin
+  private void moveCamera() {
+    float angle = (frame++ % 100) * 0.001f;
+    float distance = Headless.HEIGHT / 2f / (float) Math.tan(Math.PI / 6);
+    graphics.camera(
+        distance * (float) Math.sin(angle), 0, distance * (float) Math.cos(angle),
+        0, 0, 0,
+        0, 1, 0);
+  }
+}
@@ -0,0 +1,44 @@
+package spacefiller.shapemapper.utils;
+
+import org.openjdk.jmh.annotations.*;
+import processing.core.PApplet;
+import processing.core.PShape;
+
+import java.util.concurrent.TimeUnit;
+
+// Copying a user's shape. MappedShape used to copy every shape added to ShapeMapper with
+// ShapeUtils.createShape; it now reads it into MeshData and builds PShape views from that
+// when they are first needed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShapeCopyBenchmark {
+  @Param({ "1000", "10000", "100000" })
+  int triangles;
+
+  private PApplet sketch;
+  private PShape shape;
+  private MeshData mesh;
+
+  @Setup
+  public void setup() {
+    sketch = Headless.createSketch();
+    shape = SyntheticMesh.rendererGrid(sketch, triangles);
+    mesh = MeshData.of(sketch, shape);
+  }
+
+  @Benchmark
+  public PShape createShape() {
+    return ShapeUtils.createShape(sketch, shape);
+  }
+
+  @Benchmark
+  public MeshData createMeshData() {
+    return MeshData.of(sketch, shape);
+  }
+
+  @Benchmark
+  public PShape createMeshView() {
+    return mesh.createShape(sketch);
+  }
+}
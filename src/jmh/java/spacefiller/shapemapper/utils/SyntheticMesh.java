@@ -0,0 +1,130 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
+import processing.core.PVector;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Generated inputs for the benchmarks.
+public class SyntheticMesh {
+  private static final float SIZE = 1000;
+
+  // A group with one child per triangle, like the shapes ShapeMapper maps. The triangles tile
+  // a wavy square so that some of them overlap on screen. Faces are lightweight PShapes rather
+  // than PShapeOpenGL, so a million of them fit comfortably in memory.
+  public static PShape grid(int triangles) {
+    int cells = Math.max(1, (int) Math.round(Math.sqrt(triangles / 2.0)));
+    PShape group = new PShape(PShape.GROUP);
+    forEachTriangle(cells, (a, b, c) -> group.addChild(new Face(a, b, c)));
+    return group;
+  }
+
+  // Same as grid, but built through the sketch's renderer, as a user's shape would be.
+  public static PShape rendererGrid(PApplet sketch, int triangles) {
+    int cells = Math.max(1, (int) Math.round(Math.sqrt(triangles / 2.0)));
+    PShape group = sketch.createShape(PShape.GROUP);
+    forEachTriangle(cells, (a, b, c) -> {
+      PShape face = sketch.createShape();
+      face.beginShape(PConstants.TRIANGLES);
+      face.vertex(a.x, a.y, a.z);
+      face.vertex(b.x, b.y, b.z);
+      face.vertex(c.x, c.y, c.z);
+      face.endShape();
+      group.addChild(face);
+    });
+    return group;
+  }
+
+  // Random model space points in a cube, mapped through a fixed camera with a little
+  // noise, as if placed by hand.
+  public static Map<PVector, PVector> correspondences(int count, long seed) {
+    Random random = new Random(seed);
+    double f = 1400;
+    double angle = 0.4;
+    double cos = Math.cos(angle);
+    double sin = Math.sin(angle);
+
+    Map<PVector, PVector> points = new HashMap<>();
+    while (points.size() < count) {
+      float x = (random.nextFloat() - 0.5f) * 200;
+      float y = (random.nextFloat() - 0.5f) * 200;
+      float z = (random.nextFloat() - 0.5f) * 200;
+
+      double xc = cos * x + sin * z + 10;
+      double yc = y - 20;
+      double zc = -sin * x + cos * z + 900;
+
+      float u = (float) (f * xc / zc + Headless.WIDTH / 2.0 + random.nextGaussian() * 0.3);
+      float v = (float) (f * yc / zc + Headless.HEIGHT / 2.0 + random.nextGaussian() * 0.3);
+      points.put(new PVector(x, y, z), new PVector(u, v));
+    }
+    return points;
+  }
+
+  private interface TriangleConsumer {
+    void accept(PVector a, PVector b, PVector c);
+  }
+
+  private static void forEachTriangle(int cells, TriangleConsumer consumer) {
+    float step = SIZE / cells;
+    for (int j = 0; j < cells; j++) {
+      for (int i = 0; i < cells; i++) {
+        PVector a = point(i, j, step);
+        PVector b = point(i + 1, j, step);
+        PVector c = point(i, j + 1, step);
+        PVector d = point(i + 1, j + 1, step);
+        consumer.accept(a, b, c);
+        consumer.accept(b, d, c);
+      }
+    }
+  }
+
+  private static PVector point(int i, int j, float step) {
+    float x = i * step - SIZE / 2;
+    float y = j * step - SIZE / 2;
+    return new PVector(x, y, 40 * (float) (Math.sin(x / 90) * Math.cos(y / 70)));
+  }
+
+  private static class Face extends PShape {
+    Face(PVector a, PVector b, PVector c) {
+      super(PShape.GEOMETRY);
+      kind = PConstants.TRIANGLES;
+      is3D = true;
+      vertices = new float[][] {
+          { a.x, a.y, a.z },
+          { b.x, b.y, b.z },
+          { c.x, c.y, c.z } };
+      vertexCount = 3;
+    }
+
+    // The vertices hold positions only, so there's nothing else for MeshData to read.
+    @Override
+    public float getNormalX(int index) {
+      return 0;
+    }
+
+    @Override
+    public float getNormalY(int index) {
+      return 0;
+    }
+
+    @Override
+    public float getNormalZ(int index) {
+      return 0;
+    }
+
+    @Override
+    public float getTextureU(int index) {
+      return 0;
+    }
+
+    @Override
+    public float getTextureV(int index) {
+      return 0;
+    }
+  }
+}
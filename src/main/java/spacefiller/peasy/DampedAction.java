@@ -26,6 +26,8 @@ package spacefiller.peasy;
  * 
  */
 abstract public class DampedAction {
+	private static final double STOP_VELOCITY = .001;
+
 	private final PeasyCam p;
 	private double velocity;
 	private final double damping;
@@ -38,23 +40,57 @@ abstract public class DampedAction {
 		this.p = p;
 		this.velocity = 0;
 		this.damping = 1.0 - friction;
-		p.getApplet().registerMethod("draw", this);
+		p.addDampedAction(this);
 	}
 
 	public void impulse(final double impulse) {
 		velocity += impulse;
 	}
 
-	public void draw() {
+	boolean isMoving() {
+		return velocity != 0;
+	}
+
+	/**
+	 * Advance by {@code frames} reference frames (1/60 s each; may be fractional). The
+	 * velocity decays by the damping factor every reference frame, and the action moves by
+	 * the sum of that decay over the step, so the motion comes out the same at any frame
+	 * rate. Once the velocity falls below the cutoff the action stops, part way through the
+	 * step if that is where it crossed.
+	 * 
+	 * @return whether the camera moved
+	 */
+	boolean update(final double frames) {
 		if (velocity == 0) {
-			return;
+			return false;
 		}
-		behave(velocity);
-		p.feed();
-		velocity *= damping;
-		if (Math.abs(velocity) < .001) {
+		final double decay = Math.pow(damping, frames);
+		if (damping != 1 && Math.abs(velocity * decay) < STOP_VELOCITY) {
+			// Stop part way through the step, where the velocity reaches the cutoff, so the
+			// camera comes to rest at the same time and place whichever frame crosses it
+			final double remaining = Math.abs(velocity) - STOP_VELOCITY;
+			if (remaining > 0) {
+				behave(Math.copySign(remaining, velocity) / (1 - damping));
+			}
 			velocity = 0;
+			return remaining > 0;
 		}
+		behave(damping == 1 ? velocity * frames : velocity * (1 - decay) / (1 - damping));
+		velocity *= decay;
+		if (Math.abs(velocity) < STOP_VELOCITY) {
+			velocity = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Advance the camera to the current time of its clock.
+	 * 
+	 * @deprecated damped actions are stepped by {@link PeasyCam#update()}, which this now calls
+	 */
+	@Deprecated
+	public void draw() {
+		p.update();
 	}
 
 	public void stop() {
@@ -23,16 +23,32 @@ class InterpolationManager {
 	private AbstractInterp currentInterpolator = null;
 
 	protected synchronized void startInterpolation(final AbstractInterp interpolation) {
-		cancelInterpolation();
 		currentInterpolator = interpolation;
 		currentInterpolator.start();
 	}
 
 	protected synchronized void cancelInterpolation() {
-		if (currentInterpolator != null) {
-			currentInterpolator.cancel();
+		currentInterpolator = null;
+	}
+
+	synchronized boolean isActive() {
+		return currentInterpolator != null;
+	}
+
+	/**
+	 * Advance the current interpolation, if there is one, to {@code now} (in nanoseconds)
+	 * and drop it once it has ended.
+	 * 
+	 * @return whether the camera moved
+	 */
+	synchronized boolean update(final long now) {
+		if (currentInterpolator == null) {
+			return false;
+		}
+		if (!currentInterpolator.update(now)) {
 			currentInterpolator = null;
 		}
+		return true;
 	}
 
 }
\ No newline at end of file
@@ -22,10 +22,17 @@ import spacefiller.peasy.org.apache.commons.math.geometry.Vector3D;
 
 public class InterpolationUtil {
 
-	// Thanks to Michael Kaufmann <mail@michael-kaufmann.ch> for improvements to this function.
 	static public Rotation slerp(final Rotation a, final Rotation b, final double t) {
-		final double a0 = a.getQ0(), a1 = a.getQ1(), a2 = a.getQ2(), a3 = a.getQ3();
-		double b0 = b.getQ0(), b1 = b.getQ1(), b2 = b.getQ2(), b3 = b.getQ3();
+		final MutableRotation out = new MutableRotation();
+		slerp(new MutableRotation(a), new MutableRotation(b), t, out);
+		return out.toRotation();
+	}
+
+	// Thanks to Michael Kaufmann <mail@michael-kaufmann.ch> for improvements to this function.
+	static void slerp(final MutableRotation a, final MutableRotation b, final double t,
+			final MutableRotation out) {
+		final double a0 = a.q0, a1 = a.q1, a2 = a.q2, a3 = a.q3;
+		double b0 = b.q0, b1 = b.q1, b2 = b.q2, b3 = b.q3;
 
 		double cosTheta = a0 * b0 + a1 * b1 + a2 * b2 + a3 * b3;
 		if (cosTheta < 0) {
@@ -47,8 +54,8 @@ public class InterpolationUtil {
 			w1 = 1.0 - t;
 			w2 = t;
 		}
-		return new Rotation(w1 * a0 + w2 * b0, w1 * a1 + w2 * b1, w1 * a2 + w2 * b2, w1
-				* a3 + w2 * b3, true);
+		out.setNormalized(w1 * a0 + w2 * b0, w1 * a1 + w2 * b1, w1 * a2 + w2 * b2, w1
+				* a3 + w2 * b3);
 	}
 
 	static public double smooth(final double a, final double b, final double t) {
@@ -62,6 +69,11 @@ public class InterpolationUtil {
 				smooth(a.getZ(), b.getZ(), t));
 	}
 
+	static void smooth(final MutableVector3D a, final MutableVector3D b, final double t,
+			final MutableVector3D out) {
+		out.set(smooth(a.x, b.x, t), smooth(a.y, b.y, t), smooth(a.z, b.z, t));
+	}
+
 	static public double linear(final double a, final double b, final double t) {
 		return a + (b - a) * t;
 	}
@@ -0,0 +1,105 @@
+/*
+	 Portions of this code are derived from the PeasyCam Processing library,
+	 which is Copyright 2008 Jonathan Feinberg and licensed under the Apache
+	 License, Version 2.0. The original license message appears below.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package spacefiller.peasy;
+
+import spacefiller.peasy.org.apache.commons.math.geometry.Rotation;
+
+/**
+ * A rotation quaternion that is changed in place, for the camera's per-frame math. Uses the
+ * same conventions as {@link Rotation}, which is immutable, so every operation on it
+ * allocates a new rotation.
+ */
+final class MutableRotation {
+	double q0 = 1;
+	double q1;
+	double q2;
+	double q3;
+
+	MutableRotation() {
+	}
+
+	MutableRotation(final Rotation r) {
+		set(r);
+	}
+
+	MutableRotation(final MutableRotation r) {
+		set(r.q0, r.q1, r.q2, r.q3);
+	}
+
+	MutableRotation set(final double q0, final double q1, final double q2, final double q3) {
+		this.q0 = q0;
+		this.q1 = q1;
+		this.q2 = q2;
+		this.q3 = q3;
+		return this;
+	}
+
+	MutableRotation set(final MutableRotation r) {
+		return set(r.q0, r.q1, r.q2, r.q3);
+	}
+
+	MutableRotation set(final Rotation r) {
+		return set(r.getQ0(), r.getQ1(), r.getQ2(), r.getQ3());
+	}
+
+	MutableRotation setNormalized(final double q0, final double q1, final double q2,
+			final double q3) {
+		final double inv = 1.0 / Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		return set(q0 * inv, q1 * inv, q2 * inv, q3 * inv);
+	}
+
+	/**
+	 * Apply this rotation to the rotation (r0, r1, r2, r3) and store the composition, as
+	 * {@code this.applyTo(r)} does for {@link Rotation}.
+	 */
+	MutableRotation applyTo(final double r0, final double r1, final double r2,
+			final double r3) {
+		return set(r0 * q0 - (r1 * q1 + r2 * q2 + r3 * q3),
+				r1 * q0 + r0 * q1 + (r2 * q3 - r3 * q2),
+				r2 * q0 + r0 * q2 + (r3 * q1 - r1 * q3),
+				r3 * q0 + r0 * q3 + (r1 * q2 - r2 * q1));
+	}
+
+	/**
+	 * Apply this rotation to a rotation by {@code angle} around the unit axis (x, y, z), as
+	 * {@code this.applyTo(new Rotation(axis, angle))} does for {@link Rotation}.
+	 */
+	MutableRotation applyToAxisAngle(final double x, final double y, final double z,
+			final double angle) {
+		final double halfAngle = -0.5 * angle;
+		final double sin = Math.sin(halfAngle);
+		return applyTo(Math.cos(halfAngle), sin * x, sin * y, sin * z);
+	}
+
+	/**
+	 * Rotate the vector (x, y, z) and store it in {@code out}.
+	 * 
+	 * @return out
+	 */
+	MutableVector3D applyTo(final double x, final double y, final double z,
+			final MutableVector3D out) {
+		final double s = q1 * x + q2 * y + q3 * z;
+		return out.set(2 * (q0 * (x * q0 - (q2 * z - q3 * y)) + s * q1) - x,
+				2 * (q0 * (y * q0 - (q3 * x - q1 * z)) + s * q2) - y,
+				2 * (q0 * (z * q0 - (q1 * y - q2 * x)) + s * q3) - z);
+	}
+
+	Rotation toRotation() {
+		return new Rotation(q0, q1, q2, q3, false);
+	}
+}
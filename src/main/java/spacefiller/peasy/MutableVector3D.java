@@ -0,0 +1,68 @@
+/*
+	 Portions of this code are derived from the PeasyCam Processing library,
+	 which is Copyright 2008 Jonathan Feinberg and licensed under the Apache
+	 License, Version 2.0. The original license message appears below.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package spacefiller.peasy;
+
+import spacefiller.peasy.org.apache.commons.math.geometry.Vector3D;
+
+/**
+ * A 3D vector that is changed in place, for the camera's per-frame math. {@link Vector3D}
+ * is immutable, so every operation on it allocates a new vector.
+ */
+final class MutableVector3D {
+	double x;
+	double y;
+	double z;
+
+	MutableVector3D() {
+	}
+
+	MutableVector3D(final double x, final double y, final double z) {
+		set(x, y, z);
+	}
+
+	MutableVector3D(final Vector3D v) {
+		set(v.getX(), v.getY(), v.getZ());
+	}
+
+	MutableVector3D(final MutableVector3D v) {
+		set(v.x, v.y, v.z);
+	}
+
+	MutableVector3D set(final double x, final double y, final double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	MutableVector3D set(final Vector3D v) {
+		return set(v.getX(), v.getY(), v.getZ());
+	}
+
+	MutableVector3D set(final MutableVector3D v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	MutableVector3D add(final MutableVector3D v) {
+		return set(x + v.x, y + v.y, z + v.z);
+	}
+
+	Vector3D toVector3D() {
+		return new Vector3D(x, y, z);
+	}
+}
@@ -17,6 +17,9 @@
  */
 package spacefiller.peasy;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import spacefiller.peasy.org.apache.commons.math.geometry.CardanEulerSingularityException;
 import spacefiller.peasy.org.apache.commons.math.geometry.Rotation;
 import spacefiller.peasy.org.apache.commons.math.geometry.RotationOrder;
@@ -41,6 +44,12 @@ public class PeasyCam {
 	private static final Vector3D LOOK = Vector3D.plusK;
 	private static final Vector3D UP = Vector3D.plusJ;
 	private static final double SMALLEST_MINIMUM_DISTANCE = 0.01;
+	// Damping is tuned per frame at this rate, and a frame is integrated in steps no longer
+	// than one of these frames
+	private static final double REFERENCE_FRAME_NANOS = 1e9 / 60;
+	// Steps per frame are capped, so a long stall costs a bounded amount of work; past that
+	// the steps just get longer
+	private static final int MAX_SUBSTEPS = 8;
 
 	private static enum Constraint {
 		YAW, PITCH, ROLL, SUPPRESS_ROLL
@@ -56,12 +65,26 @@ public class PeasyCam {
 	private double minimumDistance = 1;
 	private double maximumDistance = Double.MAX_VALUE;
 
+	private final List<DampedAction> dampedActions = new ArrayList<DampedAction>(6);
 	private final DampedAction rotateX, rotateY, rotateZ, dampedZoom, dampedPanX,
 			dampedPanY;
+	// Motion of the damped actions during the current step. Zoom is applied as it goes, while
+	// rotation and pan wait for the end of the step, see endStep().
+	private double spinX, spinY, spinZ;
+	private double stepPanX, stepPanY;
+	private double stepStartDistance;
+	private final MutableRotation stepRotation = new MutableRotation();
+	private final MutableVector3D[] stepPanSamples = { new MutableVector3D(),
+			new MutableVector3D(), new MutableVector3D() };
 
 	private double distance;
-	private Vector3D center;
-	private Rotation rotation;
+	private final MutableVector3D center;
+	private final MutableRotation rotation = new MutableRotation();
+
+	// Scratch space for feed() and pan(), so moving the camera allocates nothing
+	private final MutableVector3D feedPosition = new MutableVector3D();
+	private final MutableVector3D feedUp = new MutableVector3D();
+	private final MutableVector3D panOffset = new MutableVector3D();
 
 	// viewport for the mouse-pointer [x,y,w,h]
 	private int[] viewport = new int[4];
@@ -104,8 +127,12 @@ public class PeasyCam {
 	private double wheelScale = 1.0;
 
 	private final PeasyEventListener peasyEventListener = new PeasyEventListener();
+	private final PeasyFrameListener peasyFrameListener = new PeasyFrameListener();
 	private boolean isActive = false;
 
+	private PeasyClock clock = PeasyClock.SYSTEM;
+	private long lastUpdate;
+
 
 
 	public PeasyCam(final PApplet parent, final double distance) {
@@ -125,10 +152,10 @@ public class PeasyCam {
 			final double lookAtY, final double lookAtZ, final double distance) {
 		this.p = parent;
 		this.g = pg;
-		this.startCenter = this.center = new Vector3D(lookAtX, lookAtY, lookAtZ);
+		this.startCenter = new Vector3D(lookAtX, lookAtY, lookAtZ);
+		this.center = new MutableVector3D(startCenter);
 		this.startDistance = this.distance = Math.max(distance,
 				SMALLEST_MINIMUM_DISTANCE);
-		this.rotation = new Rotation();
 
 		viewport[0] = 0;
 		viewport[1] = 0;
@@ -140,21 +167,21 @@ public class PeasyCam {
 		rotateX = new DampedAction(this) {
 			@Override
 			protected void behave(final double velocity) {
-				rotation = rotation.applyTo(new Rotation(Vector3D.plusI, velocity));
+				spinX += velocity;
 			}
 		};
 
 		rotateY = new DampedAction(this) {
 			@Override
 			protected void behave(final double velocity) {
-				rotation = rotation.applyTo(new Rotation(Vector3D.plusJ, velocity));
+				spinY += velocity;
 			}
 		};
 
 		rotateZ = new DampedAction(this) {
 			@Override
 			protected void behave(final double velocity) {
-				rotation = rotation.applyTo(new Rotation(Vector3D.plusK, velocity));
+				spinZ += velocity;
 			}
 		};
 
@@ -179,9 +206,129 @@ public class PeasyCam {
 			}
 		};
 
+		lastUpdate = clock.nanoTime();
+		p.registerMethod("draw", peasyFrameListener);
 		setActive(true);
 	}
 
+	public PeasyClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Animate against {@code clock} instead of the system clock. Interpolations in progress
+	 * should be finished or cancelled first, since they were timed against the old clock.
+	 */
+	public void setClock(final PeasyClock clock) {
+		this.clock = clock;
+		lastUpdate = clock.nanoTime();
+	}
+
+	void addDampedAction(final DampedAction action) {
+		dampedActions.add(action);
+	}
+
+	/**
+	 * Advance every damped action and interpolation to the current time of the clock, then
+	 * apply the camera once if any of them moved it. Does nothing while the camera is at
+	 * rest. Called after every frame's draw(); call it directly to step a camera on a clock
+	 * that is advanced by hand.
+	 */
+	public void update() {
+		final long now = clock.nanoTime();
+		final long elapsed = now - lastUpdate;
+		if (elapsed <= 0) {
+			return;
+		}
+		lastUpdate = now;
+
+		boolean moved = false;
+		if (isDamping()) {
+			final double frames = elapsed / REFERENCE_FRAME_NANOS;
+			final int steps = (int)Math.min(MAX_SUBSTEPS, Math.ceil(frames));
+			for (int step = 0; step < steps; step++) {
+				stepStartDistance = distance;
+				for (int i = 0; i < dampedActions.size(); i++) {
+					moved |= dampedActions.get(i).update(frames / steps);
+				}
+				endStep();
+			}
+		}
+		moved |= rotationInterps.update(now);
+		moved |= centerInterps.update(now);
+		moved |= distanceInterps.update(now);
+		if (moved) {
+			feed();
+		}
+	}
+
+	// Every damped action decays at the same (default) rate, so within a step they all move in fixed
+	// proportions: the camera turns about one axis and the distance changes exponentially as
+	// the pan goes. Rotating about that axis in one go, and integrating the pan along the
+	// way, makes a frame come out the same however it is split into steps.
+	private void endStep() {
+		final double angle = Math.sqrt(spinX * spinX + spinY * spinY + spinZ * spinZ);
+		if (stepPanX != 0 || stepPanY != 0) {
+			final double logZoom = stepStartDistance > 0 ? Math.log(distance / stepStartDistance)
+					: 0;
+			final double scale = stepStartDistance * 0.0025;
+			// The integral over s in [0, 1] of e^(logZoom s), the average distance over the
+			// step relative to the start
+			final double weightA = logZoom == 0 ? 1 : Math.expm1(logZoom) / logZoom;
+			if (angle == 0) {
+				rotation.applyTo(stepPanX, stepPanY, 0, panOffset);
+				center.add(panOffset.set(panOffset.x * scale * weightA,
+						panOffset.y * scale * weightA, panOffset.z * scale * weightA));
+			} else {
+				// Part way through the step, after turning by a, the pan points along
+				// A + B cos(a) + C sin(a), found from where it points at 0, pi / 2 and pi.
+				for (int i = 0; i < 3; i++) {
+					stepRotation.set(rotation)
+							.applyToAxisAngle(spinX / angle, spinY / angle, spinZ / angle,
+									i * Math.PI / 2)
+							.applyTo(stepPanX, stepPanY, 0, stepPanSamples[i]);
+				}
+				final MutableVector3D at0 = stepPanSamples[0];
+				final MutableVector3D at90 = stepPanSamples[1];
+				final MutableVector3D at180 = stepPanSamples[2];
+
+				// Weights of B and C: the integrals of e^(logZoom s) times cos(angle s) and
+				// sin(angle s), taken together as the integral of e^((logZoom + i angle) s)
+				final double half = Math.sin(angle / 2);
+				final double re = Math.expm1(logZoom) * Math.cos(angle) - 2 * half * half;
+				final double im = Math.exp(logZoom) * Math.sin(angle);
+				final double norm = logZoom * logZoom + angle * angle;
+				final double weightB = (re * logZoom + im * angle) / norm;
+				final double weightC = (im * logZoom - re * angle) / norm;
+
+				final double ax = (at0.x + at180.x) / 2;
+				final double ay = (at0.y + at180.y) / 2;
+				final double az = (at0.z + at180.z) / 2;
+				center.add(panOffset.set(
+						scale * (ax * weightA + (at0.x - ax) * weightB + (at90.x - ax) * weightC),
+						scale * (ay * weightA + (at0.y - ay) * weightB + (at90.y - ay) * weightC),
+						scale * (az * weightA + (at0.z - az) * weightB + (at90.z - az) * weightC)));
+			}
+		}
+		if (angle > 0) {
+			rotation.applyToAxisAngle(spinX / angle, spinY / angle, spinZ / angle, angle);
+		}
+		spinX = 0;
+		spinY = 0;
+		spinZ = 0;
+		stepPanX = 0;
+		stepPanY = 0;
+	}
+
+	private boolean isDamping() {
+		for (int i = 0; i < dampedActions.size(); i++) {
+			if (dampedActions.get(i).isMoving()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public void setActive(final boolean active) {
 		if (active == isActive) {
 			return;
@@ -278,6 +425,13 @@ public class PeasyCam {
 		return (x > x0) && (x < x1) && (y > y0) && (y < y1);
 	}
 
+	protected class PeasyFrameListener {
+
+		public void draw() {
+			update();
+		}
+	}
+
 	protected class PeasyEventListener {
 
 		public boolean isActive = false;
@@ -347,7 +501,10 @@ public class PeasyCam {
 	}
 
 	private void mouseZoom(final double delta) {
-		double new_distance = distance + delta * distance * 0.02;
+		// Exponential, so that zooming in two steps lands where one step of the same total would.
+		// The original PeasyCam zooms linearly (distance * (1 + delta * 0.02)), which is the
+		// same to first order but depends on how the zoom is split into frames.
+		double new_distance = distance * Math.exp(delta * 0.02);
 		if (new_distance < minimumDistance) {
 			new_distance = minimumDistance;
 			dampedZoom.stop();
@@ -356,13 +513,17 @@ public class PeasyCam {
 			new_distance = maximumDistance;
 			dampedZoom.stop();
 		}
-		safeSetDistance(new_distance);
+		clampDistance(new_distance);
 	}
 
+	// Panning is scaled by the distance, and applied at the end of the step by endStep()
 	private void mousePan(final double dxMouse, final double dyMouse) {
-		final double panScale = distance * 0.0025;
-		pan(dragConstraint == Constraint.PITCH ? 0 : -dxMouse * panScale,
-				dragConstraint == Constraint.YAW ? 0 : -dyMouse * panScale);
+		if (dragConstraint != Constraint.PITCH) {
+			stepPanX -= dxMouse;
+		}
+		if (dragConstraint != Constraint.YAW) {
+			stepPanY -= dyMouse;
+		}
 	}
 
 	private void mouseRotate(final double dx, final double dy) {
@@ -408,8 +569,7 @@ public class PeasyCam {
 	}
 
 	public float[] getLookAt() {
-		return new float[] { (float)center.getX(), (float)center.getY(),
-				(float)center.getZ() };
+		return new float[] { (float)center.x, (float)center.y, (float)center.z };
 	}
 
 	public void lookAt(final double x, final double y, final double z) {
@@ -429,30 +589,40 @@ public class PeasyCam {
 
 	public void lookAt(final double x, final double y, final double z,
 			final double distance, final long animationTimeMillis) {
-		setState(new CameraState(rotation, new Vector3D(x, y, z), distance),
+		setState(new CameraState(rotation.toRotation(), new Vector3D(x, y, z), distance),
 				animationTimeMillis);
 	}
 
 	private void safeSetDistance(final double distance) {
-		this.distance = Math.min(maximumDistance, Math.max(minimumDistance, distance));
+		clampDistance(distance);
 		feed();
 	}
 
+	private void clampDistance(final double distance) {
+		this.distance = Math.min(maximumDistance, Math.max(minimumDistance, distance));
+	}
+
 	public void feed() {
-		final Vector3D pos = rotation.applyTo(LOOK).scalarMultiply(distance).add(center);
-		final Vector3D rup = rotation.applyTo(UP);
-		g.camera((float)pos.getX(), (float)pos.getY(), (float)pos.getZ(), //
-				(float)center.getX(), (float)center.getY(), (float)center.getZ(), //
-				(float)rup.getX(), (float)rup.getY(), (float)rup.getZ());
+		camera(g, center, rotation, distance, feedPosition, feedUp);
 	}
 
 	static void apply(final PGraphics g, final Vector3D center, final Rotation rotation,
 			final double distance) {
-		final Vector3D pos = rotation.applyTo(LOOK).scalarMultiply(distance).add(center);
-		final Vector3D rup = rotation.applyTo(UP);
-		g.camera((float)pos.getX(), (float)pos.getY(), (float)pos.getZ(), //
-				(float)center.getX(), (float)center.getY(), (float)center.getZ(), //
-				(float)rup.getX(), (float)rup.getY(), (float)rup.getZ());
+		camera(g, new MutableVector3D(center), new MutableRotation(rotation), distance,
+				new MutableVector3D(), new MutableVector3D());
+	}
+
+	// Point `g` at `center` from `distance` away. `position` and `up` are overwritten.
+	private static void camera(final PGraphics g, final MutableVector3D center,
+			final MutableRotation rotation, final double distance,
+			final MutableVector3D position, final MutableVector3D up) {
+		rotation.applyTo(LOOK.getX(), LOOK.getY(), LOOK.getZ(), position);
+		rotation.applyTo(UP.getX(), UP.getY(), UP.getZ(), up);
+		g.camera((float)(position.x * distance + center.x),
+				(float)(position.y * distance + center.y),
+				(float)(position.z * distance + center.z), //
+				(float)center.x, (float)center.y, (float)center.z, //
+				(float)up.x, (float)up.y, (float)up.z);
 	}
 
 	/**
@@ -461,8 +631,10 @@ public class PeasyCam {
 	 * @return float[]{x,y,z}
 	 */
 	public float[] getPosition() {
-		final Vector3D pos = rotation.applyTo(LOOK).scalarMultiply(distance).add(center);
-		return new float[] { (float)pos.getX(), (float)pos.getY(), (float)pos.getZ() };
+		final MutableVector3D pos = rotation.applyTo(LOOK.getX(), LOOK.getY(), LOOK.getZ(),
+				new MutableVector3D());
+		return new float[] { (float)(pos.x * distance + center.x),
+				(float)(pos.y * distance + center.y), (float)(pos.z * distance + center.z) };
 	}
 
 	public void reset() {
@@ -475,31 +647,31 @@ public class PeasyCam {
 	}
 
 	public void pan(final double dx, final double dy) {
-		center = center.add(rotation.applyTo(new Vector3D(dx, dy, 0)));
+		applyPan(dx, dy);
 		feed();
 	}
 
+	private void applyPan(final double dx, final double dy) {
+		center.add(rotation.applyTo(dx, dy, 0, panOffset));
+	}
+
 	public void rotateX(final double angle) {
-		rotation = rotation.applyTo(new Rotation(Vector3D.plusI, angle));
+		rotation.applyToAxisAngle(1, 0, 0, angle);
 		feed();
 	}
 
 	public void rotateY(final double angle) {
-		rotation = rotation.applyTo(new Rotation(Vector3D.plusJ, angle));
+		rotation.applyToAxisAngle(0, 1, 0, angle);
 		feed();
 	}
 
 	public void rotateZ(final double angle) {
-		rotation = rotation.applyTo(new Rotation(Vector3D.plusK, angle));
+		rotation.applyToAxisAngle(0, 0, 1, angle);
 		feed();
 	}
 
-	PApplet getApplet() {
-		return p;
-	}
-
 	public CameraState getState() {
-		return new CameraState(rotation, center, distance);
+		return new CameraState(rotation.toRotation(), center.toVector3D(), distance);
 	}
 
 	/**
@@ -564,8 +736,8 @@ public class PeasyCam {
 			distanceInterps.startInterpolation(
 					new DistanceInterp(state.distance, animationTimeMillis));
 		} else {
-			this.rotation = state.rotation;
-			this.center = state.center;
+			this.rotation.set(state.rotation);
+			this.center.set(state.center);
 			this.distance = state.distance;
 		}
 		feed();
@@ -573,7 +745,7 @@ public class PeasyCam {
 
 	public void setRotations(final double pitch, final double yaw, final double roll) {
 		rotationInterps.cancelInterpolation();
-		this.rotation = new Rotation(RotationOrder.XYZ, pitch, yaw, roll);
+		this.rotation.set(new Rotation(RotationOrder.XYZ, pitch, yaw, roll));
 		feed();
 	}
 
@@ -590,6 +762,7 @@ public class PeasyCam {
 	 *text("Here I am!", 0, 0, 0);</pre>
 	 */
 	public float[] getRotations() {
+		final Rotation rotation = this.rotation.toRotation();
 		try {
 			final double[] angles = rotation.getAngles(RotationOrder.XYZ);
 			return new float[] { (float)angles[0], (float)angles[1], (float)angles[2] };
@@ -652,31 +825,41 @@ public class PeasyCam {
 	}
 
 	abstract public class AbstractInterp {
-		double startTime;
-		final double timeInMillis;
+		long startTime;
+		final double timeInNanos;
 
 		protected AbstractInterp(final long timeInMillis) {
-			this.timeInMillis = timeInMillis;
+			this.timeInNanos = timeInMillis * 1e6;
 		}
 
 		void start() {
-			startTime = p.millis();
-			p.registerMethod("draw", this);
-		}
-
-		void cancel() {
-			p.unregisterMethod("draw", this);
+			startTime = clock.nanoTime();
 		}
 
-		public void draw() {
-			final double t = (p.millis() - startTime) / timeInMillis;
+		/**
+		 * Move the camera to where it should be at {@code now}, in nanoseconds.
+		 * 
+		 * @return false once the end state has been reached
+		 */
+		boolean update(final long now) {
+			final double t = (now - startTime) / timeInNanos;
 			if (t > .99) {
-				cancel();
 				setEndState();
-			} else {
-				interp(t);
+				return false;
 			}
-			feed();
+			interp(t);
+			return true;
+		}
+
+		/**
+		 * Advance the camera to the current time of its clock.
+		 * 
+		 * @deprecated interpolations are stepped by {@link PeasyCam#update()}, which this now
+		 *             calls
+		 */
+		@Deprecated
+		public void draw() {
+			PeasyCam.this.update();
 		}
 
 		protected abstract void interp(double t);
@@ -706,32 +889,32 @@ public class PeasyCam {
 	}
 
 	class CenterInterp extends AbstractInterp {
-		private final Vector3D startCenter = center;
-		private final Vector3D endCenter;
+		private final MutableVector3D startCenter = new MutableVector3D(center);
+		private final MutableVector3D endCenter;
 
 		public CenterInterp(final Vector3D endCenter, final long timeInMillis) {
 			super(timeInMillis);
-			this.endCenter = endCenter;
+			this.endCenter = new MutableVector3D(endCenter);
 		}
 
 		@Override
 		protected void interp(final double t) {
-			center = InterpolationUtil.smooth(startCenter, endCenter, t);
+			InterpolationUtil.smooth(startCenter, endCenter, t, center);
 		}
 
 		@Override
 		protected void setEndState() {
-			center = endCenter;
+			center.set(endCenter);
 		}
 	}
 
 	class RotationInterp extends AbstractInterp {
-		final Rotation startRotation = rotation;
-		final Rotation endRotation;
+		final MutableRotation startRotation = new MutableRotation(rotation);
+		final MutableRotation endRotation;
 
 		public RotationInterp(final Rotation endRotation, final long timeInMillis) {
 			super(timeInMillis);
-			this.endRotation = endRotation;
+			this.endRotation = new MutableRotation(endRotation);
 		}
 
 		@Override
@@ -744,12 +927,12 @@ public class PeasyCam {
 
 		@Override
 		protected void interp(final double t) {
-			rotation = InterpolationUtil.slerp(startRotation, endRotation, t);
+			InterpolationUtil.slerp(startRotation, endRotation, t, rotation);
 		}
 
 		@Override
 		protected void setEndState() {
-			rotation = endRotation;
+			rotation.set(endRotation);
 		}
 	}
 }
@@ -0,0 +1,32 @@
+/*
+	 Portions of this code are derived from the PeasyCam Processing library,
+	 which is Copyright 2008 Jonathan Feinberg and licensed under the Apache
+	 License, Version 2.0. The original license message appears below.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package spacefiller.peasy;
+
+/**
+ * The time source PeasyCam animates against. Defaults to {@link #SYSTEM}. A clock that is
+ * advanced by hand, passed to {@link PeasyCam#setClock(PeasyClock)}, replays camera motion
+ * exactly, whatever the real frame rate.
+ */
+public interface PeasyClock {
+	public static final PeasyClock SYSTEM = System::nanoTime;
+
+	/**
+	 * @return the current time in nanoseconds, from an arbitrary origin
+	 */
+	public long nanoTime();
+}
@@ -0,0 +1,200 @@
+package spacefiller.shapemapper;
+
+import spacefiller.shapemapper.utils.CalibrationResult;
+import spacefiller.shapemapper.utils.CalibrationUtils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs calibration solves off of the Processing animation thread.
+ *
+ * <p>
+ * Solve requests are coalesced per {@link Mapping}: if a mapping asks for a new solve while
+ * a previous request is still waiting to run, the older request is dropped and only the most
+ * recent set of points is solved. When a solve finishes, the resulting
+ * {@link GraphicsTransform} is published to the mapping in a single step, so the render thread
+ * keeps drawing with the previous transform until the new one is ready.
+ * </p>
+ *
+ * <p>
+ * Different mappings are solved in parallel on a small pool of threads, leaving a core free
+ * for the animation thread. Solves of the same mapping never overlap, so transforms are
+ * always published in the order they were requested.
+ * </p>
+ */
+public class CalibrationExecutor {
+  private static final int PARALLELISM =
+      Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() - 1));
+  private static final CalibrationExecutor DEFAULT = new CalibrationExecutor();
+
+  private final Executor executor;
+  private final Map<Mapping, SolveRequest> pending;
+  // Mappings that have a task scheduled or running. At most one task per mapping is in
+  // flight; it keeps solving until the mapping has no pending request left.
+  private final Set<Mapping> active;
+  private final Object idleLock = new Object();
+
+  private final AtomicLong solveCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong totalSolveNanos = new AtomicLong();
+  private volatile long lastSolveNanos;
+
+  private CalibrationExecutor() {
+    this(newThreadPool());
+  }
+
+  // Runs solves on `executor` instead of the shared pool
+  CalibrationExecutor(Executor executor) {
+    this.pending = new ConcurrentHashMap<>();
+    this.active = ConcurrentHashMap.newKeySet();
+    this.executor = executor;
+  }
+
+  private static Executor newThreadPool() {
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+      Thread thread = new Thread(runnable, "ShapeMapper-calibration-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return The executor shared by all mappings.
+   */
+  public static CalibrationExecutor getDefault() {
+    return DEFAULT;
+  }
+
+  // Schedule a solve for the passed points. Must be called from the thread that edits the
+  // mapping, since the points are copied here.
+  void submit(Mapping mapping, PointCorrespondences points, int width, int height) {
+    SolveRequest request = new SolveRequest(points.snapshot(), width, height);
+
+    // If a request was already waiting for this mapping, the task for it will pick up the
+    // newer points when it runs.
+    if (pending.put(mapping, request) != null) {
+      coalescedCount.incrementAndGet();
+    }
+
+    // Likewise if a task for the mapping is scheduled or running, it will solve the request
+    // once it is done with the current one.
+    if (active.add(mapping)) {
+      executor.execute(() -> drain(mapping));
+    }
+  }
+
+  /**
+   * Block until every requested solve has run and its transform has been published.
+   * @throws InterruptedException
+   */
+  public void awaitIdle() throws InterruptedException {
+    synchronized (idleLock) {
+      while (!active.isEmpty()) {
+        idleLock.wait();
+      }
+    }
+  }
+
+  private void drain(Mapping mapping) {
+    while (true) {
+      SolveRequest request = pending.remove(mapping);
+      if (request != null) {
+        solve(mapping, request);
+        continue;
+      }
+
+      active.remove(mapping);
+      // A request may have arrived after the remove above but before the mapping stopped
+      // being active, in which case submit didn't schedule a task for it. Take it over.
+      if (!pending.containsKey(mapping) || !active.add(mapping)) {
+        break;
+      }
+    }
+
+    synchronized (idleLock) {
+      idleLock.notifyAll();
+    }
+  }
+
+  private void solve(Mapping mapping, SolveRequest request) {
+    long start = System.nanoTime();
+    try {
+      // Start from the mapping's last solution; while points are being dragged it is
+      // already close to the new one.
+      CalibrationResult result = request.points.solve(
+          request.width, request.height, mapping.getCameraSolution());
+      mapping.publishTransform(
+          CalibrationUtils.toTransform(result.solution, request.width, request.height), result);
+    } catch (Exception e) {
+      System.out.println("ShapeMapper: Calibration failed; keeping the previous transform.");
+      e.printStackTrace();
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      lastSolveNanos = elapsed;
+      totalSolveNanos.addAndGet(elapsed);
+      solveCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return True if the passed mapping has a solve waiting to run.
+   */
+  public boolean isPending(Mapping mapping) {
+    return pending.containsKey(mapping);
+  }
+
+  /**
+   * @return Number of mappings that can be solved at the same time.
+   */
+  public int getParallelism() {
+    return PARALLELISM;
+  }
+
+  /**
+   * @return Number of solves that have run.
+   */
+  public long getSolveCount() {
+    return solveCount.get();
+  }
+
+  /**
+   * @return Number of solve requests that were folded into a request already waiting to run.
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * @return Duration of the most recent solve, in milliseconds.
+   */
+  public float getLastSolveMillis() {
+    return lastSolveNanos / 1e6f;
+  }
+
+  /**
+   * @return Mean duration of all solves so far, in milliseconds.
+   */
+  public float getAverageSolveMillis() {
+    long count = solveCount.get();
+    return count == 0 ? 0 : totalSolveNanos.get() / 1e6f / count;
+  }
+
+  private static class SolveRequest {
+    final PointCorrespondences.Snapshot points;
+    final int width;
+    final int height;
+
+    SolveRequest(PointCorrespondences.Snapshot points, int width, int height) {
+      this.points = points;
+      this.width = width;
+      this.height = height;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package spacefiller.shapemapper;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Binary encoding of calibration data.
+ *
+ * <pre>
+ * header   int magic ("SMCB"), int schema version, int shape count
+ * shape    int name length, UTF-8 name bytes, int mapping count
+ * mapping  int point count, point[point count],
+ *          int face count, int word count, long[word count] face mask bits
+ * point    int vertex index, float model x, y, z, float projection x, y
+ * </pre>
+ *
+ * All values are little endian. Unlike Java serialization, the format does not depend on the
+ * layout of {@link MappedShape} or {@link Mapping}, so those classes can change freely as long
+ * as the reader for each schema version is kept.
+ */
+class CalibrationFormat {
+  static final int MAGIC = 0x42434d53; // "SMCB" read as a little endian int
+  static final int SCHEMA_VERSION = 1;
+
+  private static final int FLOATS_PER_POINT = 5;
+  private static final int BYTES_PER_POINT = Integer.BYTES + FLOATS_PER_POINT * Float.BYTES;
+  // Smallest encoding of a shape (empty name, no mappings) and of a mapping (no points, no mask)
+  private static final int SHAPE_MIN_BYTES = 2 * Integer.BYTES;
+  private static final int MAPPING_MIN_BYTES = 3 * Integer.BYTES;
+
+  static byte[] encode(List<MappedShape> shapes) {
+    List<byte[]> names = new ArrayList<>();
+    int size = 3 * Integer.BYTES;
+    for (MappedShape shape : shapes) {
+      byte[] name = shape.getName().getBytes(StandardCharsets.UTF_8);
+      names.add(name);
+      size += 2 * Integer.BYTES + name.length;
+
+      for (Mapping mapping : shape.getMappings()) {
+        size += 3 * Integer.BYTES;
+        size += mapping.getPointCount() * BYTES_PER_POINT;
+        size += mapping.getFaceMaskBits().toLongArray().length * Long.BYTES;
+      }
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(SCHEMA_VERSION);
+    buffer.putInt(shapes.size());
+
+    for (int i = 0; i < shapes.size(); i++) {
+      MappedShape shape = shapes.get(i);
+      byte[] name = names.get(i);
+      buffer.putInt(name.length);
+      buffer.put(name);
+      buffer.putInt(shape.getNumMappings());
+
+      for (Mapping mapping : shape.getMappings()) {
+        PointCorrespondences points = mapping.getCorrespondences();
+        buffer.putInt(points.size());
+        for (int p = 0; p < points.size(); p++) {
+          buffer.putInt(points.getVertex(p));
+          buffer.putFloat(points.getModelX(p));
+          buffer.putFloat(points.getModelY(p));
+          buffer.putFloat(points.getModelZ(p));
+          buffer.putFloat(points.getImageX(p));
+          buffer.putFloat(points.getImageY(p));
+        }
+
+        long[] words = mapping.getFaceMaskBits().toLongArray();
+        buffer.putInt(mapping.getFaceCount());
+        buffer.putInt(words.length);
+        for (long word : words) {
+          buffer.putLong(word);
+        }
+      }
+    }
+
+    return buffer.array();
+  }
+
+  static List<MappedShape> read(Path path) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Calibration file is too large: " + path);
+      }
+      buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Unexpected end of calibration file: " + path);
+        }
+      }
+    }
+    buffer.flip();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return decode(buffer);
+  }
+
+  static List<MappedShape> decode(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a calibration file");
+      }
+
+      int version = buffer.getInt();
+      switch (version) {
+        case 1:
+          return decodeVersion1(buffer);
+        default:
+          throw new IOException("Unsupported calibration schema version " + version);
+      }
+    } catch (RuntimeException e) {
+      // Truncated or otherwise malformed data surfaces as buffer underflow or bad sizes.
+      throw new IOException("Calibration file is corrupt", e);
+    }
+  }
+
+  private static List<MappedShape> decodeVersion1(ByteBuffer buffer) throws IOException {
+    int shapeCount = readCount(buffer, SHAPE_MIN_BYTES);
+    List<MappedShape> shapes = new ArrayList<>(shapeCount);
+
+    for (int s = 0; s < shapeCount; s++) {
+      byte[] nameBytes = new byte[readCount(buffer, 1)];
+      buffer.get(nameBytes);
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+      int mappingCount = readCount(buffer, MAPPING_MIN_BYTES);
+      List<Mapping> mappings = new ArrayList<>(mappingCount);
+      for (int m = 0; m < mappingCount; m++) {
+        int pointCount = readCount(buffer, BYTES_PER_POINT);
+        PointCorrespondences points = new PointCorrespondences();
+        for (int i = 0; i < pointCount; i++) {
+          int vertex = buffer.getInt();
+          if (!PointCorrespondences.isValidVertex(vertex)) {
+            throw new IOException("Invalid vertex index " + vertex);
+          }
+          points.put(
+              vertex,
+              buffer.getFloat(),
+              buffer.getFloat(),
+              buffer.getFloat(),
+              buffer.getFloat(),
+              buffer.getFloat());
+        }
+
+        int faceCount = buffer.getInt();
+        long[] words = new long[readCount(buffer, Long.BYTES)];
+        // The mask is written with BitSet.toLongArray, so it has no words past the last face
+        if (faceCount < 0 || (long) words.length * Long.SIZE >= (long) faceCount + Long.SIZE) {
+          throw new IOException("Invalid face count " + faceCount);
+        }
+        LongBuffer longs = buffer.asLongBuffer();
+        longs.get(words);
+        buffer.position(buffer.position() + words.length * Long.BYTES);
+
+        mappings.add(new Mapping(points, BitSet.valueOf(words), faceCount));
+      }
+
+      shapes.add(new MappedShape(name, mappings));
+    }
+
+    return shapes;
+  }
+
+  // Read a count of items that each take at least `minBytes` bytes. Counts are checked against
+  // the bytes left before anything is allocated for them, so a corrupt count fails to decode
+  // rather than exhausting the heap.
+  private static int readCount(ByteBuffer buffer, int minBytes) throws IOException {
+    int count = buffer.getInt();
+    if (count < 0 || (long) count * minBytes > buffer.remaining()) {
+      throw new IOException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  // Read calibration data written by earlier versions of the library, which serialized the
+  // list of shapes with Java serialization.
+  @SuppressWarnings("unchecked")
+  static List<MappedShape> readLegacy(Path path) throws IOException {
+    try (ObjectInputStream objectInputStream =
+             new ObjectInputStream(new FileInputStream(path.toFile()))) {
+      return (List<MappedShape>) objectInputStream.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Could not read legacy calibration file " + path, e);
+    }
+  }
+}
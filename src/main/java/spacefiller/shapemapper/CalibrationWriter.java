@@ -0,0 +1,349 @@
+package spacefiller.shapemapper;
+
+import spacefiller.shapemapper.utils.IOUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Writes calibration data to disk in the background.
+ *
+ * <p>
+ * Save requests are debounced: the calibration is only snapshotted once edits have been quiet
+ * for a short while (or have been pending for too long), so a burst of drag events results in
+ * a handful of writes rather than one per event. Each write goes to a temporary file which is
+ * synced and then atomically renamed over the calibration file, so a crash mid-write never
+ * corrupts the existing data. The directory is synced after the rename, so that the rename
+ * itself survives a crash. The previous few versions of the file are kept as numbered
+ * backups next to it.
+ * </p>
+ *
+ * <p>
+ * Individual edits are appended to a journal file next to the calibration file as they happen
+ * (see {@link EditJournal}). Appended entries are synced to disk together, once an edit ends
+ * (e.g. when the mouse is released), or on the same debounce as snapshots while an edit goes
+ * on. Every snapshot compacts the journal: once the snapshot has been renamed into place, the
+ * journal is truncated.
+ * </p>
+ */
+public class CalibrationWriter {
+  private static final long DEBOUNCE_NANOS = 250_000_000L;
+  private static final long MAX_DELAY_NANOS = 2_000_000_000L;
+  private static final int COMPACT_THRESHOLD = 4096;
+  public static final int DEFAULT_GENERATIONS = 3;
+
+  private final Path path;
+  private final Path journalPath;
+  private final Supplier<byte[]> serializer;
+  private final int generations;
+  private final ExecutorService executor;
+  // Times the debounce, in nanoseconds
+  private final LongSupplier clock;
+
+  private boolean dirty;
+  private long firstRequestNanos;
+  private long lastRequestNanos;
+  private Future<?> lastWrite;
+  private int journalEntries;
+  private boolean journalUnsynced;
+  private long firstAppendNanos;
+  private long lastAppendNanos;
+
+  // Only touched from the writer thread
+  private FileChannel journalChannel;
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong journalBytesWritten = new AtomicLong();
+  private volatile long lastWriteNanos;
+
+  CalibrationWriter(String path, Supplier<byte[]> serializer) {
+    this(path, serializer, DEFAULT_GENERATIONS);
+  }
+
+  CalibrationWriter(String path, Supplier<byte[]> serializer, int generations) {
+    this(path, serializer, generations, System::nanoTime);
+  }
+
+  CalibrationWriter(String path, Supplier<byte[]> serializer, int generations, LongSupplier clock) {
+    this.path = Paths.get(path);
+    this.journalPath = journalPath(this.path);
+    this.serializer = serializer;
+    this.generations = generations;
+    this.clock = clock;
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ShapeMapper-persistence");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @param path Path of the calibration file.
+   * @param generation Backup generation, starting at 1 for the most recent backup. 0 refers
+   *                   to the calibration file itself.
+   * @return Path of the file holding that generation.
+   */
+  public static Path generationPath(Path path, int generation) {
+    if (generation == 0) {
+      return path;
+    }
+    return path.resolveSibling(path.getFileName() + "." + generation);
+  }
+
+  /**
+   * @param path Path of the calibration file.
+   * @return Path of the journal holding edits made since the calibration file was written.
+   */
+  public static Path journalPath(Path path) {
+    return path.resolveSibling(path.getFileName() + ".journal");
+  }
+
+  // Mark the calibration as changed. The write happens on a later call to poll().
+  void requestSave() {
+    long now = clock.getAsLong();
+    if (!dirty) {
+      dirty = true;
+      firstRequestNanos = now;
+    }
+    lastRequestNanos = now;
+    requestCount.incrementAndGet();
+  }
+
+  // Called once per frame from the animation thread. If a save is due, snapshots the
+  // calibration on this thread and hands the bytes to the writer thread.
+  void poll() {
+    long now = clock.getAsLong();
+    if (journalUnsynced && isDue(now, firstAppendNanos, lastAppendNanos)) {
+      syncJournal();
+    }
+
+    if (dirty && isDue(now, firstRequestNanos, lastRequestNanos)) {
+      submitSnapshot();
+    }
+  }
+
+  private static boolean isDue(long now, long first, long last) {
+    return now - last >= DEBOUNCE_NANOS || now - first >= MAX_DELAY_NANOS;
+  }
+
+  // Write any pending changes and wait for all writes to land on disk.
+  void flush() {
+    syncJournal();
+    if (dirty) {
+      submitSnapshot();
+    }
+
+    if (lastWrite != null) {
+      try {
+        lastWrite.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // Append a journal entry. Once the journal grows large enough, a snapshot is requested so
+  // that the journal gets compacted.
+  void append(byte[] entry) {
+    long now = clock.getAsLong();
+    if (!journalUnsynced) {
+      journalUnsynced = true;
+      firstAppendNanos = now;
+    }
+    lastAppendNanos = now;
+
+    lastWrite = executor.submit(() -> writeJournalEntry(entry));
+    journalEntries++;
+    if (journalEntries == COMPACT_THRESHOLD) {
+      requestSave();
+    }
+  }
+
+  // Sync the journal entries appended so far to disk. Called once an edit ends.
+  void syncJournal() {
+    if (journalUnsynced) {
+      journalUnsynced = false;
+      lastWrite = executor.submit(this::forceJournal);
+    }
+  }
+
+  // Write the passed bytes as the new calibration file, bypassing the debounce.
+  void submit(byte[] data) {
+    journalEntries = 0;
+    lastWrite = executor.submit(() -> write(data));
+  }
+
+  private void submitSnapshot() {
+    dirty = false;
+    byte[] data = serializer.get();
+    if (data != null) {
+      submit(data);
+    }
+  }
+
+  private void write(byte[] data) {
+    long start = System.nanoTime();
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try {
+      Files.createDirectories(path.toAbsolutePath().getParent());
+
+      try (FileChannel channel = FileChannel.open(
+          tempPath,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+
+      rotateGenerations();
+      Files.move(
+          tempPath,
+          path,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      // The rename has to be durable before the journal is emptied, or a crash could leave
+      // the old snapshot next to an empty journal
+      IOUtils.syncDirectory(path);
+
+      bytesWritten.addAndGet(data.length);
+      writeCount.incrementAndGet();
+
+      // Everything in the journal was applied before the snapshot was taken. Edits made
+      // after it are queued behind this task, so they land in the emptied journal.
+      if (journalChannel != null) {
+        journalChannel.truncate(0);
+        journalChannel.force(true);
+      } else {
+        Files.deleteIfExists(journalPath);
+      }
+      IOUtils.syncDirectory(journalPath);
+    } catch (IOException e) {
+      System.out.println("ShapeMapper: Could not save calibration to " + path);
+      e.printStackTrace();
+    } finally {
+      lastWriteNanos = System.nanoTime() - start;
+    }
+  }
+
+  private void writeJournalEntry(byte[] entry) {
+    try {
+      if (journalChannel == null) {
+        Files.createDirectories(journalPath.toAbsolutePath().getParent());
+        journalChannel = FileChannel.open(
+            journalPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+      }
+
+      // A new or just compacted journal starts with a header
+      if (journalChannel.size() == 0) {
+        ByteBuffer header = ByteBuffer.wrap(EditJournal.header());
+        while (header.hasRemaining()) {
+          journalChannel.write(header);
+        }
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(entry);
+      while (buffer.hasRemaining()) {
+        journalChannel.write(buffer);
+      }
+      journalBytesWritten.addAndGet(entry.length);
+    } catch (IOException e) {
+      System.out.println("ShapeMapper: Could not append to calibration journal " + journalPath);
+      e.printStackTrace();
+    }
+  }
+
+  private void forceJournal() {
+    try {
+      if (journalChannel != null) {
+        journalChannel.force(false);
+      }
+    } catch (IOException e) {
+      System.out.println("ShapeMapper: Could not sync calibration journal " + journalPath);
+      e.printStackTrace();
+    }
+  }
+
+  // Shift each backup one generation back and copy the current file into generation 1.
+  // The calibration file itself is never moved, so there is always a complete copy of it.
+  private void rotateGenerations() throws IOException {
+    if (generations <= 0 || !Files.exists(path)) {
+      return;
+    }
+
+    for (int i = generations - 1; i >= 1; i--) {
+      Path from = generationPath(path, i);
+      if (Files.exists(from)) {
+        Files.move(from, generationPath(path, i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+
+    Files.copy(path, generationPath(path, 1), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @return Number of backup generations kept next to the calibration file.
+   */
+  public int getGenerations() {
+    return generations;
+  }
+
+  /**
+   * @return Number of times a save has been requested.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return Number of times the calibration has actually been written to disk.
+   */
+  public long getWriteCount() {
+    return writeCount.get();
+  }
+
+  /**
+   * @return Total number of bytes written to disk as full snapshots.
+   */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * @return Total number of bytes appended to the edit journal.
+   */
+  public long getJournalBytesWritten() {
+    return journalBytesWritten.get();
+  }
+
+  /**
+   * @return Duration of the most recent write, including sync and rename, in milliseconds.
+   */
+  public float getLastWriteMillis() {
+    return lastWriteNanos / 1e6f;
+  }
+}
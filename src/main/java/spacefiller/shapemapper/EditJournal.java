@@ -0,0 +1,423 @@
+package spacefiller.shapemapper;
+
+import processing.core.PVector;
+import spacefiller.shapemapper.utils.MeshData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records edits made to mappings from the calibration GUI.
+ *
+ * <p>
+ * Each edit is appended to the calibration journal as a fixed size entry, so saving an edit
+ * costs the same no matter how many points have been mapped. Entries describe the state after
+ * the edit (e.g. "point A maps to B", "face 3 is masked") rather than a change relative to the
+ * previous state, so replaying the journal onto a snapshot that already contains some of the
+ * edits gives the same result. Entries refer to shapes by their index in the snapshot the
+ * journal follows, and to mappings by their index in the shape.
+ * </p>
+ *
+ * <p>
+ * The journal starts with a header entry holding a magic number and the format version.
+ * Point entries hold the vertex index as well as its model space position, so they can be
+ * replayed onto points loaded from older files, which are keyed by position only.
+ * </p>
+ *
+ * <p>
+ * The same edits are kept in memory as an undo/redo history. Undoing or redoing an edit is
+ * itself journaled like any other edit.
+ * </p>
+ */
+class EditJournal {
+  static final int ENTRY_SIZE = 40;
+  static final int MAGIC = 0x4a434d53; // "SMCJ" read as a little endian int
+  static final int VERSION = 1;
+
+  private static final int OP_PUT = 1;
+  private static final int OP_REMOVE = 2;
+  private static final int OP_FACE_MASK = 3;
+  private static final int OP_CLEAR = 4;
+
+  private static final int MAX_UNDO = 100;
+
+  private final CalibrationWriter writer;
+  private final Map<String, Integer> snapshotShapeIndices;
+
+  private final Deque<List<Edit>> undoStack = new ArrayDeque<>();
+  private final Deque<List<Edit>> redoStack = new ArrayDeque<>();
+  private List<Edit> currentGroup;
+
+  EditJournal(CalibrationWriter writer, List<MappedShape> snapshotShapes) {
+    this.writer = writer;
+    this.snapshotShapeIndices = new HashMap<>();
+    onSnapshot(snapshotShapes);
+  }
+
+  // Journal entries refer to shapes by their index in the snapshot the journal follows, so
+  // they can only be replayed for shapes the snapshot contains. Called whenever a snapshot is
+  // taken, with the shapes in the order they are written.
+  void onSnapshot(List<MappedShape> shapes) {
+    snapshotShapeIndices.clear();
+    for (int i = 0; i < shapes.size(); i++) {
+      snapshotShapeIndices.putIfAbsent(shapes.get(i).getName(), i);
+    }
+  }
+
+  // Edits made between beginGroup and endGroup are undone together, e.g. all the points
+  // from a single mouse drag. Their journal entries are synced to disk together when the
+  // group ends; an edit outside of a group is synced on its own.
+  void beginGroup() {
+    if (currentGroup == null) {
+      currentGroup = new ArrayList<>();
+    }
+  }
+
+  void endGroup() {
+    if (currentGroup != null) {
+      List<Edit> group = currentGroup;
+      currentGroup = null;
+      if (!group.isEmpty()) {
+        pushUndo(group);
+      }
+    }
+    writer.syncJournal();
+  }
+
+  void put(MappedShape shape, Mapping mapping, int vertex, PVector to) {
+    Edit edit = Edit.point(shape, mapping, vertex, mapping.get(vertex), to);
+    edit.reapply(this);
+    record(edit);
+  }
+
+  void remove(MappedShape shape, Mapping mapping, int vertex) {
+    PVector before = mapping.get(vertex);
+    if (before == null) {
+      return;
+    }
+    Edit edit = Edit.point(shape, mapping, vertex, before, null);
+    edit.reapply(this);
+    record(edit);
+  }
+
+  void setFaceMask(MappedShape shape, Mapping mapping, int faceIndex, boolean value) {
+    boolean before = mapping.getFaceMask(faceIndex);
+    applyFaceMask(shape, mapping, faceIndex, value);
+    record(Edit.faceMask(shape, mapping, faceIndex, before, value));
+  }
+
+  void clear(MappedShape shape, Mapping mapping) {
+    PointCorrespondences before = mapping.getCorrespondences().copy();
+    applyClear(shape, mapping);
+    record(Edit.clear(shape, mapping, before));
+  }
+
+  boolean canUndo() {
+    return !undoStack.isEmpty();
+  }
+
+  boolean canRedo() {
+    return !redoStack.isEmpty();
+  }
+
+  boolean undo() {
+    endGroup();
+    List<Edit> group = undoStack.pollFirst();
+    if (group == null) {
+      return false;
+    }
+
+    for (int i = group.size() - 1; i >= 0; i--) {
+      group.get(i).revert(this);
+    }
+    redoStack.push(group);
+    writer.syncJournal();
+    return true;
+  }
+
+  boolean redo() {
+    endGroup();
+    List<Edit> group = redoStack.pollFirst();
+    if (group == null) {
+      return false;
+    }
+
+    for (Edit edit : group) {
+      edit.reapply(this);
+    }
+    undoStack.push(group);
+    writer.syncJournal();
+    return true;
+  }
+
+  private void record(Edit edit) {
+    redoStack.clear();
+    if (currentGroup != null) {
+      currentGroup.add(edit);
+    } else {
+      List<Edit> group = new ArrayList<>(1);
+      group.add(edit);
+      pushUndo(group);
+      writer.syncJournal();
+    }
+  }
+
+  private void pushUndo(List<Edit> group) {
+    undoStack.push(group);
+    if (undoStack.size() > MAX_UNDO) {
+      undoStack.pollLast();
+    }
+  }
+
+  private void applyPut(
+      MappedShape shape, Mapping mapping, int vertex, float x, float y, float z, float u, float v) {
+    mapping.put(vertex, x, y, z, u, v);
+    append(OP_PUT, shape, mapping, vertex, x, y, z, u, v);
+  }
+
+  private void applyRemove(
+      MappedShape shape, Mapping mapping, int vertex, float x, float y, float z) {
+    mapping.remove(vertex);
+    append(OP_REMOVE, shape, mapping, vertex, x, y, z, 0, 0);
+  }
+
+  private void applyFaceMask(MappedShape shape, Mapping mapping, int faceIndex, boolean value) {
+    mapping.setFaceMask(faceIndex, value);
+    append(OP_FACE_MASK, shape, mapping, faceIndex, value ? 1 : 0, 0, 0, 0, 0);
+  }
+
+  private void applyClear(MappedShape shape, Mapping mapping) {
+    mapping.clear();
+    append(OP_CLEAR, shape, mapping, 0, 0, 0, 0, 0, 0);
+  }
+
+  // The first entry of every journal file.
+  static byte[] header() {
+    ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    return buffer.array();
+  }
+
+  private void append(
+      int op, MappedShape shape, Mapping mapping, int index,
+      float a, float b, float c, float d, float e) {
+    Integer shapeIndex = snapshotShapeIndices.get(shape.getName());
+    if (shapeIndex == null) {
+      // This shape isn't in the last snapshot, so the entry couldn't be replayed on its own.
+      writer.requestSave();
+      shapeIndex = -1;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(op);
+    buffer.putInt(shapeIndex);
+    buffer.putInt(shape.getMappings().indexOf(mapping));
+    buffer.putInt(index);
+    buffer.putFloat(a);
+    buffer.putFloat(b);
+    buffer.putFloat(c);
+    buffer.putFloat(d);
+    buffer.putFloat(e);
+    writer.append(buffer.array());
+  }
+
+  // Apply the edits in the journal at the passed path to calibration data loaded from a
+  // snapshot, with the shapes in the order they were read. A trailing partial entry, e.g. from
+  // a crash mid-append, is ignored.
+  // Returns the number of entries applied.
+  static int replay(Path path, List<MappedShape> shapes) throws IOException {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      buffer = ByteBuffer.allocate((int) channel.size());
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          break;
+        }
+      }
+    }
+    buffer.flip();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (buffer.remaining() < ENTRY_SIZE) {
+      return 0;
+    }
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a calibration journal: " + path);
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported calibration journal version " + version + ": " + path);
+    }
+    buffer.position(ENTRY_SIZE);
+
+    int applied = 0;
+    while (buffer.remaining() >= ENTRY_SIZE) {
+      int start = buffer.position();
+      int op = buffer.getInt();
+      int shapeIndex = buffer.getInt();
+      int mappingIndex = buffer.getInt();
+      int index = buffer.getInt();
+      float a = buffer.getFloat();
+      float b = buffer.getFloat();
+      float c = buffer.getFloat();
+      float d = buffer.getFloat();
+      float e = buffer.getFloat();
+      buffer.position(start + ENTRY_SIZE);
+
+      if (shapeIndex < 0 || shapeIndex >= shapes.size()) {
+        continue;
+      }
+      MappedShape shape = shapes.get(shapeIndex);
+      if (mappingIndex < 0 || mappingIndex >= shape.getNumMappings()) {
+        continue;
+      }
+
+      PointCorrespondences points = shape.getMapping(mappingIndex).getCorrespondences();
+      switch (op) {
+        case OP_PUT:
+          if (!PointCorrespondences.isValidVertex(index)) {
+            continue;
+          }
+          points.put(index, a, b, c, d, e);
+          break;
+        case OP_REMOVE:
+          int slot = points.find(index, a, b, c);
+          if (slot >= 0) {
+            points.removeSlot(slot);
+          }
+          break;
+        case OP_FACE_MASK:
+          // The faces may have been masked after the model gained faces, so the index is only
+          // checked against what any mesh could have, not the saved face count
+          if (index < 0 || index > PointCorrespondences.MAX_VERTEX) {
+            continue;
+          }
+          shape.getMapping(mappingIndex).extendFaceCount(index + 1);
+          shape.getMapping(mappingIndex).setFaceMask(index, a != 0);
+          break;
+        case OP_CLEAR:
+          points.clear();
+          break;
+        default:
+          continue;
+      }
+      applied++;
+    }
+
+    return applied;
+  }
+
+  private static class Edit {
+    final MappedShape shape;
+    final Mapping mapping;
+    final int op;
+
+    // Canonical vertex and its model space position
+    int vertex;
+    float x;
+    float y;
+    float z;
+    PVector before;
+    PVector after;
+
+    int faceIndex;
+    boolean maskBefore;
+    boolean maskAfter;
+
+    PointCorrespondences cleared;
+
+    private Edit(MappedShape shape, Mapping mapping, int op) {
+      this.shape = shape;
+      this.mapping = mapping;
+      this.op = op;
+    }
+
+    static Edit point(MappedShape shape, Mapping mapping, int vertex, PVector before, PVector after) {
+      MeshData mesh = shape.getMeshData();
+      Edit edit = new Edit(shape, mapping, after == null ? OP_REMOVE : OP_PUT);
+      edit.vertex = mesh.getCanonicalVertex(vertex);
+      edit.x = mesh.getVertexX(edit.vertex);
+      edit.y = mesh.getVertexY(edit.vertex);
+      edit.z = mesh.getVertexZ(edit.vertex);
+      edit.before = before;
+      edit.after = after;
+      return edit;
+    }
+
+    static Edit faceMask(MappedShape shape, Mapping mapping, int faceIndex, boolean before, boolean after) {
+      Edit edit = new Edit(shape, mapping, OP_FACE_MASK);
+      edit.faceIndex = faceIndex;
+      edit.maskBefore = before;
+      edit.maskAfter = after;
+      return edit;
+    }
+
+    static Edit clear(MappedShape shape, Mapping mapping, PointCorrespondences before) {
+      Edit edit = new Edit(shape, mapping, OP_CLEAR);
+      edit.cleared = before;
+      return edit;
+    }
+
+    void revert(EditJournal journal) {
+      switch (op) {
+        case OP_PUT:
+        case OP_REMOVE:
+          if (before != null) {
+            journal.applyPut(shape, mapping, vertex, x, y, z, before.x, before.y);
+          } else {
+            journal.applyRemove(shape, mapping, vertex, x, y, z);
+          }
+          break;
+        case OP_FACE_MASK:
+          journal.applyFaceMask(shape, mapping, faceIndex, maskBefore);
+          break;
+        case OP_CLEAR:
+          for (int i = 0; i < cleared.size(); i++) {
+            journal.applyPut(
+                shape,
+                mapping,
+                cleared.getVertex(i),
+                cleared.getModelX(i),
+                cleared.getModelY(i),
+                cleared.getModelZ(i),
+                cleared.getImageX(i),
+                cleared.getImageY(i));
+          }
+          break;
+      }
+    }
+
+    void reapply(EditJournal journal) {
+      switch (op) {
+        case OP_PUT:
+          journal.applyPut(shape, mapping, vertex, x, y, z, after.x, after.y);
+          break;
+        case OP_REMOVE:
+          journal.applyRemove(shape, mapping, vertex, x, y, z);
+          break;
+        case OP_FACE_MASK:
+          journal.applyFaceMask(shape, mapping, faceIndex, maskAfter);
+          break;
+        case OP_CLEAR:
+          journal.applyClear(shape, mapping);
+          break;
+      }
+    }
+  }
+}
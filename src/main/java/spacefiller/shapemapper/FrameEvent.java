@@ -0,0 +1,72 @@
+package spacefiller.shapemapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Java Flight Recorder event for one frame of ShapeMapper.draw(), emitted by FrameProfiler.
+// Only loaded once JFR events are turned on, so the library still runs on a JVM without JFR.
+@Name("spacefiller.shapemapper.Frame")
+@Label("ShapeMapper Frame")
+@Description("Time spent in each phase of ShapeMapper.draw()")
+@Category("ShapeMapper")
+@StackTrace(false)
+class FrameEvent extends Event {
+  @Label("Persistence")
+  @Timespan
+  long persistence;
+
+  @Label("Shape Render")
+  @Timespan
+  long shapeRender;
+
+  @Label("Composite")
+  @Timespan
+  long composite;
+
+  @Label("Picking")
+  @Timespan
+  long picking;
+
+  @Label("Point Overlay")
+  @Timespan
+  long pointOverlay;
+
+  @Label("Projection Render")
+  @Timespan
+  long projectionRender;
+
+  @Label("GUI")
+  @Timespan
+  long gui;
+
+  // Returns a started event, or null if no recording wants it.
+  static FrameEvent start() {
+    FrameEvent event = new FrameEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  // `durations` is indexed by FrameProfiler.Phase ordinal.
+  void commitFrame(long[] durations) {
+    end();
+    if (!shouldCommit()) {
+      return;
+    }
+    persistence = durations[FrameProfiler.Phase.PERSISTENCE.ordinal()];
+    shapeRender = durations[FrameProfiler.Phase.SHAPE_RENDER.ordinal()];
+    composite = durations[FrameProfiler.Phase.COMPOSITE.ordinal()];
+    picking = durations[FrameProfiler.Phase.PICKING.ordinal()];
+    pointOverlay = durations[FrameProfiler.Phase.POINT_OVERLAY.ordinal()];
+    projectionRender = durations[FrameProfiler.Phase.PROJECTION_RENDER.ordinal()];
+    gui = durations[FrameProfiler.Phase.GUI.ordinal()];
+    commit();
+  }
+}
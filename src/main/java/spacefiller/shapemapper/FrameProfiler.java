@@ -0,0 +1,303 @@
+package spacefiller.shapemapper;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long each phase of {@link ShapeMapper#draw()} takes.
+ *
+ * <p>
+ * Every phase keeps a histogram of its durations in nanoseconds, with eight buckets per
+ * power of two (so a percentile is accurate to within about 12%), along with the count, total,
+ * maximum and most recent duration. Recording a sample only reads the clock and increments a
+ * few counters, and never allocates, so profiling is on by default and cheap enough to leave
+ * on.
+ * </p>
+ *
+ * <p>
+ * Durations are measured on the CPU. Processing renders asynchronously, so GPU work shows up
+ * in whichever phase ends up waiting on it, usually the one that calls endDraw() or image().
+ * The projection canvas is only rendered on frames where a mapping has changed, so
+ * {@link Phase#PROJECTION_RENDER} usually has far fewer samples than {@link Phase#FRAME}.
+ * </p>
+ *
+ * <p>
+ * Samples are recorded on the animation thread and the statistics are not synchronized, so
+ * read them from the sketch (e.g. in draw()).
+ * </p>
+ *
+ * <p>
+ * With {@link #setJfrEnabled(boolean)}, each frame is also committed as a
+ * "spacefiller.shapemapper.Frame" Java Flight Recorder event carrying the duration of every
+ * phase, so frames can be lined up with GC pauses and other events in a recording.
+ * </p>
+ */
+public class FrameProfiler {
+  /**
+   * The phases of a frame.
+   */
+  public enum Phase {
+    /** The whole of ShapeMapper.draw(). */
+    FRAME,
+    /** Snapshotting calibration data for saving. */
+    PERSISTENCE,
+    /** Rendering the selected shape into the model space canvas. */
+    SHAPE_RENDER,
+    /** Drawing the rendered canvases to the screen, including the full screen shader. */
+    COMPOSITE,
+    /** Finding the vertex, mapped point or face under the mouse. */
+    PICKING,
+    /** Drawing mapped points, the hovered point or face, the selected point and the cross hairs. */
+    POINT_OVERLAY,
+    /** Rendering every mapping into the projection canvas, when it is out of date. */
+    PROJECTION_RENDER,
+    /** Drawing the GUI. */
+    GUI
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  // Eight buckets per power of two, up to Long.MAX_VALUE. Values below 8 get a bucket each.
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final long[][] histograms = new long[PHASES.length][BUCKETS];
+  private final long[] counts = new long[PHASES.length];
+  private final long[] totals = new long[PHASES.length];
+  private final long[] maximums = new long[PHASES.length];
+  private final long[] latest = new long[PHASES.length];
+  private final long[] starts = new long[PHASES.length];
+  // Phases that have begun and not yet ended
+  private final boolean[] open = new boolean[PHASES.length];
+
+  // Durations within the current frame, for the JFR event
+  private final long[] frameDurations = new long[PHASES.length];
+
+  private boolean enabled = true;
+  private boolean jfrEnabled;
+  private FrameEvent frameEvent;
+
+  /**
+   * Turn timing on or off. While off, {@link #begin(Phase)} and {@link #end(Phase)} do nothing.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Also emit a Java Flight Recorder event for every frame. The event is only recorded while a
+   * recording that enables it is running, e.g. one started with -XX:StartFlightRecording.
+   * Does nothing if the JVM doesn't include JFR.
+   */
+  public void setJfrEnabled(boolean jfrEnabled) {
+    if (jfrEnabled) {
+      try {
+        Class.forName("jdk.jfr.Event");
+      } catch (ClassNotFoundException | LinkageError e) {
+        System.out.println("ShapeMapper: Java Flight Recorder is not available; not emitting frame events.");
+        return;
+      }
+    }
+    this.jfrEnabled = jfrEnabled;
+    this.frameEvent = null;
+  }
+
+  public boolean isJfrEnabled() {
+    return jfrEnabled;
+  }
+
+  /**
+   * Mark the start of a phase.
+   */
+  public void begin(Phase phase) {
+    if (!enabled) {
+      return;
+    }
+
+    if (phase == Phase.FRAME) {
+      Arrays.fill(frameDurations, 0);
+      Arrays.fill(open, false);
+      if (jfrEnabled) {
+        frameEvent = FrameEvent.start();
+      }
+    }
+    starts[phase.ordinal()] = System.nanoTime();
+    open[phase.ordinal()] = true;
+  }
+
+  /**
+   * Mark the end of a phase and record its duration. A phase that runs more than once in a
+   * frame is recorded once per run. Ending {@link Phase#FRAME} also ends any phase that is still
+   * open, e.g. because an exception skipped its end.
+   */
+  public void end(Phase phase) {
+    if (!enabled) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    if (phase == Phase.FRAME) {
+      for (int i = 0; i < PHASES.length; i++) {
+        if (open[i] && i != phase.ordinal()) {
+          endAt(i, now);
+        }
+      }
+    }
+    endAt(phase.ordinal(), now);
+
+    if (phase == Phase.FRAME && frameEvent != null) {
+      frameEvent.commitFrame(frameDurations);
+      frameEvent = null;
+    }
+  }
+
+  private void endAt(int index, long now) {
+    long duration = now - starts[index];
+    record(index, duration);
+    frameDurations[index] += duration;
+    open[index] = false;
+  }
+
+  /**
+   * Clear all recorded samples.
+   */
+  public void reset() {
+    for (long[] histogram : histograms) {
+      Arrays.fill(histogram, 0);
+    }
+    Arrays.fill(counts, 0);
+    Arrays.fill(totals, 0);
+    Arrays.fill(maximums, 0);
+    Arrays.fill(latest, 0);
+  }
+
+  /**
+   * @return Number of samples recorded for the phase.
+   */
+  public long getCount(Phase phase) {
+    return counts[phase.ordinal()];
+  }
+
+  /**
+   * @return Duration of the most recent sample of the phase, in nanoseconds.
+   */
+  public long getLastNanos(Phase phase) {
+    return latest[phase.ordinal()];
+  }
+
+  /**
+   * @return Longest sample of the phase, in nanoseconds.
+   */
+  public long getMaxNanos(Phase phase) {
+    return maximums[phase.ordinal()];
+  }
+
+  /**
+   * @return Mean duration of the phase, in nanoseconds.
+   */
+  public double getMeanNanos(Phase phase) {
+    int index = phase.ordinal();
+    return counts[index] == 0 ? 0 : (double) totals[index] / counts[index];
+  }
+
+  /**
+   * @param percentile Between 0 and 100, e.g. 99 for the 99th percentile.
+   * @return Upper bound of the histogram bucket holding the percentile, in nanoseconds.
+   */
+  public long getPercentileNanos(Phase phase, double percentile) {
+    int index = phase.ordinal();
+    long count = counts[index];
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long[] histogram = histograms[index];
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += histogram[bucket];
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(bucket), maximums[index]);
+      }
+    }
+    return maximums[index];
+  }
+
+  /**
+   * Copy the histogram of a phase into `counts`, which must have room for
+   * {@link #getBucketCount()} values. Bucket i counts the samples between
+   * {@link #getBucketLowerBound(int)} of i and of i + 1.
+   */
+  public void getHistogram(Phase phase, long[] counts) {
+    System.arraycopy(histograms[phase.ordinal()], 0, counts, 0, BUCKETS);
+  }
+
+  public static int getBucketCount() {
+    return BUCKETS;
+  }
+
+  /**
+   * @return The smallest duration, in nanoseconds, that falls into the bucket.
+   */
+  public static long getBucketLowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+    return mantissa << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /**
+   * @return A one line summary of the mean, 99th percentile and maximum of each phase, in
+   * milliseconds.
+   */
+  public String summary() {
+    StringBuilder builder = new StringBuilder();
+    for (Phase phase : PHASES) {
+      if (getCount(phase) == 0) {
+        continue;
+      }
+      if (builder.length() > 0) {
+        builder.append("  ");
+      }
+      builder.append(String.format(
+          "%s %.2f/%.2f/%.2fms",
+          phase.name().toLowerCase(),
+          getMeanNanos(phase) / 1e6,
+          getPercentileNanos(phase, 99) / 1e6,
+          getMaxNanos(phase) / 1e6));
+    }
+    return builder.toString();
+  }
+
+  private void record(int index, long duration) {
+    if (duration < 0) {
+      duration = 0;
+    }
+    histograms[index][bucketOf(duration)]++;
+    counts[index]++;
+    totals[index] += duration;
+    latest[index] = duration;
+    if (duration > maximums[index]) {
+      maximums[index] = duration;
+    }
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+  }
+
+  private static long bucketUpperBound(int bucket) {
+    return bucket + 1 < BUCKETS ? getBucketLowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+  }
+}
@@ -4,24 +4,39 @@ import processing.core.PApplet;
 import processing.core.PShape;
 import processing.core.PVector;
 import processing.opengl.PGraphics3D;
-import spacefiller.shapemapper.utils.ShapeUtils;
+import spacefiller.shapemapper.utils.FaceLabels;
+import spacefiller.shapemapper.utils.FaceMetadata;
+import spacefiller.shapemapper.utils.MeshData;
+import spacefiller.shapemapper.utils.ScreenSpaceIndex;
+import spacefiller.shapemapper.utils.TriangleBVH;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import static spacefiller.shapemapper.utils.GeometryUtils.getClosestPointOnShape;
-
 /**
  * A mapped shape represents a shape and all attached mappings. If the user is only
  * mapping with a single projector, then there will only ever be a single attached mapping
  * per MappedShape.
  */
 public class MappedShape implements Serializable {
+  // Keeps legacy calibration files, written with Java serialization, readable. See Mapping.
+  private static final long serialVersionUID = 1590828161025865595L;
+
   private transient PApplet parent;
   private transient PGraphics3D parentGraphics;
+  // Geometry shared by the views below, the picking indices, the face metadata and the
+  // mappings' face masks
+  private transient MeshData mesh;
+  // Views of the mesh, built the first time they are needed
   private transient PShape shape;
   private transient PShape internalCopy;
+  private transient ScreenSpaceIndex vertexIndex;
+  private transient TriangleBVH faceHierarchy;
+  private transient FaceMetadata faces;
+  private transient FaceLabels faceLabels;
+  // Bumped when the set of mappings changes
+  private transient long version;
 
   private String name;
   private List<Mapping> mappings;
@@ -37,29 +52,37 @@ public class MappedShape implements Serializable {
       System.out.println("ModelMapper:   size(500, 500, P3D)");
     }
 
-    // Make a clean copy of the shape so that client modifications don't trickle down
-    // into this shape.
-    this.shape = ShapeUtils.createShape(parent, shape);
-
-    // For some reason, drawing `this.shape` changes its state such that the user can no
-    // longer call shape(...) on it. We draw a debug copy instead to keep it isolated.
-    this.internalCopy = ShapeUtils.createShape(parent, shape);
+    // Make a clean copy of the shape's geometry so that client modifications don't trickle
+    // down into this shape.
+    this.mesh = MeshData.of(parent, shape);
+    this.faces = new FaceMetadata(mesh);
 
     this.mappings = new ArrayList<>();
   }
 
+  // Used when loading saved calibration data, which only carries the name and mappings.
+  MappedShape(String name, List<Mapping> mappings) {
+    this.name = name;
+    this.mappings = mappings;
+  }
+
+  // The transforms of the new mappings are solved in the background, in parallel with any
+  // other solves. Use CalibrationExecutor.awaitIdle() to wait for them.
   protected void setMappingsFromModel(MappedShape from) {
     mappings = new ArrayList<>();
     for (Mapping otherMapping : from.getMappings()) {
-      Mapping m = new Mapping(parent, parentGraphics, internalCopy);
-      m.setFromOtherMapping(otherMapping);
+      Mapping m = new Mapping(parent, parentGraphics, mesh);
+      m.copyFrom(otherMapping);
+      m.requestTransform();
       mappings.add(m);
     }
+    version = Mapping.nextVersion();
   }
 
   public void createMapping() {
-    Mapping m = new Mapping(parent, parentGraphics, internalCopy);
+    Mapping m = new Mapping(parent, parentGraphics, mesh);
     mappings.add(m);
+    version = Mapping.nextVersion();
   }
 
   public List<Mapping> getMappings() {
@@ -74,17 +97,98 @@ public class MappedShape implements Serializable {
     return mappings.size();
   }
 
+  /**
+   * @return A stamp that changes whenever a mapping is added or replaced, or whenever any
+   * mapping's transform or face mask changes. See {@link Mapping#getVersion()}.
+   */
+  public long getVersion() {
+    long latest = version;
+    for (Mapping mapping : mappings) {
+      latest = Math.max(latest, mapping.getVersion());
+    }
+    return latest;
+  }
+
   public PShape getShape() {
+    if (shape == null) {
+      shape = mesh.createShape(parent);
+    }
     return shape;
   }
 
+  MeshData getMeshData() {
+    return mesh;
+  }
+
   public void draw(PGraphics3D canvas) {
+    // For some reason, drawing `this.shape` changes its state such that the user can no
+    // longer call shape(...) on it. We draw a debug copy instead to keep it isolated.
+    if (internalCopy == null) {
+      internalCopy = mesh.createShape(parent);
+    }
     this.internalCopy.disableStyle();
     canvas.shape(this.internalCopy);
   }
 
   public PVector getClosestPointTo(PVector mouse, PGraphics3D modelCanvas) {
-    return getClosestPointOnShape(mouse, shape, modelCanvas);
+    int vertex = getClosestVertexTo(mouse, modelCanvas);
+    return vertex < 0 ? null : getVertex(vertex);
+  }
+
+  /**
+   * Find the vertex under the passed point, which is given in the screen coordinates of the
+   * passed canvas.
+   * @param mouse
+   * @param modelCanvas
+   * @return Index of the vertex nearest to the camera under the point, or -1 if none. Of
+   * several vertices at the same position, the lowest index is returned.
+   */
+  public int getClosestVertexTo(PVector mouse, PGraphics3D modelCanvas) {
+    if (vertexIndex == null) {
+      vertexIndex = new ScreenSpaceIndex(mesh);
+    }
+    int vertex = vertexIndex.getClosestVertex(mouse, modelCanvas);
+    return vertex < 0 ? -1 : mesh.getCanonicalVertex(vertex);
+  }
+
+  /**
+   * @param vertex
+   * @return Model space position of the vertex.
+   */
+  public PVector getVertex(int vertex) {
+    return new PVector(mesh.getVertexX(vertex), mesh.getVertexY(vertex), mesh.getVertexZ(vertex));
+  }
+
+  /**
+   * Find the face under the passed point, which is given in the screen coordinates of the
+   * passed canvas. The canvas must currently have a mapping applied to it.
+   * @param mouse
+   * @param canvas
+   * @return Index of the child shape nearest to the camera under the point, or -1 if none.
+   */
+  public int pickFace(PVector mouse, PGraphics3D canvas) {
+    if (faceHierarchy == null) {
+      faceHierarchy = new TriangleBVH(mesh);
+    }
+    return faceHierarchy.pick(mouse, canvas);
+  }
+
+  /**
+   * @return Centroids, normals and label placement of each face of the shape.
+   */
+  public FaceMetadata getFaceMetadata() {
+    return faces;
+  }
+
+  /**
+   * Draw the index of each face next to it, in a single draw call.
+   * @param canvas
+   */
+  public void drawFaceLabels(PGraphics3D canvas) {
+    if (faceLabels == null) {
+      faceLabels = new FaceLabels(parent, faces);
+    }
+    faceLabels.draw(canvas);
   }
 
   public String getName() {
@@ -6,75 +6,405 @@ import processing.core.PShape;
 import processing.core.PVector;
 import processing.opengl.PGraphics3D;
 import spacefiller.peasy.CameraState;
+import spacefiller.shapemapper.utils.CalibrationResult;
 import spacefiller.shapemapper.utils.CalibrationUtils;
+import spacefiller.shapemapper.utils.CameraSolution;
+import spacefiller.shapemapper.utils.MeshData;
+import spacefiller.shapemapper.utils.PointKDTree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
-import static spacefiller.shapemapper.utils.GeometryUtils.getClosestPointByMappedPoint;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a specific mapping of a shape via a projector. Each shape + projector
  * combination will have a separate Mapping.
  *
  * <p>
- * The mapping stores a set of points from model space mapped to a set of points in
- * projection space. It is from this mapping that the estimated projection is computed.
+ * The mapping stores a set of vertices of the model mapped to a set of points in projection
+ * space. It is from this mapping that the estimated projection is computed. Vertices are
+ * identified by their index in the shape (the first index of each distinct position, when
+ * faces share corners).
  * </p>
  */
 public class Mapping implements Serializable {
+  // Legacy calibration files were written with Java serialization before these were pinned,
+  // so they keep the values computed for the original class. The face mask is still
+  // serialized as a Map<Integer, Boolean> for the same reason.
+  private static final long serialVersionUID = -4859658614122519442L;
+  private static final ObjectStreamField[] serialPersistentFields = {
+      new ObjectStreamField("points", Map.class),
+      new ObjectStreamField("faceMask", Map.class)
+  };
+
+  // Source of version stamps. Stamps are unique across all mappings and shapes, so the
+  // largest stamp of a group of mappings changes whenever any one of them changes.
+  private static final AtomicLong versions = new AtomicLong();
+
   private transient PGraphics3D parentGraphics;
   private transient PApplet parent;
-  private transient GraphicsTransform transform;
+  private transient volatile GraphicsTransform transform;
+  // The transform applied by the last call to beginMapping. Transforms are published from
+  // the calibration thread, so endMapping must undo exactly what beginMapping applied.
+  private transient GraphicsTransform activeTransform;
+  // The camera solution behind `transform`, used to warm start the next solve
+  private transient volatile CameraSolution solution;
+  // The outcome of the last solve, including its per point residuals
+  private transient volatile CalibrationResult calibrationResult;
   private transient CameraState cameraState;
-  private transient PShape shape;
+  private transient MeshData mesh;
+  // Spatial index over the projection space points, keyed by vertex. Built lazily since
+  // mappings can be created through deserialization.
+  private transient PointKDTree projectedIndex;
+  private transient volatile long transformVersion;
+  private transient volatile long maskVersion;
+  // All masked faces merged into one shape, so the mask is drawn with a single shape() call.
+  // Rebuilt when the mask version changes.
+  private transient PShape maskShape;
+  private transient long maskShapeVersion = -1;
 
-  private Map<PVector, PVector> points;
-  private Map<Integer, Boolean> faceMask;
+  private transient PointCorrespondences points;
+  private transient BitSet faceMask;
+  private transient int faceCount;
 
   // TODO: this class should also include a projection bounds
   // when calibrating and drawing, all points should be relative to the projection bounds
 
   public Mapping(PApplet parent, PGraphics3D parentGraphics, PShape shape) {
+    this(parent, parentGraphics, MeshData.of(parent, shape));
+  }
+
+  Mapping(PApplet parent, PGraphics3D parentGraphics, MeshData mesh) {
     this.parent = parent;
     this.parentGraphics = parentGraphics;
-    this.points = new HashMap<>();
+    this.points = new PointCorrespondences();
     this.transform = new GraphicsTransform();
-    this.faceMask = new HashMap<>();
-    this.shape = shape;
+    this.mesh = mesh;
+    this.faceCount = mesh.getFaceCount();
+    this.faceMask = new BitSet(faceCount);
+  }
 
-    for (int i = 0; i < shape.getChildCount(); i++) {
-      faceMask.put(i, false);
-    }
+  // Used when loading saved calibration data, which is only ever copied into a live mapping
+  // with setFromOtherMapping.
+  Mapping(PointCorrespondences points, BitSet faceMaskBits, int faceCount) {
+    this.points = points;
+    this.faceMask = faceMaskBits;
+    this.faceCount = faceCount;
   }
 
+  /**
+   * Map a vertex of the shape to a point in projection space.
+   * @param vertex Index of the vertex in the shape
+   * @param x
+   * @param y
+   */
+  public void put(int vertex, float x, float y) {
+    vertex = canonical(vertex);
+    put(vertex, mesh.getVertexX(vertex), mesh.getVertexY(vertex), mesh.getVertexZ(vertex), x, y);
+  }
+
+  /**
+   * Map a point of the shape to a point in projection space.
+   * @param from Point in model space, which is moved to the nearest vertex of the shape
+   * @param to Point in projection space
+   * @deprecated use {@link #put(int, float, float)}
+   */
+  @Deprecated
   public void put(PVector from, PVector to) {
-    this.points.put(from, to);
-    computeTransform();
+    int vertex = mesh.findNearestVertex(from.x, from.y, from.z);
+    if (vertex >= 0) {
+      put(vertex, to.x, to.y);
+    }
   }
 
+  // Slot of the point whose model space position is `position`, for the deprecated methods
+  // that identify points by position.
+  private int slotAt(PVector position) {
+    int vertex = -1;
+    if (mesh != null) {
+      vertex = mesh.findNearestVertex(position.x, position.y, position.z);
+      if (vertex >= 0
+          && !PointCorrespondences.isSamePosition(mesh, vertex, position.x, position.y, position.z)) {
+        vertex = -1;
+      }
+    }
+    return points.find(vertex, position.x, position.y, position.z);
+  }
+
+  // Model space position of the point in `slot`
+  private PVector modelPoint(int slot) {
+    return new PVector(points.getModelX(slot), points.getModelY(slot), points.getModelZ(slot));
+  }
+
+  // Vertices at the same position share one point, keyed by the first of them. Mappings
+  // loaded from disk have no mesh, and are only ever passed canonical vertices.
+  private int canonical(int vertex) {
+    return mesh == null ? vertex : mesh.getCanonicalVertex(vertex);
+  }
+
+  // `vertex` must be canonical. The model space position is passed in since mappings loaded
+  // from disk have no mesh.
+  void put(int vertex, float modelX, float modelY, float modelZ, float x, float y) {
+    points.put(vertex, modelX, modelY, modelZ, x, y);
+    if (projectedIndex != null && vertex >= 0) {
+      projectedIndex.put(vertex, x, y);
+    }
+    requestTransform();
+  }
+
+  /**
+   * Recompute the transform on the calling thread, blocking until it is done.
+   */
   public void computeTransform() {
-    transform = CalibrationUtils.calibrate(
-        this.points, parentGraphics.width, parentGraphics.height);
+    int width = parentGraphics.width;
+    int height = parentGraphics.height;
+    CalibrationResult result = points.solve(width, height, solution);
+    publishTransform(CalibrationUtils.toTransform(result.solution, width, height), result);
+  }
+
+  /**
+   * Recompute the transform in the background. The previous transform stays in effect
+   * until the new one is ready.
+   */
+  public void requestTransform() {
+    CalibrationExecutor.getDefault().submit(
+        this, points, parentGraphics.width, parentGraphics.height);
+  }
+
+  void publishTransform(GraphicsTransform transform, CalibrationResult result) {
+    this.transform = transform;
+    this.calibrationResult = result;
+    if (result.solution != null) {
+      this.solution = result.solution;
+    }
+    transformVersion = nextVersion();
+  }
+
+  static long nextVersion() {
+    return versions.incrementAndGet();
   }
 
+  /**
+   * @return A stamp that changes every time a new transform is published.
+   */
+  public long getTransformVersion() {
+    return transformVersion;
+  }
+
+  /**
+   * @return A stamp that changes every time the face mask changes.
+   */
+  public long getMaskVersion() {
+    return maskVersion;
+  }
+
+  /**
+   * @return A stamp that changes whenever anything that affects how the mapping is rendered
+   * changes, i.e. the larger of {@link #getTransformVersion()} and {@link #getMaskVersion()}.
+   */
+  public long getVersion() {
+    return Math.max(transformVersion, maskVersion);
+  }
+
+  /**
+   * @return The camera solution behind the current transform, or null if the mapping has not
+   * been calibrated yet.
+   */
+  public CameraSolution getCameraSolution() {
+    return solution;
+  }
+
+  /**
+   * @return The outcome of the last solve: its RMS error, the residual of every point and how
+   * long it took. Null until the mapping has been solved once.
+   */
+  public CalibrationResult getCalibrationResult() {
+    return calibrationResult;
+  }
+
+  /**
+   * @return The vertices whose points the last solve rejected as outliers. Always empty unless
+   * a robust method is set with
+   * {@link CalibrationUtils#setRobustMethod(spacefiller.shapemapper.utils.RobustCalibrationBackend.Method)}.
+   */
+  public int[] getOutliers() {
+    CalibrationResult result = calibrationResult;
+    if (result == null || result.outlierCount == 0 || result.ids == null) {
+      return new int[0];
+    }
+
+    int[] outliers = new int[result.outlierCount];
+    int count = 0;
+    for (int i = 0; i < result.size(); i++) {
+      if (result.outliers[i] && points.slotOf(result.ids[i]) >= 0) {
+        outliers[count++] = result.ids[i];
+      }
+    }
+    return Arrays.copyOf(outliers, count);
+  }
+
+  /**
+   * Remove the point mapped to a vertex, if there is one.
+   * @param vertex Index of the vertex in the shape
+   */
+  public void remove(int vertex) {
+    vertex = canonical(vertex);
+    int slot = points.slotOf(vertex);
+    if (slot < 0) {
+      return;
+    }
+    points.removeSlot(slot);
+    if (projectedIndex != null) {
+      projectedIndex.remove(vertex);
+    }
+    requestTransform();
+  }
+
+  /**
+   * Remove the point mapped to a model space point, if there is one.
+   * @param from Point in model space
+   * @deprecated use {@link #remove(int)}
+   */
+  @Deprecated
   public void remove(PVector from) {
-    this.points.remove(from);
-    computeTransform();
+    int slot = slotAt(from);
+    if (slot < 0) {
+      return;
+    }
+    int vertex = points.getVertex(slot);
+    if (vertex >= 0) {
+      remove(vertex);
+    } else {
+      points.removeSlot(slot);
+      projectedIndex = null;
+      requestTransform();
+    }
   }
 
+  /**
+   * @return The vertices that have been mapped.
+   */
+  public int[] getMappedVertices() {
+    int[] vertices = new int[points.size()];
+    for (int i = 0; i < vertices.length; i++) {
+      vertices[i] = points.getVertex(i);
+    }
+    return vertices;
+  }
+
+  /**
+   * @return The model space positions of the points that have been mapped.
+   * @deprecated use {@link #getMappedVertices()}
+   */
+  @Deprecated
   public Set<PVector> getMappedPoints() {
-    return points.keySet();
+    Set<PVector> mapped = new HashSet<>();
+    for (int i = 0; i < points.size(); i++) {
+      mapped.add(modelPoint(i));
+    }
+    return mapped;
+  }
+
+  public int getPointCount() {
+    return points.size();
+  }
+
+  public boolean isMapped(int vertex) {
+    return points.slotOf(canonical(vertex)) >= 0;
+  }
+
+  /**
+   * @param vertex Index of the vertex in the shape
+   * @return The point in projection space the vertex is mapped to, or null if it isn't mapped.
+   */
+  public PVector get(int vertex) {
+    int slot = points.slotOf(canonical(vertex));
+    if (slot < 0) {
+      return null;
+    }
+    return new PVector(points.getImageX(slot), points.getImageY(slot));
   }
 
+  /**
+   * @param key Point in model space
+   * @return The point in projection space the model space point is mapped to, or null if it
+   * isn't mapped.
+   * @deprecated use {@link #get(int)}
+   */
+  @Deprecated
   public PVector get(PVector key) {
-    return points.get(key);
+    int slot = slotAt(key);
+    if (slot < 0) {
+      return null;
+    }
+    return new PVector(points.getImageX(slot), points.getImageY(slot));
+  }
+
+  // Direct access to the points, bypassing the transform solve and the projected index. Used
+  // when saving, and when replaying journaled edits onto loaded calibration data.
+  PointCorrespondences getCorrespondences() {
+    return points;
+  }
+
+  /**
+   * Find the mapped vertex whose projection space position is nearest to the passed point.
+   * @param query Point in projection space
+   * @return The vertex, or -1 if no mapped point is within 10 pixels.
+   */
+  public int getClosestMappedVertexTo(PVector query) {
+    return getClosestMappedVertexTo(query, 10);
+  }
+
+  /**
+   * Find the mapped vertex whose projection space position is nearest to the passed point.
+   * @param query Point in projection space
+   * @param radius Maximum distance in pixels
+   * @return The vertex, or -1 if no mapped point is within the radius.
+   */
+  public int getClosestMappedVertexTo(PVector query, float radius) {
+    if (projectedIndex == null) {
+      projectedIndex = new PointKDTree();
+      for (int i = 0; i < points.size(); i++) {
+        // Points loaded without a vertex can't be picked until they are remapped to one
+        if (points.getVertex(i) >= 0) {
+          projectedIndex.put(points.getVertex(i), points.getImageX(i), points.getImageY(i));
+        }
+      }
+    }
+    return projectedIndex.nearest(query.x, query.y, radius);
   }
 
+  /**
+   * Find the mapped point whose projection space position is nearest to the passed point.
+   * @param query Point in projection space
+   * @return The model space point, or null if no mapped point is within 10 pixels.
+   * @deprecated use {@link #getClosestMappedVertexTo(PVector)}
+   */
+  @Deprecated
   public PVector getClosestMappedPointTo(PVector query) {
-    return getClosestPointByMappedPoint(query, points);
+    return getClosestMappedPointTo(query, 10);
+  }
+
+  /**
+   * Find the mapped point whose projection space position is nearest to the passed point.
+   * @param query Point in projection space
+   * @param radius Maximum distance in pixels
+   * @return The model space point, or null if no mapped point is within the radius.
+   * @deprecated use {@link #getClosestMappedVertexTo(PVector, float)}
+   */
+  @Deprecated
+  public PVector getClosestMappedPointTo(PVector query, float radius) {
+    int vertex = getClosestMappedVertexTo(query, radius);
+    return vertex < 0 ? null : modelPoint(points.slotOf(vertex));
   }
 
   public boolean isReady() {
@@ -90,14 +420,17 @@ public class Mapping implements Serializable {
   }
 
   public void beginMapping(PGraphics3D graphics) {
-    if (isReady()) {
+    GraphicsTransform current = transform;
+    if (current.isReady()) {
+      activeTransform = current;
+
       graphics.pushMatrix();
       graphics.pushProjection();
 
       graphics.resetMatrix();
-      graphics.setProjection(transform.projectionMatrix);
+      graphics.setProjection(current.projectionMatrix);
       graphics.camera(0, 0, 0, 0, 0, 1, 0, -1, 0);
-      graphics.applyMatrix(transform.modelViewMatrix);
+      graphics.applyMatrix(current.modelViewMatrix);
     }
   }
 
@@ -106,7 +439,8 @@ public class Mapping implements Serializable {
   }
 
   public void endMapping(PGraphics3D graphics, boolean drawFaceMask) {
-    if (isReady()) {
+    if (activeTransform != null) {
+      activeTransform = null;
       if (drawFaceMask) {
         graphics.fill(0);
         graphics.stroke(0);
@@ -117,13 +451,41 @@ public class Mapping implements Serializable {
     }
   }
 
+  /**
+   * Take the points and face mask of another mapping, and recompute the transform on the
+   * calling thread, blocking until it is done.
+   */
   public void setFromOtherMapping(Mapping otherMapping) {
-    // TODO: need to copy points?
-    this.points = otherMapping.points;
-    this.faceMask = otherMapping.faceMask;
+    copyFrom(otherMapping);
     computeTransform();
   }
 
+  // Take the points and face mask of another mapping without recomputing the transform, so
+  // that a batch of mappings can be solved together with requestTransform. Points are keyed by
+  // this mapping's vertices, moving them to the nearest vertex if the model has changed since
+  // they were saved.
+  void copyFrom(Mapping otherMapping) {
+    if (mesh != null) {
+      int[] counts = new int[2];
+      this.points = otherMapping.points.remapTo(mesh, counts);
+      if (counts[0] > 0 || counts[1] > 0) {
+        System.out.println("ShapeMapper: The model has changed since it was calibrated. Moved "
+            + counts[0] + " calibration points to the nearest vertex and dropped " + counts[1] + ".");
+      }
+    } else {
+      this.points = otherMapping.points.copy();
+    }
+    // The mask is sized to this mapping's mesh, which may have gained or lost faces since it
+    // was saved. Saving writes faceCount faces, so bits past it must not survive.
+    this.faceCount = mesh != null ? mesh.getFaceCount() : otherMapping.faceCount;
+    this.faceMask = (BitSet) otherMapping.faceMask.clone();
+    this.faceMask.clear(faceCount, Math.max(faceCount, faceMask.length()));
+    this.projectedIndex = null;
+    this.maskVersion = nextVersion();
+    this.solution = otherMapping.solution;
+    this.calibrationResult = otherMapping.calibrationResult;
+  }
+
   public void setCameraState(CameraState state) {
     this.cameraState = state;
   }
@@ -133,25 +495,81 @@ public class Mapping implements Serializable {
   }
 
   public void setFaceMask(int faceIndex, boolean value) {
-    faceMask.put(faceIndex, value);
+    if (faceMask.get(faceIndex) != value) {
+      faceMask.set(faceIndex, value);
+      maskVersion = nextVersion();
+    }
   }
 
   public boolean getFaceMask(int faceIndex) {
     return faceMask.get(faceIndex);
   }
 
+  int getFaceCount() {
+    return faceCount;
+  }
+
+  // Used when replaying journaled edits onto loaded calibration data
+  void extendFaceCount(int count) {
+    faceCount = Math.max(faceCount, count);
+  }
+
+  BitSet getFaceMaskBits() {
+    return (BitSet) faceMask.clone();
+  }
+
   public void drawFaceMask(PGraphics canvas) {
-    for (Integer shapeIndex : faceMask.keySet()) {
-      PShape subshape = shape.getChild(shapeIndex);
-      subshape.disableStyle();
-      if (faceMask.get(shapeIndex)) {
-        canvas.shape(subshape);
+    if (faceMask.isEmpty()) {
+      return;
+    }
+
+    if (maskShape == null || maskShapeVersion != maskVersion) {
+      maskShapeVersion = maskVersion;
+      maskShape = mesh.createShape(parent, faceMask);
+      maskShape.disableStyle();
+    }
+    canvas.shape(maskShape);
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    Map<Integer, Boolean> faceMaskMap = new HashMap<>();
+    for (int i = 0; i < faceCount; i++) {
+      faceMaskMap.put(i, faceMask.get(i));
+    }
+
+    Map<PVector, PVector> pointMap = new HashMap<>();
+    for (int i = 0; i < points.size(); i++) {
+      pointMap.put(
+          new PVector(points.getModelX(i), points.getModelY(i), points.getModelZ(i)),
+          new PVector(points.getImageX(i), points.getImageY(i)));
+    }
+
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("points", pointMap);
+    fields.put("faceMask", faceMaskMap);
+    out.writeFields();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    points = PointCorrespondences.fromMap((Map<PVector, PVector>) fields.get("points", null));
+
+    Map<Integer, Boolean> faceMaskMap = (Map<Integer, Boolean>) fields.get("faceMask", null);
+    faceMask = new BitSet();
+    faceCount = faceMaskMap.size();
+    for (Map.Entry<Integer, Boolean> entry : faceMaskMap.entrySet()) {
+      if (entry.getValue()) {
+        faceMask.set(entry.getKey());
       }
     }
   }
 
   public void clear() {
     points.clear();
-    computeTransform();
+    if (projectedIndex != null) {
+      projectedIndex.clear();
+    }
+    requestTransform();
   }
 }
@@ -0,0 +1,299 @@
+package spacefiller.shapemapper;
+
+import processing.core.PVector;
+import spacefiller.shapemapper.utils.CalibrationResult;
+import spacefiller.shapemapper.utils.CalibrationUtils;
+import spacefiller.shapemapper.utils.CameraSolution;
+import spacefiller.shapemapper.utils.MeshData;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The calibration points of a mapping: which vertex of the model maps to which point in
+ * projection space.
+ *
+ * <p>
+ * Points are keyed by the canonical index of their vertex (see {@link MeshData}) and stored in
+ * parallel arrays, one slot per point, with a table from vertex index to slot. The model space
+ * position of each vertex is stored too. It is what calibration solves, and it lets saved
+ * points be moved to the nearest vertex when the model changes (see {@link #remapTo}).
+ * </p>
+ *
+ * <p>
+ * Points loaded from files written before points were keyed by vertex have a vertex of -1 until
+ * they are remapped. Those are found by their position instead.
+ * </p>
+ */
+class PointCorrespondences {
+  // Largest vertex index accepted from a file. Far more vertices than a model can have and
+  // still be calibrated interactively, it bounds the vertex to slot table at 16MB.
+  static final int MAX_VERTEX = (1 << 22) - 1;
+
+  private static final int INITIAL_CAPACITY = 16;
+  // Positions closer than this, relative to their magnitude, are considered the same vertex
+  private static final float SAME_POSITION_EPSILON = 1e-5f;
+
+  private int size;
+  private int[] vertices = new int[INITIAL_CAPACITY];
+  private float[] modelX = new float[INITIAL_CAPACITY];
+  private float[] modelY = new float[INITIAL_CAPACITY];
+  private float[] modelZ = new float[INITIAL_CAPACITY];
+  private float[] imageX = new float[INITIAL_CAPACITY];
+  private float[] imageY = new float[INITIAL_CAPACITY];
+
+  // Slot of each vertex, or -1. Grows to the largest vertex index seen.
+  private int[] slotOfVertex = new int[0];
+  // Number of points with a vertex of -1
+  private int unkeyedCount;
+
+  static PointCorrespondences fromMap(Map<PVector, PVector> points) {
+    PointCorrespondences correspondences = new PointCorrespondences();
+    for (Map.Entry<PVector, PVector> entry : points.entrySet()) {
+      PVector from = entry.getKey();
+      PVector to = entry.getValue();
+      correspondences.put(-1, from.x, from.y, from.z, to.x, to.y);
+    }
+    return correspondences;
+  }
+
+  // Whether `vertex` read from a file is a vertex index or -1 for an unkeyed point.
+  static boolean isValidVertex(int vertex) {
+    return vertex >= -1 && vertex <= MAX_VERTEX;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int getVertex(int slot) {
+    return vertices[slot];
+  }
+
+  float getModelX(int slot) {
+    return modelX[slot];
+  }
+
+  float getModelY(int slot) {
+    return modelY[slot];
+  }
+
+  float getModelZ(int slot) {
+    return modelZ[slot];
+  }
+
+  float getImageX(int slot) {
+    return imageX[slot];
+  }
+
+  float getImageY(int slot) {
+    return imageY[slot];
+  }
+
+  // Slot of the point for `vertex`, or -1 if the vertex isn't mapped.
+  int slotOf(int vertex) {
+    return vertex >= 0 && vertex < slotOfVertex.length ? slotOfVertex[vertex] : -1;
+  }
+
+  // Slot of the point for `vertex`, or failing that, of the unkeyed point at the passed
+  // position. Returns -1 if there is no such point.
+  int find(int vertex, float x, float y, float z) {
+    int slot = slotOf(vertex);
+    if (slot >= 0 || unkeyedCount == 0) {
+      return slot;
+    }
+    for (int i = 0; i < size; i++) {
+      if (vertices[i] < 0 && modelX[i] == x && modelY[i] == y && modelZ[i] == z) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Map `vertex`, whose model space position is (x, y, z), to (u, v) in projection space.
+  // Returns the slot of the point.
+  int put(int vertex, float x, float y, float z, float u, float v) {
+    int slot = find(vertex, x, y, z);
+    if (slot < 0) {
+      slot = size++;
+      ensureCapacity(size);
+      vertices[slot] = -1;
+      unkeyedCount++;
+    }
+    if (vertex >= 0 && vertices[slot] < 0) {
+      if (vertex >= slotOfVertex.length) {
+        int oldLength = slotOfVertex.length;
+        slotOfVertex = Arrays.copyOf(slotOfVertex, Math.max(vertex + 1, oldLength * 2));
+        Arrays.fill(slotOfVertex, oldLength, slotOfVertex.length, -1);
+      }
+      slotOfVertex[vertex] = slot;
+      vertices[slot] = vertex;
+      unkeyedCount--;
+    }
+    modelX[slot] = x;
+    modelY[slot] = y;
+    modelZ[slot] = z;
+    imageX[slot] = u;
+    imageY[slot] = v;
+    return slot;
+  }
+
+  // Remove the point in `slot`. The last point moves into its slot.
+  void removeSlot(int slot) {
+    if (vertices[slot] >= 0) {
+      slotOfVertex[vertices[slot]] = -1;
+    } else {
+      unkeyedCount--;
+    }
+
+    int last = --size;
+    if (slot != last) {
+      vertices[slot] = vertices[last];
+      modelX[slot] = modelX[last];
+      modelY[slot] = modelY[last];
+      modelZ[slot] = modelZ[last];
+      imageX[slot] = imageX[last];
+      imageY[slot] = imageY[last];
+      if (vertices[slot] >= 0) {
+        slotOfVertex[vertices[slot]] = slot;
+      }
+    }
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      if (vertices[i] >= 0) {
+        slotOfVertex[vertices[i]] = -1;
+      }
+    }
+    size = 0;
+    unkeyedCount = 0;
+  }
+
+  PointCorrespondences copy() {
+    PointCorrespondences copy = new PointCorrespondences();
+    copy.size = size;
+    copy.vertices = Arrays.copyOf(vertices, Math.max(size, 1));
+    copy.modelX = Arrays.copyOf(modelX, Math.max(size, 1));
+    copy.modelY = Arrays.copyOf(modelY, Math.max(size, 1));
+    copy.modelZ = Arrays.copyOf(modelZ, Math.max(size, 1));
+    copy.imageX = Arrays.copyOf(imageX, Math.max(size, 1));
+    copy.imageY = Arrays.copyOf(imageY, Math.max(size, 1));
+    copy.slotOfVertex = slotOfVertex.clone();
+    copy.unkeyedCount = unkeyedCount;
+    return copy;
+  }
+
+  // Key each point by a vertex of `mesh`. A point keeps its vertex if that vertex is still at
+  // the saved position; otherwise it moves to the vertex nearest to the saved position, taking
+  // on that vertex's position. If two points end up on the same vertex, the first one wins.
+  // Returns the points as a new set, and counts the points that moved and were dropped in
+  // `counts`.
+  PointCorrespondences remapTo(MeshData mesh, int[] counts) {
+    PointCorrespondences remapped = new PointCorrespondences();
+    int moved = 0;
+    int dropped = 0;
+
+    for (int i = 0; i < size; i++) {
+      float x = modelX[i];
+      float y = modelY[i];
+      float z = modelZ[i];
+
+      int vertex = vertices[i];
+      if (vertex < 0
+          || vertex >= mesh.getVertexCount()
+          || mesh.getCanonicalVertex(vertex) != vertex
+          || !isSamePosition(mesh, vertex, x, y, z)) {
+        vertex = mesh.findNearestVertex(x, y, z);
+        if (vertex < 0) {
+          dropped++;
+          continue;
+        }
+        if (!isSamePosition(mesh, vertex, x, y, z)) {
+          moved++;
+        }
+      }
+
+      if (remapped.slotOf(vertex) >= 0) {
+        dropped++;
+        continue;
+      }
+      remapped.put(
+          vertex,
+          mesh.getVertexX(vertex),
+          mesh.getVertexY(vertex),
+          mesh.getVertexZ(vertex),
+          imageX[i],
+          imageY[i]);
+    }
+
+    counts[0] = moved;
+    counts[1] = dropped;
+    return remapped;
+  }
+
+  static boolean isSamePosition(MeshData mesh, int vertex, float x, float y, float z) {
+    float dx = mesh.getVertexX(vertex) - x;
+    float dy = mesh.getVertexY(vertex) - y;
+    float dz = mesh.getVertexZ(vertex) - z;
+    float scale = Math.max(1, Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z))));
+    float epsilon = SAME_POSITION_EPSILON * scale;
+    return dx * dx + dy * dy + dz * dz <= epsilon * epsilon;
+  }
+
+  // Solve for the camera behind the points.
+  CalibrationResult solve(int width, int height, CameraSolution initialGuess) {
+    return snapshot().solve(width, height, initialGuess);
+  }
+
+  // Copy the points as they are now, for solving on another thread while these keep being
+  // edited. Only the points themselves are copied, not the table from vertex to slot.
+  Snapshot snapshot() {
+    return new Snapshot(
+        Arrays.copyOf(vertices, size),
+        Arrays.copyOf(modelX, size),
+        Arrays.copyOf(modelY, size),
+        Arrays.copyOf(modelZ, size),
+        Arrays.copyOf(imageX, size),
+        Arrays.copyOf(imageY, size));
+  }
+
+  // The points of a PointCorrespondences at one point in time. The arrays are never modified, so
+  // they become part of the solve's result without being copied again.
+  static class Snapshot {
+    private final int[] vertices;
+    private final float[] modelX;
+    private final float[] modelY;
+    private final float[] modelZ;
+    private final float[] imageX;
+    private final float[] imageY;
+
+    private Snapshot(
+        int[] vertices, float[] modelX, float[] modelY, float[] modelZ, float[] imageX, float[] imageY) {
+      this.vertices = vertices;
+      this.modelX = modelX;
+      this.modelY = modelY;
+      this.modelZ = modelZ;
+      this.imageX = imageX;
+      this.imageY = imageY;
+    }
+
+    CalibrationResult solve(int width, int height, CameraSolution initialGuess) {
+      return CalibrationUtils.solveWithResult(
+          vertices, modelX, modelY, modelZ, imageX, imageY, width, height, initialGuess);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= vertices.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, vertices.length * 2);
+    vertices = Arrays.copyOf(vertices, newCapacity);
+    modelX = Arrays.copyOf(modelX, newCapacity);
+    modelY = Arrays.copyOf(modelY, newCapacity);
+    modelZ = Arrays.copyOf(modelZ, newCapacity);
+    imageX = Arrays.copyOf(imageX, newCapacity);
+    imageY = Arrays.copyOf(imageY, newCapacity);
+  }
+}
@@ -3,21 +3,23 @@ package spacefiller.shapemapper;
 import processing.core.*;
 import spacefiller.peasy.CameraState;
 import spacefiller.peasy.PeasyCam;
+import spacefiller.shapemapper.FrameProfiler.Phase;
 import processing.event.KeyEvent;
 import processing.event.MouseEvent;
 import processing.opengl.PGraphics3D;
 import processing.opengl.PShader;
-import spacefiller.shapemapper.utils.GeometryUtils;
-import spacefiller.shapemapper.utils.IOUtils;
-import spacefiller.shapemapper.utils.ShapeUtils;
+import spacefiller.shapemapper.utils.CalibrationCache;
+import spacefiller.shapemapper.utils.CalibrationResult;
+import spacefiller.shapemapper.utils.CalibrationUtils;
+import spacefiller.shapemapper.utils.MeshData;
+import spacefiller.shapemapper.utils.ResourceCache;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import static processing.core.PConstants.*;
 import static spacefiller.shapemapper.utils.GeometryUtils.*;
@@ -28,6 +30,12 @@ import static spacefiller.shapemapper.utils.GeometryUtils.*;
  */
 public class ShapeMapper {
   private static final float UI_CIRCLE_RADIUS = 20;
+  // Residual vectors are scaled up by this much when drawn, since most are only a pixel or two
+  private static final float RESIDUAL_SCALE = 10;
+  private static final int RESIDUAL_COLOR = 0xffff3c3c;
+  private static final String CALIBRATION_FILE = "calibration.bin";
+  private static final String LEGACY_CALIBRATION_FILE = "calibration.ser";
+  private static final String CALIBRATION_CACHE_FILE = "calibration-cache.bin";
 
   private enum Mode {
     CALIBRATE, RENDER
@@ -53,13 +61,44 @@ public class ShapeMapper {
   private CalibrateMode calibrateMode;
   private PeasyCam camera;
 
-  private PVector selectedVertex;
+  // Index of the selected vertex of the current shape, or -1
+  private int selectedVertex = -1;
+
+  private CalibrationWriter calibrationWriter;
+  private EditJournal journal;
+  private final FrameProfiler profiler = new FrameProfiler();
 
   private PShader shapeRenderShader;
   private PShader normalShader;
 
   private int recentlyHoveredSubshapeIndex;
 
+  // Set when saved mappings have been loaded and their transforms are still being solved
+  private boolean awaitingCalibration;
+  private boolean persistCalibrationCache;
+
+  // What the projection canvas was last rendered from
+  private long projectionLayerVersion = -1;
+  private CalibrateMode projectionLayerMode;
+  private Mapping projectionLayerMapping;
+
+  // The GUI is rendered into this layer only when what it shows changes, and drawn over
+  // every frame as a single image. These fields hold what it was last rendered from.
+  private PGraphics guiLayer;
+  private Mode guiLayerMode;
+  private CalibrateMode guiLayerCalibrateMode;
+  private int guiLayerShapeIndex = -1;
+  private int guiLayerMappingIndex = -1;
+  private int guiLayerMappingCount = -1;
+  private int guiLayerEnabledRows = -1;
+  private long guiLayerResultVersion = -1;
+  // First row of the shape list shown, when there are more shapes than fit on screen
+  private int guiShapeScroll;
+
+  private static final int GUI_X = 50;
+  private static final int GUI_Y = 50;
+  // Room around the GUI in its layer for the row borders
+  private static final int GUI_LAYER_MARGIN = 2;
   private static final int GUI_WIDTH = 400;
   private static final int GUI_ROW_HEIGHT = 50;
   private static final int PADDING = 20;
@@ -98,21 +137,31 @@ public class ShapeMapper {
       }
       this.shapeCanvas = (PGraphics3D) parent.createGraphics(parent.width, parent.height, P3D);
       this.projectionCanvas = (PGraphics3D) parent.createGraphics(parent.width, parent.height, P3D);
+      this.guiLayer = parent.createGraphics(
+          GUI_WIDTH + GUI_LAYER_MARGIN * 2,
+          Math.max(parent.height - GUI_Y + GUI_LAYER_MARGIN, GUI_ROW_HEIGHT),
+          P2D);
       this.mode = Mode.RENDER;
       this.calibrateMode = CalibrateMode.SELECT_POINT;
       this.camera = new PeasyCam(parent, shapeCanvas, 400);
 
+      this.parent.registerMethod("pre", this);
       this.parent.registerMethod("draw", this);
       this.parent.registerMethod("mouseEvent", this);
       this.parent.registerMethod("keyEvent", this);
+      this.parent.registerMethod("dispose", this);
 
-      shapeRenderShader = parent.loadShader(IOUtils.extractResourceToFile("/checkers.frag.glsl"));
-      normalShader = parent.loadShader(
-          IOUtils.extractResourceToFile("/normal_shading.frag.glsl"),
-          IOUtils.extractResourceToFile("/normal_shading.vert.glsl"));
+      shapeRenderShader = ResourceCache.getShader(
+          parent, "/texture.vert.glsl", "/checkers.frag.glsl");
+      normalShader = ResourceCache.getShader(
+          parent, "/normal_shading.vert.glsl", "/normal_shading.frag.glsl");
 
       this.shapes = new ArrayList<>();
+      this.calibrationWriter = new CalibrationWriter(
+          parent.dataPath(CALIBRATION_FILE), this::serializeCalibration);
+      loadCalibrationCache();
       loadCalibration();
+      this.journal = new EditJournal(calibrationWriter, previouslySavedShapes);
 
 //      calibrationData = CalibrationUtils.calibrate(pointMapping, parent.width, parent.height);
     } catch (Exception e) {
@@ -160,16 +209,15 @@ public class ShapeMapper {
       throw new RuntimeException();
     }
 
-    // If we share the model with the client, then when the client renders it, they can
-    // update state that will impact our ability to render it. For consistent rendering,
-    // make our own private copy.
-    PShape shapeCopy = ShapeUtils.createShape(parent, shape);
-    MappedShape wrappedShape = new MappedShape(name, parent, shapeCopy);
+    // MappedShape keeps its own copy of the geometry, so the client can keep rendering and
+    // modifying their shape without affecting ours.
+    MappedShape wrappedShape = new MappedShape(name, parent, shape);
 
     MappedShape previouslySaved = getPreviouslySavedShape(name);
     if (previouslySaved != null) {
       System.out.println("ShapeMapper: Found a previously saved model for " + name);
       wrappedShape.setMappingsFromModel(previouslySaved);
+      awaitingCalibration = true;
     } else {
       for (int i = 0; i < mappings; i++) {
         wrappedShape.createMapping();
@@ -209,11 +257,13 @@ public class ShapeMapper {
    * Clear all calibration data from memory and disk.
    */
   public void clearCalibrations() {
+    journal.beginGroup();
     for (MappedShape ms : shapes) {
       for (Mapping m : ms.getMappings()) {
-        m.clear();
+        journal.clear(ms, m);
       }
     }
+    journal.endGroup();
 
     saveCalibration();
   }
@@ -256,31 +306,132 @@ public class ShapeMapper {
     return shapes;
   }
 
-  private void saveCalibration() {
+  /**
+   * Returns the background writer that persists calibration data, which reports how often
+   * and how quickly the calibration file is written.
+   * @return
+   */
+  public CalibrationWriter getCalibrationWriter() {
+    return calibrationWriter;
+  }
+
+  /**
+   * Returns the profiler that times each phase of {@link #draw()}. Use it to find out which
+   * part of drawing takes up the frame budget.
+   * @return
+   */
+  public FrameProfiler getFrameProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Save the cache of calibration solves next to the calibration file when the sketch exits,
+   * and load it on startup, so that saved mappings don't need to be solved again when the
+   * sketch is restarted. Off by default; once turned on, it stays on until turned off.
+   * @param persist
+   */
+  public void setCalibrationCachePersisted(boolean persist) {
+    this.persistCalibrationCache = persist;
+  }
+
+  public boolean isCalibrationCachePersisted() {
+    return persistCalibrationCache;
+  }
+
+  private void loadCalibrationCache() {
+    Path path = Paths.get(parent.dataPath(CALIBRATION_CACHE_FILE));
+    CalibrationCache cache = CalibrationUtils.getCache();
+    if (!Files.exists(path) || cache == null) {
+      return;
+    }
+
+    // The file only exists if persisting was turned on in an earlier run
+    persistCalibrationCache = true;
+    try {
+      cache.read(path);
+    } catch (IOException e) {
+      System.out.println("ShapeMapper: Could not read calibration cache from " + path);
+      e.printStackTrace();
+    }
+  }
+
+  private void saveCalibrationCache() {
+    Path path = Paths.get(parent.dataPath(CALIBRATION_CACHE_FILE));
+    CalibrationCache cache = CalibrationUtils.getCache();
     try {
-      String path = parent.dataPath("calibration.ser");
-      Files.createDirectories(Paths.get(path).getParent());
-      FileOutputStream fileOutputStream = new FileOutputStream(path);
-      ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-      objectOutputStream.writeObject(shapes);
-      objectOutputStream.flush();
-      objectOutputStream.close();
+      if (persistCalibrationCache && cache != null) {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        cache.write(path);
+      } else {
+        Files.deleteIfExists(path);
+      }
     } catch (IOException e) {
+      System.out.println("ShapeMapper: Could not save calibration cache to " + path);
       e.printStackTrace();
     }
   }
 
+  private void saveCalibration() {
+    calibrationWriter.requestSave();
+  }
+
+  private byte[] serializeCalibration() {
+    journal.onSnapshot(shapes);
+    return CalibrationFormat.encode(shapes);
+  }
+
   private void loadCalibration() {
     previouslySavedShapes = new ArrayList<>();
-    try {
-      FileInputStream fileInputStream = new FileInputStream(parent.dataPath("calibration.ser"));
-      ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-      previouslySavedShapes = (List<MappedShape>) objectInputStream.readObject();
-      objectInputStream.close();
-    } catch (IOException | ClassNotFoundException e) {
-      System.out.println("ShapeMapper: Attempted to load calibration data, but it does not exist yet.");
-      System.out.println("ShapeMapper: If you have not yet calibrated your projection, this is normal!");
+    Path path = Paths.get(parent.dataPath(CALIBRATION_FILE));
+
+    // Fall back to older generations if the newest file can't be read.
+    for (int i = 0; i <= calibrationWriter.getGenerations(); i++) {
+      Path generationPath = CalibrationWriter.generationPath(path, i);
+      if (!Files.exists(generationPath)) {
+        continue;
+      }
+
+      try {
+        previouslySavedShapes = CalibrationFormat.read(generationPath);
+        if (i > 0) {
+          System.out.println("ShapeMapper: Loaded calibration backup " + generationPath);
+        }
+
+        // Apply edits made since the snapshot was written, then fold them into a new
+        // snapshot so the journal starts out empty. This also clears out a journal that
+        // can't be replayed, which new entries couldn't be appended to.
+        Path journalPath = CalibrationWriter.journalPath(path);
+        try {
+          EditJournal.replay(journalPath, previouslySavedShapes);
+        } catch (IOException e) {
+          System.out.println("ShapeMapper: Could not replay calibration journal " + journalPath);
+          e.printStackTrace();
+        }
+        if (Files.exists(journalPath) && Files.size(journalPath) > 0) {
+          calibrationWriter.submit(CalibrationFormat.encode(previouslySavedShapes));
+        }
+        return;
+      } catch (IOException e) {
+        System.out.println("ShapeMapper: Could not read calibration data from " + generationPath);
+      }
+    }
+
+    // Calibration data saved by older versions of the library used Java serialization.
+    // Convert it to the current format so it only has to be deserialized once.
+    Path legacyPath = Paths.get(parent.dataPath(LEGACY_CALIBRATION_FILE));
+    if (Files.exists(legacyPath)) {
+      try {
+        previouslySavedShapes = CalibrationFormat.readLegacy(legacyPath);
+        calibrationWriter.submit(CalibrationFormat.encode(previouslySavedShapes));
+        System.out.println("ShapeMapper: Migrated " + legacyPath + " to " + path);
+        return;
+      } catch (IOException e) {
+        System.out.println("ShapeMapper: Could not read calibration data from " + legacyPath);
+      }
     }
+
+    System.out.println("ShapeMapper: Attempted to load calibration data, but it does not exist yet.");
+    System.out.println("ShapeMapper: If you have not yet calibrated your projection, this is normal!");
   }
 
   /**
@@ -350,33 +501,37 @@ public class ShapeMapper {
     if (mode == Mode.CALIBRATE) {
       if (calibrateMode == CalibrateMode.SELECT_POINT) {
         if (event.getAction() == MouseEvent.CLICK) {
-          selectedVertex = shape.getClosestPointTo(mouse, shapeCanvas);
+          selectedVertex = shape.getClosestVertexTo(mouse, shapeCanvas);
         }
 
         getCurrentMapping().setCameraState(camera.getState());
       } else if (calibrateMode == CalibrateMode.MAP_POINT) {
         switch (event.getAction()) {
           case MouseEvent.PRESS:
-            PVector newSelection = mapping.getClosestMappedPointTo(mouse);
-            if (newSelection != null) {
+            int newSelection = mapping.getClosestMappedVertexTo(mouse);
+            if (newSelection >= 0) {
               selectedVertex = newSelection;
             }
+            journal.beginGroup();
             break;
           case MouseEvent.DRAG:
           case MouseEvent.CLICK:
-            if (selectedVertex != null) {
-              mapping.put(selectedVertex, mouse);
-              saveCalibration();
+            if (selectedVertex >= 0) {
+              journal.put(shape, mapping, selectedVertex, mouse);
             }
             break;
+          case MouseEvent.RELEASE:
+            journal.endGroup();
+            break;
         }
       } else if (calibrateMode == CalibrateMode.MASK_FACES) {
         if (event.getAction() == MouseEvent.CLICK) {
           if (recentlyHoveredSubshapeIndex >= 0) {
-            mapping.setFaceMask(
+            journal.setFaceMask(
+                shape,
+                mapping,
                 recentlyHoveredSubshapeIndex,
                 !mapping.getFaceMask(recentlyHoveredSubshapeIndex));
-            saveCalibration();
           }
         }
       }
@@ -405,44 +560,81 @@ public class ShapeMapper {
         } else if (event.getKeyCode() == 38 && canNavigateShapes()) { // up
           currentShapeIndex = ((currentShapeIndex - 1) + shapes.size()) % shapes.size();
           currentMappingIndex = 0;
-          selectedVertex = null;
+          selectedVertex = -1;
           resetCamera();
         } else if (event.getKeyCode() == 40 && canNavigateShapes()) { // down
           currentShapeIndex = ((currentShapeIndex + 1) + shapes.size()) % shapes.size();
           currentMappingIndex = 0;
-          selectedVertex = null;
+          selectedVertex = -1;
           resetCamera();
         } else if (event.getKeyCode() == 37 && canNavigateMappings()) { // left
           int totalMappings = getCurrentShape().getNumMappings();
           currentMappingIndex = (currentMappingIndex + 1) % totalMappings;
-          //selectedVertex = null;
+          //selectedVertex = -1;
           resetCamera();
         } else if (event.getKeyCode() == 39 && canNavigateMappings()) { // right
           int totalMappings = getCurrentShape().getNumMappings();
           currentMappingIndex = ((currentMappingIndex - 1) + totalMappings) % totalMappings;
-          //selectedVertex = null;
+          //selectedVertex = -1;
           resetCamera();
         } else if (event.getKeyCode() == 8) {
           if (event.isControlDown()) {
             clearCalibrations();
           } else if (canDeletePoint()) {
-            getCurrentMapping().remove(selectedVertex);
-            saveCalibration();
+            journal.remove(getCurrentShape(), getCurrentMapping(), selectedVertex);
+          }
+        } else if (event.getKeyCode() == 90 && event.isControlDown()) { // z
+          if (event.isShiftDown()) {
+            journal.redo();
+          } else {
+            journal.undo();
           }
+        } else if (event.getKeyCode() == 89 && event.isControlDown()) { // y
+          journal.redo();
         }
 //        System.out.println(event.getKeyCode())
       }
     }
   }
 
+  /**
+   * @hidden
+   */
+  public void pre() {
+    // Saved mappings are solved in parallel in the background as shapes are added. Wait for
+    // all of them before the first frame, so that nothing is drawn uncalibrated.
+    if (awaitingCalibration) {
+      awaitingCalibration = false;
+      try {
+        CalibrationExecutor.getDefault().awaitIdle();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @hidden
+   */
+  public void dispose() {
+    calibrationWriter.flush();
+    saveCalibrationCache();
+  }
+
   /**
    * @hidden
    */
   public void draw() {
-    MappedShape currentShape = getCurrentShape();
-    Mapping currentMapping = getCurrentMapping();
+    profiler.begin(Phase.FRAME);
 
     try {
+      profiler.begin(Phase.PERSISTENCE);
+      calibrationWriter.poll();
+      profiler.end(Phase.PERSISTENCE);
+
+      MappedShape currentShape = getCurrentShape();
+      Mapping currentMapping = getCurrentMapping();
+
       parent.resetShader();
       parent.noLights();
 
@@ -459,12 +651,15 @@ public class ShapeMapper {
           camera.setActive(true);
           camera.setSuppressRollRotationMode();
 
+          profiler.begin(Phase.SHAPE_RENDER);
           shapeCanvas.beginDraw();
           shapeCanvas.clear();
           shapeCanvas.scale(1, -1, 1);
-          drawShape(currentShape.getShape(), shapeCanvas, true);
+          drawShape(currentShape, shapeCanvas, true);
           shapeCanvas.endDraw();
+          profiler.end(Phase.SHAPE_RENDER);
 
+          profiler.begin(Phase.COMPOSITE);
           parent.resetShader();
 
           parent.textureMode(NORMAL);
@@ -480,193 +675,236 @@ public class ShapeMapper {
           parent.vertex(parent.width, parent.height, 1, 1);
           parent.vertex(0, parent.height, 0, 1);
           parent.endShape();
-
-          PVector closestPoint = currentShape.getClosestPointTo(mouse, shapeCanvas);
-
-          List<PVector> mappedPoints = currentMapping.getMappedPoints()
-              .stream()
-              .map((p) -> worldToScreen(p, shapeCanvas))
-              .toList();
+          profiler.end(Phase.COMPOSITE);
+
+          profiler.begin(Phase.PICKING);
+          int closestVertex = currentShape.getClosestVertexTo(mouse, shapeCanvas);
+          profiler.end(Phase.PICKING);
+
+          profiler.begin(Phase.POINT_OVERLAY);
+          PointCorrespondences points = currentMapping.getCorrespondences();
+          List<PVector> mappedPoints = new ArrayList<>(points.size());
+          for (int i = 0; i < points.size(); i++) {
+            mappedPoints.add(worldToScreen(
+                new PVector(points.getModelX(i), points.getModelY(i), points.getModelZ(i)),
+                shapeCanvas));
+          }
 
           drawPoints((PGraphics3D) parent.getGraphics(), mappedPoints);
 
-          if (closestPoint != null) {
-            PVector projectedVertex = worldToScreen(closestPoint, shapeCanvas);
+          for (int outlier : currentMapping.getOutliers()) {
+            drawOutlier(
+                (PGraphics3D) parent.getGraphics(),
+                worldToScreen(currentShape.getVertex(outlier), shapeCanvas));
+          }
+
+          if (closestVertex >= 0) {
+            PVector projectedVertex = worldToScreen(currentShape.getVertex(closestVertex), shapeCanvas);
             drawHighlightedPoint((PGraphics3D) parent.getGraphics(), projectedVertex);
           }
 
-          if (selectedVertex != null) {
-            PVector projectedVertex = worldToScreen(selectedVertex, shapeCanvas);
+          if (selectedVertex >= 0) {
+            PVector projectedVertex = worldToScreen(currentShape.getVertex(selectedVertex), shapeCanvas);
             drawSelectedPoint((PGraphics3D) parent.getGraphics(), projectedVertex);
           }
+          profiler.end(Phase.POINT_OVERLAY);
         } else if (calibrateMode == CalibrateMode.MAP_POINT) {
           parent.noCursor();
           parent.background(0);
 
           camera.setActive(false);
 
-          projectionCanvas.beginDraw();
-          projectionCanvas.background(0);
-          for (MappedShape shape : shapes) {
-            for (Mapping mapping: shape.getMappings()) {
-              if (mapping.isReady()) {
-                mapping.beginMapping(projectionCanvas);
-                drawShape(
-                    shape.getShape(),
-                    projectionCanvas,
-                    shape == currentShape && mapping == currentMapping);
-                mapping.endMapping(projectionCanvas, false);
+          if (isProjectionLayerStale(currentMapping)) {
+            profiler.begin(Phase.PROJECTION_RENDER);
+            projectionCanvas.beginDraw();
+            projectionCanvas.background(0);
+            for (MappedShape shape : shapes) {
+              for (Mapping mapping: shape.getMappings()) {
+                if (mapping.isReady()) {
+                  mapping.beginMapping(projectionCanvas);
+                  drawShape(
+                      shape,
+                      projectionCanvas,
+                      shape == currentShape && mapping == currentMapping);
+                  mapping.endMapping(projectionCanvas, false);
+                }
               }
             }
+
+            projectionCanvas.endDraw();
+            profiler.end(Phase.PROJECTION_RENDER);
           }
 
-          projectionCanvas.endDraw();
+          profiler.begin(Phase.COMPOSITE);
           parent.image(projectionCanvas, 0, 0);
+          profiler.end(Phase.COMPOSITE);
 
-          List<PVector> mappedPoints = currentMapping.getMappedPoints()
-              .stream()
-              .map(currentMapping::get)
-              .toList();
+          profiler.begin(Phase.PICKING);
+          int closestVertex = currentMapping.getClosestMappedVertexTo(mouse);
+          profiler.end(Phase.PICKING);
+
+          profiler.begin(Phase.POINT_OVERLAY);
+          PointCorrespondences points = currentMapping.getCorrespondences();
+          List<PVector> mappedPoints = new ArrayList<>(points.size());
+          for (int i = 0; i < points.size(); i++) {
+            mappedPoints.add(new PVector(points.getImageX(i), points.getImageY(i)));
+          }
 
           drawPoints((PGraphics3D) parent.getGraphics(), mappedPoints);
+          drawResiduals((PGraphics3D) parent.getGraphics(), currentMapping.getCalibrationResult());
 
-          PVector closestPoint = currentMapping.getClosestMappedPointTo(mouse);
-          if (closestPoint != null) {
-            PVector projectedPoint = currentMapping.get(closestPoint);
+          if (closestVertex >= 0) {
+            PVector projectedPoint = currentMapping.get(closestVertex);
             drawHighlightedPoint((PGraphics3D) parent.getGraphics(), projectedPoint);
           }
 
-          if (selectedVertex != null) {
+          if (selectedVertex >= 0) {
             PVector projectedVertex = currentMapping.get(selectedVertex);
             if (projectedVertex != null) {
               drawSelectedPoint((PGraphics3D) parent.getGraphics(), projectedVertex);
             }
           }
+          profiler.end(Phase.POINT_OVERLAY);
         } else if (calibrateMode == CalibrateMode.MASK_FACES) {
           parent.noCursor();
           parent.background(0);
 
-          projectionCanvas.beginDraw();
-          projectionCanvas.background(0);
-          for (MappedShape shape : shapes) {
-            for (Mapping mapping: shape.getMappings()) {
-              if (mapping.isReady()) {
-                mapping.beginMapping(projectionCanvas);
-
-                // TODO: throw error if you try to turn on masking without subshapes
-                // TODO: potentially refactor so that masking is a "tool" inside of projection mode?
-                if (shape == currentShape && mapping == currentMapping) {
-                  projectionCanvas.lights();
-                  projectionCanvas.fill(255);
-                  projectionCanvas.stroke(255, 100);
-                  projectionCanvas.strokeWeight(1);
-                  normalShader.set("normalColorStrength", 0.5f);
-                  projectionCanvas.shader(normalShader);
-                  shape.draw(projectionCanvas);
-                  projectionCanvas.resetShader();
-                  projectionCanvas.noLights();
-
-                  projectionCanvas.hint(DISABLE_DEPTH_TEST);
-                  projectionCanvas.hint(DISABLE_DEPTH_MASK);
-                  projectionCanvas.hint(DISABLE_DEPTH_SORT);
-
-                  projectionCanvas.fill(0, 200);
-                  mapping.drawFaceMask(projectionCanvas);
-
-                  int shapeIndex = GeometryUtils.pickFace(
-                      shape.getShape(),
-                      new PVector(parent.mouseX, parent.mouseY),
-                      projectionCanvas);
-
-                  recentlyHoveredSubshapeIndex = shapeIndex;
-                  if (shapeIndex >= 0) {
-                    projectionCanvas.noFill();
-                    PShape subshape = shape.getShape().getChild(shapeIndex);
-
-                    // Draw shape manually to avoid weird state bug with rendering
-                    projectionCanvas.beginShape();
-                    projectionCanvas.stroke(255);
-                    projectionCanvas.strokeWeight(6);
-                    for (int i = 0; i < subshape.getVertexCount(); i++) {
-                      projectionCanvas.vertex(
-                          subshape.getVertexX(i),
-                          subshape.getVertexY(i),
-                          subshape.getVertexZ(i));
-                    }
-                    projectionCanvas.endShape(CLOSE);
+          if (isProjectionLayerStale(currentMapping)) {
+            profiler.begin(Phase.PROJECTION_RENDER);
+            projectionCanvas.beginDraw();
+            projectionCanvas.background(0);
+            for (MappedShape shape : shapes) {
+              for (Mapping mapping: shape.getMappings()) {
+                if (mapping.isReady()) {
+                  mapping.beginMapping(projectionCanvas);
+
+                  // TODO: throw error if you try to turn on masking without subshapes
+                  // TODO: potentially refactor so that masking is a "tool" inside of projection mode?
+                  if (shape == currentShape && mapping == currentMapping) {
+                    projectionCanvas.lights();
+                    projectionCanvas.fill(255);
+                    projectionCanvas.stroke(255, 100);
+                    projectionCanvas.strokeWeight(1);
+                    normalShader.set("normalColorStrength", 0.5f);
+                    projectionCanvas.shader(normalShader);
+                    shape.draw(projectionCanvas);
+                    projectionCanvas.resetShader();
+                    projectionCanvas.noLights();
+
+                    projectionCanvas.hint(DISABLE_DEPTH_TEST);
+                    projectionCanvas.hint(DISABLE_DEPTH_MASK);
+                    projectionCanvas.hint(DISABLE_DEPTH_SORT);
+
+                    projectionCanvas.fill(0, 200);
+                    mapping.drawFaceMask(projectionCanvas);
+
+                    projectionCanvas.hint(ENABLE_DEPTH_TEST);
+                    projectionCanvas.hint(ENABLE_DEPTH_MASK);
+                    projectionCanvas.hint(ENABLE_DEPTH_SORT);
+                  } else {
+                    projectionCanvas.fill(0);
+                    projectionCanvas.stroke(50);
+                    projectionCanvas.strokeWeight(2);
+                    shape.draw(projectionCanvas);
                   }
 
-                  projectionCanvas.hint(ENABLE_DEPTH_TEST);
-                  projectionCanvas.hint(ENABLE_DEPTH_MASK);
-                  projectionCanvas.hint(ENABLE_DEPTH_SORT);
-                } else {
-                  projectionCanvas.fill(0);
-                  projectionCanvas.stroke(50);
-                  projectionCanvas.strokeWeight(2);
-                  shape.draw(projectionCanvas);
+                  mapping.endMapping(projectionCanvas, false);
                 }
-
-                mapping.endMapping(projectionCanvas, false);
               }
             }
+            projectionCanvas.endDraw();
+            profiler.end(Phase.PROJECTION_RENDER);
           }
-          projectionCanvas.endDraw();
+
+          profiler.begin(Phase.COMPOSITE);
           parent.image(projectionCanvas, 0, 0);
+          profiler.end(Phase.COMPOSITE);
+
+          // The hovered face is picked and outlined directly on the screen, on top of the
+          // cached projection layer, so that moving the mouse doesn't re-render the layer.
+          recentlyHoveredSubshapeIndex = -1;
+          if (currentMapping.isReady()) {
+            currentMapping.beginMapping(parentGraphics);
+
+            profiler.begin(Phase.PICKING);
+            int shapeIndex = currentShape.pickFace(mouse, parentGraphics);
+            profiler.end(Phase.PICKING);
+
+            recentlyHoveredSubshapeIndex = shapeIndex;
+            if (shapeIndex >= 0) {
+              profiler.begin(Phase.POINT_OVERLAY);
+              MeshData mesh = currentShape.getMeshData();
+
+              // Draw shape manually to avoid weird state bug with rendering
+              parent.hint(DISABLE_DEPTH_TEST);
+              parent.noFill();
+              parent.beginShape();
+              parent.stroke(255);
+              parent.strokeWeight(6);
+              for (int i = mesh.getFaceStart(shapeIndex); i < mesh.getFaceEnd(shapeIndex); i++) {
+                parent.vertex(mesh.getVertexX(i), mesh.getVertexY(i), mesh.getVertexZ(i));
+              }
+              parent.endShape(CLOSE);
+              parent.hint(ENABLE_DEPTH_TEST);
+              profiler.end(Phase.POINT_OVERLAY);
+            }
+
+            currentMapping.endMapping(parentGraphics, false);
+          }
         }
 
         // Draw mouse cross-hairs
+        profiler.begin(Phase.POINT_OVERLAY);
         drawCrossHairs(parent.mouseX, parent.mouseY);
         parent.blendMode(BLEND);
+        profiler.end(Phase.POINT_OVERLAY);
       } else if (mode == Mode.RENDER) {
         camera.setActive(false);
         parent.cursor();
       }
+
+      profiler.begin(Phase.GUI);
+      drawGui();
+      profiler.end(Phase.GUI);
     } catch (Exception e) {
       e.printStackTrace();
       throw e;
+    } finally {
+      // Also ends any phase the exception left open
+      profiler.end(Phase.FRAME);
+    }
+  }
+
+  // Whether the projection canvas needs to be rendered again. It only depends on the
+  // transforms and face masks of the mappings and on which mapping is selected.
+  private boolean isProjectionLayerStale(Mapping currentMapping) {
+    long version = 0;
+    for (MappedShape shape : shapes) {
+      version = Math.max(version, shape.getVersion());
     }
 
-    drawGui();
+    boolean stale = version != projectionLayerVersion
+        || calibrateMode != projectionLayerMode
+        || currentMapping != projectionLayerMapping;
+    projectionLayerVersion = version;
+    projectionLayerMode = calibrateMode;
+    projectionLayerMapping = currentMapping;
+    return stale;
   }
 
-  private void drawShape(PShape shape, PGraphics3D canvas, boolean highlight) {
+  private void drawShape(MappedShape shape, PGraphics3D canvas, boolean highlight) {
     canvas.fill(255, 0, 0);
     canvas.noStroke();
     canvas.lights();
     normalShader.set("normalColorStrength", highlight ? 0.5f : 0.25f);
     canvas.shader(normalShader);
-    shape.disableStyle();
-    shape.draw(canvas);
-
-    for (int j = 0; j < shape.getChildCount(); j++) {
-      PShape child = shape.getChild(j);
-      PVector avg = new PVector();
-      PVector norm = new PVector();
-      for (int i = 0; i < child.getVertexCount(); i++) {
-        avg.add(child.getVertex(i));
-        norm.add(child.getNormal(i));
-      }
-      avg.div(child.getVertexCount());
-      norm.div(child.getVertexCount());
-
-      norm.normalize();
-      norm.mult(1);
+    shape.getShape().disableStyle();
+    shape.getShape().draw(canvas);
 
-      canvas.fill(255);
-      canvas.noLights();
-      canvas.push();
-      canvas.translate(avg.x, avg.y, avg.z);
-      canvas.translate(norm.x, norm.y, norm.z);
-      GeometryUtils.rotateToVector(norm, canvas);
-      canvas.rotate(PI / 2, 1, 0, 0);
-      canvas.textAlign(CENTER, CENTER);
-      canvas.scale(0.25f);
-      canvas.resetShader();
-      canvas.textSize(30);
-      canvas.text(j, 0, 0);
-      canvas.blendMode(BLEND);
-      canvas.pop();
-    }
+    canvas.noLights();
+    canvas.resetShader();
+    shape.drawFaceLabels(canvas);
+    canvas.blendMode(BLEND);
   }
 
   private void drawPoints(PGraphics3D canvas, Iterable<PVector> points) {
@@ -679,6 +917,39 @@ public class ShapeMapper {
     }
   }
 
+  // Draw a line from each mapped point towards where the calibration actually projects it,
+  // exaggerated by RESIDUAL_SCALE, so that badly placed points stand out.
+  private void drawResiduals(PGraphics3D canvas, CalibrationResult result) {
+    if (result == null || !result.isSolved()) {
+      return;
+    }
+
+    for (int i = 0; i < result.size(); i++) {
+      if (result.outliers[i]) {
+        drawOutlier(canvas, new PVector(result.imageX[i], result.imageY[i]));
+      }
+    }
+
+    canvas.stroke(RESIDUAL_COLOR);
+    canvas.strokeWeight(2);
+    canvas.beginShape(LINES);
+    for (int i = 0; i < result.size(); i++) {
+      canvas.vertex(result.imageX[i], result.imageY[i]);
+      canvas.vertex(
+          result.imageX[i] + result.residualX[i] * RESIDUAL_SCALE,
+          result.imageY[i] + result.residualY[i] * RESIDUAL_SCALE);
+    }
+    canvas.endShape();
+  }
+
+  // Ring a point that a robust calibration left out of the solution
+  private void drawOutlier(PGraphics3D canvas, PVector point) {
+    canvas.stroke(RESIDUAL_COLOR);
+    canvas.strokeWeight(2);
+    canvas.noFill();
+    canvas.ellipse(point.x, point.y, UI_CIRCLE_RADIUS + 4, UI_CIRCLE_RADIUS + 4);
+  }
+
   private void drawCrossHairs(float x, float y) {
     parent.blendMode(EXCLUSION);
     parent.stroke(255);
@@ -708,8 +979,7 @@ public class ShapeMapper {
     canvas.ellipse(point.x, point.y, UI_CIRCLE_RADIUS + 10, UI_CIRCLE_RADIUS + 10);
   }
 
-  private void drawGuiRow() {
-    PGraphics3D g = parentGraphics;
+  private void drawGuiRow(PGraphics g) {
     g.fill(BACKGROUND);
     g.stroke(BORDER);
     g.strokeWeight(2);
@@ -717,13 +987,11 @@ public class ShapeMapper {
     g.rect(0, 0, GUI_WIDTH, GUI_ROW_HEIGHT);
   }
 
-  private void drawTextOptions(String[] options, int selected) {
-    drawTextOptions(options, selected, true);
+  private void drawTextOptions(PGraphics g, String[] options, int selected) {
+    drawTextOptions(g, options, selected, true);
   }
 
-  private void drawTextOptions(String[] options, int selected, boolean enabled) {
-    PGraphics3D g = parentGraphics;
-
+  private void drawTextOptions(PGraphics g, String[] options, int selected, boolean enabled) {
     int alpha = enabled ? 255 : 50;
 
     g.fill(255);
@@ -752,15 +1020,13 @@ public class ShapeMapper {
     g.pop();
   }
 
-  private void drawKeyHint(String hint) {
-    drawKeyHint(hint, true);
+  private void drawKeyHint(PGraphics g, String hint) {
+    drawKeyHint(g, hint, true);
   }
 
-  private void drawKeyHint(String hint, boolean enabled) {
+  private void drawKeyHint(PGraphics g, String hint, boolean enabled) {
     int alpha = enabled ? 255 : 50;
 
-    PGraphics3D g = parentGraphics;
-
     g.fill(SECONDARY_FONT_COLOR, alpha);
     g.textAlign(RIGHT, CENTER);
     g.text(hint, GUI_WIDTH - PADDING, GUI_ROW_HEIGHT / 2);
@@ -771,86 +1037,193 @@ public class ShapeMapper {
       return;
     }
 
-    PGraphics3D g = parentGraphics;
+    if (isGuiLayerStale()) {
+      guiLayer.beginDraw();
+      guiLayer.clear();
+      guiLayer.translate(GUI_LAYER_MARGIN, GUI_LAYER_MARGIN);
+      renderGui(guiLayer, guiLayer.height - GUI_LAYER_MARGIN * 2);
+      guiLayer.endDraw();
+    }
 
+    PGraphics3D g = parentGraphics;
     g.resetShader();
-
     g.hint(DISABLE_DEPTH_TEST);
-
     g.push();
-    g.translate(50, 50);
+    g.noTint();
+    g.imageMode(CORNER);
+    g.image(guiLayer, GUI_X - GUI_LAYER_MARGIN, GUI_Y - GUI_LAYER_MARGIN);
+    g.pop();
+    g.hint(ENABLE_DEPTH_TEST);
+  }
+
+  // Whether the GUI layer needs to be rendered again: the mode, the selection, the shape list,
+  // which actions are available or the current mapping's calibration result has changed.
+  private boolean isGuiLayerStale() {
+    int mappingCount = 0;
+    for (int i = 0; i < shapes.size(); i++) {
+      mappingCount += shapes.get(i).getNumMappings() + 1;
+    }
+
+    int enabledRows = 0;
+    long resultVersion = -1;
+    Mapping currentMapping = getCurrentMapping();
+    if (mode == Mode.CALIBRATE && currentMapping != null) {
+      enabledRows = (canMaskShapes() ? 1 : 0)
+          | (canDeletePoint() ? 2 : 0)
+          | (journal.canUndo() ? 4 : 0)
+          | (journal.canRedo() ? 8 : 0);
+      resultVersion = currentMapping.getTransformVersion();
+    }
+
+    boolean stale = mode != guiLayerMode
+        || calibrateMode != guiLayerCalibrateMode
+        || currentShapeIndex != guiLayerShapeIndex
+        || currentMappingIndex != guiLayerMappingIndex
+        || mappingCount != guiLayerMappingCount
+        || enabledRows != guiLayerEnabledRows
+        || resultVersion != guiLayerResultVersion;
+    guiLayerMode = mode;
+    guiLayerCalibrateMode = calibrateMode;
+    guiLayerShapeIndex = currentShapeIndex;
+    guiLayerMappingIndex = currentMappingIndex;
+    guiLayerMappingCount = mappingCount;
+    guiLayerEnabledRows = enabledRows;
+    guiLayerResultVersion = resultVersion;
+    return stale;
+  }
+
+  // Lay out and draw the GUI rows, in rows of GUI_ROW_HEIGHT from the top of `g`. Only as
+  // many shapes as fit in `height` are listed, scrolled so the current shape is among them.
+  private void renderGui(PGraphics g, int height) {
+    int y = 0;
 
-    drawGuiRow();
-    drawTextOptions(new String[]{"Toggle GUI"}, -1);
-    drawKeyHint("T");
+    drawGuiRow(g);
+    drawTextOptions(g, new String[]{"Toggle GUI"}, -1);
+    drawKeyHint(g, "T");
 
     g.translate(0, GUI_ROW_HEIGHT);
-    drawGuiRow();
-    drawTextOptions(new String[]{"Render", "Calibrate"}, mode == Mode.RENDER ? 0 : 1);
-    drawKeyHint("Space");
+    y += GUI_ROW_HEIGHT;
+    drawGuiRow(g);
+    drawTextOptions(g, new String[]{"Render", "Calibrate"}, mode == Mode.RENDER ? 0 : 1);
+    drawKeyHint(g, "Space");
 
     g.translate(0, PADDING);
+    y += PADDING;
 
     if (mode == Mode.CALIBRATE) {
       g.translate(0, GUI_ROW_HEIGHT);
-      drawGuiRow();
-      drawTextOptions(new String[]{"Choose point", "Map point"}, calibrateMode == CalibrateMode.SELECT_POINT ? 0 : calibrateMode == CalibrateMode.MAP_POINT ? 1 : -1);
-      drawKeyHint("Tab");
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
+      drawTextOptions(g, new String[]{"Choose point", "Map point"}, calibrateMode == CalibrateMode.SELECT_POINT ? 0 : calibrateMode == CalibrateMode.MAP_POINT ? 1 : -1);
+      drawKeyHint(g, "Tab");
 
       g.translate(0, GUI_ROW_HEIGHT);
-      drawGuiRow();
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
       drawTextOptions(
+          g,
           new String[]{"Mask faces"},
           calibrateMode == CalibrateMode.MASK_FACES ? 0 : -1,
           canMaskShapes());
-      drawKeyHint("M", canMaskShapes());
+      drawKeyHint(g, "M", canMaskShapes());
 
       g.translate(0, GUI_ROW_HEIGHT);
-      drawGuiRow();
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
       drawTextOptions(
+          g,
           new String[]{"Delete point"},
           -1,
           canDeletePoint());
-      drawKeyHint("Del", canDeletePoint());
+      drawKeyHint(g, "Del", canDeletePoint());
 
       g.translate(0, GUI_ROW_HEIGHT);
-      drawGuiRow();
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
       drawTextOptions(
+          g,
           new String[]{"Clear calibration"},
           -1,
           true);
-      drawKeyHint("Ctrl + Del", true);
+      drawKeyHint(g, "Ctrl + Del", true);
+
+      g.translate(0, GUI_ROW_HEIGHT);
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
+      drawTextOptions(
+          g,
+          new String[]{"Undo"},
+          -1,
+          journal.canUndo());
+      drawKeyHint(g, "Ctrl + Z", journal.canUndo());
+
+      g.translate(0, GUI_ROW_HEIGHT);
+      y += GUI_ROW_HEIGHT;
+      drawGuiRow(g);
+      drawTextOptions(
+          g,
+          new String[]{"Redo"},
+          -1,
+          journal.canRedo());
+      drawKeyHint(g, "Ctrl + Y", journal.canRedo());
+
+      Mapping currentMapping = getCurrentMapping();
+      CalibrationResult result = currentMapping == null ? null : currentMapping.getCalibrationResult();
+      if (result != null && result.isSolved()) {
+        g.translate(0, GUI_ROW_HEIGHT);
+        y += GUI_ROW_HEIGHT;
+        drawGuiRow(g);
+        drawTextOptions(g, new String[]{String.format("Error %.2f px", result.rms)}, -1);
+        drawKeyHint(g, result.outlierCount > 0
+            ? result.outlierCount + (result.outlierCount == 1 ? " outlier" : " outliers")
+            : String.format("max %.2f px", result.getResidualLength(result.worstPoint)));
+      }
 
       g.translate(0, PADDING);
+      y += PADDING;
 
       if (canNavigateShapes() || canNavigateMappings()) {
+        // The header goes in the next row, and shapes fill the rows below it
+        int visibleShapes = Math.max(1, (height - y) / GUI_ROW_HEIGHT - 2);
+        if (visibleShapes >= shapes.size()) {
+          guiShapeScroll = 0;
+          visibleShapes = shapes.size();
+        } else if (currentShapeIndex < guiShapeScroll) {
+          guiShapeScroll = currentShapeIndex;
+        } else if (currentShapeIndex >= guiShapeScroll + visibleShapes) {
+          guiShapeScroll = currentShapeIndex - visibleShapes + 1;
+        }
+        guiShapeScroll = Math.max(0, Math.min(guiShapeScroll, shapes.size() - visibleShapes));
+
         g.translate(0, GUI_ROW_HEIGHT);
-        drawGuiRow();
-        drawTextOptions(new String[] {"Shapes"}, -1);
+        drawGuiRow(g);
+        String header = "Shapes";
+        if (visibleShapes < shapes.size()) {
+          header += String.format(
+              " (%d-%d of %d)", guiShapeScroll + 1, guiShapeScroll + visibleShapes, shapes.size());
+        }
+        drawTextOptions(g, new String[] {header}, -1);
         if (canNavigateShapes()) {
-          drawKeyHint("↓  ↑");
+          drawKeyHint(g, "↓  ↑");
         }
 
-        for (int i = 0; i < shapes.size(); i++) {
+        for (int i = guiShapeScroll; i < guiShapeScroll + visibleShapes; i++) {
           MappedShape ms = shapes.get(i);
           boolean selected = currentShapeIndex == i;
           g.translate(0, GUI_ROW_HEIGHT);
-          drawGuiRow();
-          String[] indices = new String[] {ms.getName()};
-          if (ms.getNumMappings() > 1) {
-            indices = Stream.concat(Stream.of(ms.getName()), IntStream.range(1, 1 + getCurrentShape().getNumMappings()).mapToObj(String::valueOf)).toArray(String[]::new);
+          drawGuiRow(g);
+          String[] indices = new String[ms.getNumMappings() > 1 ? ms.getNumMappings() + 1 : 1];
+          indices[0] = ms.getName();
+          for (int j = 1; j < indices.length; j++) {
+            indices[j] = String.valueOf(j);
           }
-          drawTextOptions(indices, selected ? currentMappingIndex + 1 : -1, selected);
+          drawTextOptions(g, indices, selected ? currentMappingIndex + 1 : -1, selected);
           if (selected && canNavigateMappings()) {
-            drawKeyHint("← →");
+            drawKeyHint(g, "← →");
           }
         }
       }
     }
-
-    g.pop();
-
-    parentGraphics.hint(ENABLE_DEPTH_TEST);
   }
 
   private boolean canMaskShapes() {
@@ -858,7 +1231,7 @@ public class ShapeMapper {
   }
 
   private boolean canDeletePoint() {
-    return selectedVertex != null && getCurrentMapping().get(selectedVertex) != null;
+    return selectedVertex >= 0 && getCurrentMapping().isMapped(selectedVertex);
   }
 
   private boolean canNavigateShapes() {
@@ -0,0 +1,26 @@
+package spacefiller.shapemapper.utils;
+
+// Solves for the camera (projector) parameters that map a set of 3d model space points onto
+// a set of 2d projection space points.
+//
+// Implementations must be safe to call from multiple threads.
+public interface CalibrationBackend {
+  // `objectPoints` holds x, y, z for each point and `imagePoints` holds x, y for each point.
+  // Returns null if no solution could be found.
+  CameraSolution solve(double[] objectPoints, double[] imagePoints, int width, int height);
+
+  // Same as above, but starting from `initialGuess`, usually the previous solution for the
+  // same mapping. When the points have only changed a little, this lets the solver converge
+  // in a few iterations. `initialGuess` may be null. Backends that can't make use of a guess
+  // solve from scratch.
+  default CameraSolution solve(
+      double[] objectPoints, double[] imagePoints, int width, int height, CameraSolution initialGuess) {
+    return solve(objectPoints, imagePoints, width, height);
+  }
+
+  // Identifies the backend and its settings in CalibrationCache keys. Backends that can be
+  // configured to give different solutions for the same points must include the settings.
+  default String getCacheKey() {
+    return getClass().getName();
+  }
+}
@@ -0,0 +1,280 @@
+package spacefiller.shapemapper.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded, least recently used cache of calibration solves, so that a set of point
+// correspondences that has been solved before (e.g. after an undo, or when a sketch is
+// reloaded) doesn't go through the solver again.
+//
+// Entries are keyed by the canonical content of the solve's inputs: the correspondences
+// sorted into a fixed order, the canvas size and the backend. Keys are compared by content, so
+// a hash collision can never return the wrong solution. Near and far distances are not part of
+// the key since they are only applied when a solution is turned into a GraphicsTransform.
+//
+// Cached solutions are shared, so they must not be modified.
+public class CalibrationCache {
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private static final int MAGIC = 0x43434d53; // "SMCC" read as a little endian int
+  private static final int VERSION = 1;
+  private static final int FLOATS_PER_POINT = 5;
+  // Backend name length, size, point count, the solution's 17 doubles, its iteration count and
+  // its outlier threshold
+  private static final int ENTRY_MIN_BYTES =
+      2 + 3 * Integer.BYTES + 17 * Double.BYTES + Integer.BYTES + Double.BYTES;
+  private static final int BYTES_PER_POINT = FLOATS_PER_POINT * Float.BYTES;
+
+  private final int capacity;
+  private final LinkedHashMap<Key, CameraSolution> entries;
+  private long hits;
+  private long misses;
+
+  public CalibrationCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CalibrationCache(int capacity) {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CameraSolution> eldest) {
+        return size() > CalibrationCache.this.capacity;
+      }
+    };
+  }
+
+  synchronized CameraSolution get(Key key) {
+    CameraSolution solution = entries.get(key);
+    if (solution == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return solution;
+  }
+
+  synchronized void put(Key key, CameraSolution solution) {
+    entries.put(key, solution);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  // Write every entry to `path`, replacing the file atomically. Like CalibrationWriter, the
+  // entries go to a temporary file which is synced before it is renamed over `path`.
+  public void write(Path path) throws IOException {
+    Map<Key, CameraSolution> snapshot;
+    synchronized (this) {
+      snapshot = new LinkedHashMap<>(entries);
+    }
+
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(
+            tempPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<Key, CameraSolution> entry : snapshot.entrySet()) {
+        Key key = entry.getKey();
+        out.writeUTF(key.backend);
+        out.writeInt(key.width);
+        out.writeInt(key.height);
+        out.writeInt(key.points.length / FLOATS_PER_POINT);
+        for (float value : key.points) {
+          out.writeFloat(value);
+        }
+
+        CameraSolution solution = entry.getValue();
+        out.writeDouble(solution.fx);
+        out.writeDouble(solution.fy);
+        out.writeDouble(solution.cx);
+        out.writeDouble(solution.cy);
+        for (double value : solution.rotation) {
+          out.writeDouble(value);
+        }
+        for (double value : solution.translation) {
+          out.writeDouble(value);
+        }
+        out.writeDouble(solution.error);
+        out.writeInt(solution.iterations);
+        out.writeDouble(solution.outlierThreshold);
+      }
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(
+        tempPath,
+        path,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    IOUtils.syncDirectory(path);
+  }
+
+  // Add the entries stored in `path` by write(). Entries beyond the capacity are dropped,
+  // oldest first. A truncated or corrupt file fails with an IOException, adding only the
+  // entries before the damage.
+  public void read(Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(Files.readAllBytes(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a calibration cache file: " + path);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported calibration cache version " + version + ": " + path);
+      }
+
+      int count = readCount(in, ENTRY_MIN_BYTES);
+      for (int i = 0; i < count; i++) {
+        String backend = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        float[] points = new float[readCount(in, BYTES_PER_POINT) * FLOATS_PER_POINT];
+        for (int j = 0; j < points.length; j++) {
+          points[j] = in.readFloat();
+        }
+
+        double fx = in.readDouble();
+        double fy = in.readDouble();
+        double cx = in.readDouble();
+        double cy = in.readDouble();
+        double[] rotation = new double[9];
+        for (int j = 0; j < rotation.length; j++) {
+          rotation[j] = in.readDouble();
+        }
+        double[] translation = new double[3];
+        for (int j = 0; j < translation.length; j++) {
+          translation[j] = in.readDouble();
+        }
+        CameraSolution solution = new CameraSolution(fx, fy, cx, cy, rotation, translation);
+        solution.error = in.readDouble();
+        solution.iterations = in.readInt();
+        solution.outlierThreshold = in.readDouble();
+
+        put(new Key(backend, points, width, height), solution);
+      }
+    }
+  }
+
+  // Read a count of items that each take at least `minBytes` bytes, checked against the bytes
+  // left (which `in` knows exactly, since it reads from memory) before anything is allocated
+  // for them.
+  private static int readCount(DataInputStream in, int minBytes) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || (long) count * minBytes > in.available()) {
+      throw new IOException("Invalid count " + count);
+    }
+    return count;
+  }
+
+  // Key for a solve of the passed correspondences, in the layout CalibrationBackend takes.
+  static Key key(
+      CalibrationBackend backend,
+      double[] objectPoints,
+      double[] imagePoints,
+      int width,
+      int height) {
+    int count = imagePoints.length / 2;
+    float[][] tuples = new float[count][];
+    for (int i = 0; i < count; i++) {
+      tuples[i] = new float[] {
+          (float) objectPoints[i * 3],
+          (float) objectPoints[i * 3 + 1],
+          (float) objectPoints[i * 3 + 2],
+          (float) imagePoints[i * 2],
+          (float) imagePoints[i * 2 + 1]
+      };
+    }
+    Arrays.sort(tuples, TUPLE_ORDER);
+
+    float[] points = new float[count * FLOATS_PER_POINT];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(tuples[i], 0, points, i * FLOATS_PER_POINT, FLOATS_PER_POINT);
+    }
+    return new Key(backend.getCacheKey(), points, width, height);
+  }
+
+  private static final Comparator<float[]> TUPLE_ORDER = (a, b) -> {
+    for (int i = 0; i < a.length; i++) {
+      int order = Float.compare(a[i], b[i]);
+      if (order != 0) {
+        return order;
+      }
+    }
+    return 0;
+  };
+
+  static final class Key {
+    private final String backend;
+    // Correspondences sorted into a canonical order, 5 floats each: x, y, z, u, v
+    private final float[] points;
+    private final int width;
+    private final int height;
+    private final int hash;
+
+    private Key(String backend, float[] points, int width, int height) {
+      this.backend = backend;
+      this.points = points;
+      this.width = width;
+      this.height = height;
+      this.hash = 31 * (31 * (31 * backend.hashCode() + Arrays.hashCode(points)) + width) + height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash
+          && width == other.width
+          && height == other.height
+          && backend.equals(other.backend)
+          && Arrays.equals(points, other.points);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package spacefiller.shapemapper.utils;
+
+// The outcome of a calibration solve: the camera, how well it reproduces each correspondence
+// and all of them together, and how long the solve took.
+//
+// Correspondences are stored in flat arrays, one entry per point, in the order they were
+// solved. The residual of a point is where the camera projects its model space position,
+// minus where it was placed in projection space, in pixels.
+public class CalibrationResult {
+  // Null if there were too few points, or no solution was found
+  public final CameraSolution solution;
+
+  // Identifies each point, e.g. by the vertex it belongs to. Null if the points weren't
+  // solved with ids.
+  public final int[] ids;
+  public final float[] modelX;
+  public final float[] modelY;
+  public final float[] modelZ;
+  public final float[] imageX;
+  public final float[] imageY;
+  public final float[] residualX;
+  public final float[] residualY;
+  // Points a robust solve left out of the final solution
+  public final boolean[] outliers;
+
+  // RMS of the residual lengths of all points but the outliers, in pixels. NaN if there is no
+  // solution.
+  public final double rms;
+  // Index of the point with the largest residual, or -1 if there is no solution
+  public final int worstPoint;
+  public final int outlierCount;
+  public final long solveNanos;
+
+  CalibrationResult(
+      int[] ids,
+      float[] modelX,
+      float[] modelY,
+      float[] modelZ,
+      float[] imageX,
+      float[] imageY,
+      CameraSolution solution,
+      long solveNanos) {
+    int count = modelX.length;
+    this.ids = ids;
+    this.solution = solution;
+    this.solveNanos = solveNanos;
+    this.modelX = modelX;
+    this.modelY = modelY;
+    this.modelZ = modelZ;
+    this.imageX = imageX;
+    this.imageY = imageY;
+    this.residualX = new float[count];
+    this.residualY = new float[count];
+    this.outliers = new boolean[count];
+
+    if (solution == null) {
+      this.rms = Double.NaN;
+      this.worstPoint = -1;
+      this.outlierCount = 0;
+      return;
+    }
+
+    computeResiduals(solution, modelX, modelY, modelZ, imageX, imageY, residualX, residualY);
+
+    double thresholdSq = solution.outlierThreshold * solution.outlierThreshold;
+    double sum = 0;
+    double worst = -1;
+    int worstIndex = -1;
+    int outlierCount = 0;
+    for (int j = 0; j < count; j++) {
+      double lengthSq = residualX[j] * residualX[j] + residualY[j] * residualY[j];
+      if (!(lengthSq <= thresholdSq)) {
+        outliers[j] = true;
+        outlierCount++;
+      } else {
+        sum += lengthSq;
+      }
+      if (lengthSq > worst) {
+        worst = lengthSq;
+        worstIndex = j;
+      }
+    }
+    int inlierCount = count - outlierCount;
+    this.rms = inlierCount == 0 ? 0 : Math.sqrt(sum / inlierCount);
+    this.worstPoint = worstIndex;
+    this.outlierCount = outlierCount;
+  }
+
+  public boolean isSolved() {
+    return solution != null;
+  }
+
+  public int size() {
+    return modelX.length;
+  }
+
+  public float getResidualLength(int index) {
+    return (float) Math.sqrt(residualX[index] * residualX[index] + residualY[index] * residualY[index]);
+  }
+
+  public float getSolveMillis() {
+    return solveNanos / 1e6f;
+  }
+
+  // Project every model space point through the camera and subtract the image point. A single
+  // pass over parallel arrays with no branches or allocation, so it stays cheap (and can be
+  // vectorized by the JIT) at hundreds of points.
+  static void computeResiduals(
+      CameraSolution solution,
+      float[] x, float[] y, float[] z,
+      float[] u, float[] v,
+      float[] residualX, float[] residualY) {
+    float r0 = (float) solution.rotation[0], r1 = (float) solution.rotation[1], r2 = (float) solution.rotation[2];
+    float r3 = (float) solution.rotation[3], r4 = (float) solution.rotation[4], r5 = (float) solution.rotation[5];
+    float r6 = (float) solution.rotation[6], r7 = (float) solution.rotation[7], r8 = (float) solution.rotation[8];
+    float tx = (float) solution.translation[0];
+    float ty = (float) solution.translation[1];
+    float tz = (float) solution.translation[2];
+    float fx = (float) solution.fx, fy = (float) solution.fy;
+    float cx = (float) solution.cx, cy = (float) solution.cy;
+
+    for (int i = 0; i < x.length; i++) {
+      float camX = r0 * x[i] + r1 * y[i] + r2 * z[i] + tx;
+      float camY = r3 * x[i] + r4 * y[i] + r5 * z[i] + ty;
+      float invZ = 1 / (r6 * x[i] + r7 * y[i] + r8 * z[i] + tz);
+      residualX[i] = fx * camX * invZ + cx - u[i];
+      residualY[i] = fy * camY * invZ + cy - v[i];
+    }
+  }
+}
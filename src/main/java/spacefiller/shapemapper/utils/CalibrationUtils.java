@@ -1,33 +1,60 @@
 package spacefiller.shapemapper.utils;
 
-import org.bytedeco.javacpp.Loader;
-import org.bytedeco.opencv.opencv_java;
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.*;
 import processing.core.PMatrix3D;
 import processing.core.PVector;
 import spacefiller.shapemapper.GraphicsTransform;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
-import static org.opencv.calib3d.Calib3d.Rodrigues;
-import static processing.core.PApplet.radians;
-
 public class CalibrationUtils {
   // TODO: These numbers seem flipped -- shouldn't farDist be positive?
   // TODO: how to choose these numbers?
   public static final float DEFAULT_NEAR_DIST = 10f;
   public static final float DEFAULT_FAR_DIST = -500f;
 
-  private static boolean nativeLoaded = false;
+  private static volatile CalibrationBackend backend = new DLTCalibrationBackend();
+
+  // The backend used to solve calibrations. Defaults to the pure Java DLTCalibrationBackend;
+  // set an OpenCVCalibrationBackend to solve with OpenCV instead.
+  public static CalibrationBackend getBackend() {
+    return backend;
+  }
+
+  public static void setBackend(CalibrationBackend backend) {
+    CalibrationUtils.backend = backend;
+  }
+
+  // Solve robustly with `method` on top of the current backend, so that a few badly placed
+  // points are left out of the solution instead of dragging it off. Pass null to go back to
+  // fitting every point.
+  public static void setRobustMethod(RobustCalibrationBackend.Method method) {
+    setRobustMethod(
+        method,
+        RobustCalibrationBackend.DEFAULT_INLIER_THRESHOLD,
+        RobustCalibrationBackend.DEFAULT_MAX_HYPOTHESES);
+  }
 
-  private static void loadNative() {
-    if (!nativeLoaded) {
-      Loader.load(opencv_java.class);
-      nativeLoaded = true;
+  public static void setRobustMethod(
+      RobustCalibrationBackend.Method method, double inlierThreshold, int maxHypotheses) {
+    CalibrationBackend current = backend;
+    if (current instanceof RobustCalibrationBackend robust) {
+      current = robust.getBackend();
     }
+    backend = method == null
+        ? current
+        : new RobustCalibrationBackend(current, method, inlierThreshold, maxHypotheses);
+  }
+
+  private static volatile CalibrationCache cache = new CalibrationCache();
+
+  // Solutions of recently solved point sets, which solve() returns without running the
+  // backend again. Null if caching is turned off.
+  public static CalibrationCache getCache() {
+    return cache;
+  }
+
+  public static void setCache(CalibrationCache cache) {
+    CalibrationUtils.cache = cache;
   }
 
   public static GraphicsTransform calibrate(
@@ -53,103 +80,147 @@ public class CalibrationUtils {
       int height,
       float nearDist,
       float farDist) {
-    loadNative();
+    return toTransform(solve(pointMapping, width, height, null), width, height, nearDist, farDist);
+  }
 
-    Mat translation;
-    Mat rotation;
+  // Solves for the camera behind a mapping of 3d model space points to 2d projection space
+  // points, starting from `initialGuess` if it is not null. Returns null if the point mapping
+  // contains less than 6 points or no solution could be found. If the same points have been
+  // solved recently, the cached solution is returned instead.
+  public static CameraSolution solve(
+      Map<PVector, PVector> pointMapping,
+      int width,
+      int height,
+      CameraSolution initialGuess) {
+    float[][] points = toArrays(pointMapping);
+    return solve(points[0], points[1], points[2], points[3], points[4], width, height, initialGuess);
+  }
 
-    if (pointMapping.size() < 6) {
-      return GraphicsTransform.empty();
+  // Same as above, with the points given as parallel arrays of model space x, y, z and
+  // projection space x, y.
+  public static CameraSolution solve(
+      float[] modelX,
+      float[] modelY,
+      float[] modelZ,
+      float[] imageX,
+      float[] imageY,
+      int width,
+      int height,
+      CameraSolution initialGuess) {
+    int count = modelX.length;
+    if (count < 6) {
+      return null;
     }
 
-    // Prepare inputs to pass into OpenCV calibrateCamera function
+    double[] objectPoints = new double[count * 3];
+    double[] imagePoints = new double[count * 2];
+    for (int i = 0; i < count; i++) {
+      objectPoints[i * 3] = modelX[i];
+      objectPoints[i * 3 + 1] = modelY[i];
+      objectPoints[i * 3 + 2] = modelZ[i];
+      imagePoints[i * 2] = imageX[i];
+      imagePoints[i * 2 + 1] = imageY[i];
+    }
 
-    Mat objectPoints = new MatOfPoint3f();
-    Mat imagePoints = new MatOfPoint3f();
+    CalibrationBackend backend = CalibrationUtils.backend;
+    CalibrationCache cache = CalibrationUtils.cache;
+    CalibrationCache.Key key = null;
+    if (cache != null) {
+      key = CalibrationCache.key(backend, objectPoints, imagePoints, width, height);
+      CameraSolution cached = cache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
 
-    for (PVector referencePoint : pointMapping.keySet()) {
-      PVector imagePoint = pointMapping.get(referencePoint);
-      objectPoints.push_back(new MatOfPoint3f(new Point3(referencePoint.x, referencePoint.y, referencePoint.z)));
-      imagePoints.push_back(new MatOfPoint2f(new Point(imagePoint.x, imagePoint.y)));
+    CameraSolution solution = backend.solve(objectPoints, imagePoints, width, height, initialGuess);
+    if (cache != null && solution != null) {
+      cache.put(key, solution);
     }
+    return solution;
+  }
 
-    float aov = 80;
-    Size imageSize = new Size(width, height);
-    float f = (float) (imageSize.width * radians(aov));
-    Point c = new Point(imageSize.width / 2.0, imageSize.height / 2.0);
-
-    Mat cameraMatrix = new Mat(3, 3, CvType.CV_32FC1);
-    cameraMatrix.put(0, 0,
-        f, 0, c.x,
-        0, f, c.y,
-        0, 0, 1);
-
-    Mat distCoeffs = new Mat();
-
-    List<Mat> rvecs = new ArrayList<>();
-    List<Mat> tvecs = new ArrayList<>();
-
-    ArrayList<Mat> objectPointViews = new ArrayList<>();
-    objectPointViews.add(objectPoints);
-
-    ArrayList<Mat> imagePointViews = new ArrayList<>();
-    imagePointViews.add(imagePoints);
-
-    int flags = Calib3d.CALIB_USE_INTRINSIC_GUESS
-        | Calib3d.CALIB_FIX_K1
-        | Calib3d.CALIB_FIX_K2
-        | Calib3d.CALIB_FIX_K3
-        | Calib3d.CALIB_ZERO_TANGENT_DIST
-        | Calib3d.CALIB_FIX_ASPECT_RATIO;
-
-    // The default algorithm does not converge to a low error solution for certain common
-    // projector setups. This parameter was empirically determined to be sufficient.
-    TermCriteria criteria = new TermCriteria();
-    criteria.type = TermCriteria.COUNT;
-    criteria.maxCount = 100;
-
-    Calib3d.calibrateCamera(
-        objectPointViews,
-        imagePointViews,
-        imageSize,
-        cameraMatrix,
-        distCoeffs,
-        rvecs,
-        tvecs,
-        flags,
-        criteria);
-
-    translation = tvecs.get(0);
-    rotation = rvecs.get(0);
-
-    // Prepare intput for calibrationMatrixValues function
-    double[] fovOutputX = new double[1];
-    double[] fovOutputY = new double[1];
-    double[] focalLengthOutput = new double[1];
-    Point principalPoint = new Point();
-    double[] aspectRatioOutput = new double[1];
-
-    // Call calibrationMatrixValues to get the `principalPoint` value (we don't use the
-    // other outputs of this function currently)
-    Calib3d.calibrationMatrixValues(
-        cameraMatrix,
-        imageSize,
-        0, 0,
-        fovOutputX,
-        fovOutputY,
-        focalLengthOutput,
-        principalPoint,
-        aspectRatioOutput);
-
-    // Use the outputs of `calibrateCamera` and `calibrationMatrixValues` to prepare
-    // a projection matrix and model view matrix which can be applied to Processing
-    // graphics context
-
-    double fx = cameraMatrix.get(0, 0)[0];
-    double fy = cameraMatrix.get(1, 1)[0];
-    double cx = principalPoint.x;
-    double cy = principalPoint.y;
+  // Like solve(), but also reports the residual of every correspondence, the total RMS error
+  // and how long the solve took. The result is never null; check isSolved().
+  public static CalibrationResult solveWithResult(
+      Map<PVector, PVector> pointMapping,
+      int width,
+      int height,
+      CameraSolution initialGuess) {
+    float[][] points = toArrays(pointMapping);
+    return solveWithResult(
+        null, points[0], points[1], points[2], points[3], points[4], width, height, initialGuess);
+  }
 
+  // Same as above, with the points given as parallel arrays. `ids` identifies each point
+  // (e.g. by vertex index) in the result, and may be null. The arrays become part of the
+  // result, so must not be modified afterwards.
+  public static CalibrationResult solveWithResult(
+      int[] ids,
+      float[] modelX,
+      float[] modelY,
+      float[] modelZ,
+      float[] imageX,
+      float[] imageY,
+      int width,
+      int height,
+      CameraSolution initialGuess) {
+    long start = System.nanoTime();
+    CameraSolution solution =
+        solve(modelX, modelY, modelZ, imageX, imageY, width, height, initialGuess);
+    long solveNanos = System.nanoTime() - start;
+    return new CalibrationResult(
+        ids, modelX, modelY, modelZ, imageX, imageY, solution, solveNanos);
+  }
+
+  // Model space x, y, z and projection space x, y of each point, in iteration order
+  private static float[][] toArrays(Map<PVector, PVector> pointMapping) {
+    int count = pointMapping.size();
+    float[][] points = new float[5][count];
+    int i = 0;
+    for (Map.Entry<PVector, PVector> entry : pointMapping.entrySet()) {
+      points[0][i] = entry.getKey().x;
+      points[1][i] = entry.getKey().y;
+      points[2][i] = entry.getKey().z;
+      points[3][i] = entry.getValue().x;
+      points[4][i] = entry.getValue().y;
+      i++;
+    }
+    return points;
+  }
+
+  public static GraphicsTransform toTransform(CameraSolution solution, int width, int height) {
+    return toTransform(solution, width, height, DEFAULT_NEAR_DIST, DEFAULT_FAR_DIST);
+  }
+
+  // Use a solved camera to prepare a projection matrix and model view matrix which can be
+  // applied to Processing graphics context. A null solution gives an empty calibration.
+  public static GraphicsTransform toTransform(
+      CameraSolution solution,
+      int width,
+      int height,
+      float nearDist,
+      float farDist) {
+    if (solution == null) {
+      return GraphicsTransform.empty();
+    }
+
+    PMatrix3D projectionMatrix = makeProjectionMatrix(
+        solution.fx, solution.fy, solution.cx, solution.cy, width, height, nearDist, farDist);
+    PMatrix3D modelViewMatrix = makeModelMatrix(solution.rotation, solution.translation);
+    return new GraphicsTransform(projectionMatrix, modelViewMatrix);
+  }
+
+  // Helper function that takes camera intrinsics and returns a Processing frustum matrix
+  public static PMatrix3D makeProjectionMatrix(
+      double fx,
+      double fy,
+      double cx,
+      double cy,
+      int width,
+      int height,
+      float nearDist,
+      float farDist) {
     float left = (float) (nearDist * (-cx) / fx);
     float right = (float) (nearDist * (width - cx) / fx);
     float bottom = (float) (nearDist * (cy) / fy);
@@ -174,23 +245,12 @@ public class CalibrationUtils {
         0.0F, 0.0F, -1.0F, 0.0F);
 
     projectionMatrix.apply(frustrum);
-
-    PMatrix3D modelViewMatrix = makeModelMatrix(rotation, translation);
-    return new GraphicsTransform(projectionMatrix, modelViewMatrix);
+    return projectionMatrix;
   }
 
-  // Helper function that takes the rotation and translation vector produced by
-  // `calibrateCamera` and returns a Processing matrix representing those transformations
-  public static PMatrix3D makeModelMatrix(Mat rotationVector, Mat translation) {
-    Mat rotationMatrix = new Mat();
-    Rodrigues(rotationVector, rotationMatrix);
-
-    double[] tm = new double[3];
-    translation.get(0, 0, tm);
-
-    double[] rm = new double[16];
-    rotationMatrix.get(0, 0, rm);
-
+  // Helper function that takes a row major 3x3 rotation matrix and a translation vector and
+  // returns a Processing matrix representing those transformations
+  public static PMatrix3D makeModelMatrix(double[] rm, double[] tm) {
     PMatrix3D matrix = new PMatrix3D(
         (float) rm[0], (float) rm[3], (float) rm[6], 0.0f,
         (float) rm[1], (float) rm[4], (float) rm[7], 0.0f,
@@ -0,0 +1,33 @@
+package spacefiller.shapemapper.utils;
+
+// A simple data only class holding the intrinsic and extrinsic parameters of a calibrated
+// camera, using the OpenCV conventions: a model space point X projects to
+// (fx * x / z + cx, fy * y / z + cy), where (x, y, z) = R * X + t.
+public class CameraSolution {
+  public double fx;
+  public double fy;
+  public double cx;
+  public double cy;
+
+  // 3x3 rotation matrix, row major
+  public double[] rotation;
+  public double[] translation;
+
+  // RMS reprojection error of the solution, in pixels
+  public double error;
+  // Number of refinement iterations the solve took, or -1 if the backend doesn't report it
+  public int iterations = -1;
+  // Residual (in pixels) above which a robust solve rejected a point as an outlier. Infinite
+  // when every point was used.
+  public double outlierThreshold = Double.POSITIVE_INFINITY;
+
+  public CameraSolution(
+      double fx, double fy, double cx, double cy, double[] rotation, double[] translation) {
+    this.fx = fx;
+    this.fy = fy;
+    this.cx = cx;
+    this.cy = cy;
+    this.rotation = rotation;
+    this.translation = translation;
+  }
+}
@@ -0,0 +1,881 @@
+package spacefiller.shapemapper.utils;
+
+import java.util.Arrays;
+
+// Pure Java calibration backend, so calibrating doesn't require loading any native libraries.
+//
+// The camera is modelled the same way as the OpenCV backend: a single focal length (fixed
+// aspect ratio), a principal point, no skew and no lens distortion. An initial estimate is
+// found with the direct linear transform (DLT), or, if the model space points all lie on a
+// plane, from the homography between the plane and the image using the same intrinsic guess
+// as the OpenCV backend. The estimate is then refined with Levenberg-Marquardt, minimizing the
+// reprojection error over the focal length, principal point, rotation and translation.
+//
+// The DLT needs points spread over all three dimensions. When most of them lie on one plane
+// (e.g. the base of a pyramid and its apex) its estimate can be far enough off that the
+// refinement ends in a poor local minimum, so a poorly fitting solution is checked against one
+// refined from the homography of the best fitting plane.
+public class DLTCalibrationBackend implements CalibrationBackend {
+  private static final int MAX_ITERATIONS = 100;
+  private static final double CONVERGENCE_EPSILON = 1e-8;
+  private static final double STEP_EPSILON = 1e-8;
+  // A warm started solution whose RMS error (in pixels) is above this is checked against a
+  // solve from scratch
+  private static final double WARM_START_MAX_ERROR = 1;
+  // A solution refined from the DLT whose RMS error is above this is checked against one
+  // refined from the plane homography
+  private static final double COLD_START_MAX_ERROR = 1;
+  private static final double PLANARITY_EPSILON = 1e-8;
+
+  // Initial Levenberg-Marquardt damping. A warm start is expected to be close to the minimum,
+  // so it starts out taking nearly full Gauss-Newton steps.
+  private static final double COLD_START_DAMPING = 1e-3;
+  private static final double WARM_START_DAMPING = 1e-6;
+
+  // Parameter layout: f, cx, cy, rotation vector (3), translation (3)
+  private static final int PARAMS = 9;
+
+  @Override
+  public CameraSolution solve(double[] objectPoints, double[] imagePoints, int width, int height) {
+    int n = objectPoints.length / 3;
+    if (n < 6 || imagePoints.length < n * 2) {
+      return null;
+    }
+
+    if (isPlanar(objectPoints, n)) {
+      double[] params = initializeFromHomography(objectPoints, imagePoints, n, width, height);
+      return params == null ? null : refineFrom(params, objectPoints, imagePoints, n, COLD_START_DAMPING);
+    }
+
+    double[] params = initializeFromDLT(objectPoints, imagePoints, n, width, height);
+    CameraSolution solution =
+        params == null ? null : refineFrom(params, objectPoints, imagePoints, n, COLD_START_DAMPING);
+    if (solution != null && solution.error <= COLD_START_MAX_ERROR) {
+      return solution;
+    }
+
+    double[] fallback = initializeFromHomography(objectPoints, imagePoints, n, width, height);
+    CameraSolution other =
+        fallback == null ? null : refineFrom(fallback, objectPoints, imagePoints, n, COLD_START_DAMPING);
+    if (solution == null || (other != null && other.error < solution.error)) {
+      return other;
+    }
+    return solution;
+  }
+
+  @Override
+  public CameraSolution solve(
+      double[] objectPoints, double[] imagePoints, int width, int height, CameraSolution initialGuess) {
+    int n = objectPoints.length / 3;
+    if (initialGuess == null || n < 6 || imagePoints.length < n * 2) {
+      return solve(objectPoints, imagePoints, width, height);
+    }
+
+    double[] rvec = rodrigues(initialGuess.rotation);
+    double[] params = {
+        (initialGuess.fx + initialGuess.fy) / 2,
+        initialGuess.cx,
+        initialGuess.cy,
+        rvec[0], rvec[1], rvec[2],
+        initialGuess.translation[0], initialGuess.translation[1], initialGuess.translation[2] };
+
+    CameraSolution warm = refineFrom(params, objectPoints, imagePoints, n, WARM_START_DAMPING);
+
+    // When the points don't fit well (e.g. one is still being dragged into place) there can be
+    // several competing minima, and the warm start may have followed one while the best
+    // solution moved somewhere else, so compare against a cold solve.
+    if (warm != null && warm.error <= WARM_START_MAX_ERROR) {
+      return warm;
+    }
+
+    CameraSolution cold = solve(objectPoints, imagePoints, width, height);
+    if (warm == null || (cold != null && cold.error < warm.error)) {
+      return cold;
+    }
+    return warm;
+  }
+
+  private static CameraSolution refineFrom(
+      double[] params, double[] objectPoints, double[] imagePoints, int n, double damping) {
+    if (!isFinite(params)) {
+      return null;
+    }
+
+    int iterations = refine(params, objectPoints, imagePoints, n, damping);
+
+    if (!isFinite(params)) {
+      return null;
+    }
+
+    CameraSolution solution = new CameraSolution(
+        params[0],
+        params[0],
+        params[1],
+        params[2],
+        rodrigues(params[3], params[4], params[5]),
+        new double[] { params[6], params[7], params[8] });
+    double[] state = new double[15];
+    System.arraycopy(params, 0, state, 0, 3);
+    System.arraycopy(solution.rotation, 0, state, 3, 9);
+    System.arraycopy(solution.translation, 0, state, 12, 3);
+    solution.error = Math.sqrt(residuals(state, objectPoints, imagePoints, n, new double[n * 2]) / n);
+    solution.iterations = iterations;
+    return solution;
+  }
+
+  // -- Initialization --
+
+  private static boolean isPlanar(double[] objectPoints, int n) {
+    double[] centroid = centroid(objectPoints, n, 3);
+    double[] covariance = new double[9];
+    for (int i = 0; i < n; i++) {
+      for (int r = 0; r < 3; r++) {
+        for (int c = 0; c < 3; c++) {
+          covariance[r * 3 + c] +=
+              (objectPoints[i * 3 + r] - centroid[r]) * (objectPoints[i * 3 + c] - centroid[c]);
+        }
+      }
+    }
+
+    double[] values = new double[3];
+    double[] vectors = new double[9];
+    symmetricEigen(covariance, 3, values, vectors);
+
+    double max = Math.max(values[0], Math.max(values[1], values[2]));
+    double min = Math.min(values[0], Math.min(values[1], values[2]));
+    return max <= 0 || min / max < PLANARITY_EPSILON;
+  }
+
+  private static double[] initializeFromDLT(
+      double[] objectPoints, double[] imagePoints, int n, int width, int height) {
+    // Normalize both point sets (Hartley) so the linear system is well conditioned
+    double[] imageT = normalization(imagePoints, n, 2);
+    double[] objectT = normalization(objectPoints, n, 3);
+
+    double[] ata = new double[12 * 12];
+    double[] row = new double[12];
+    for (int i = 0; i < n; i++) {
+      double x = (objectPoints[i * 3] - objectT[1]) * objectT[0];
+      double y = (objectPoints[i * 3 + 1] - objectT[2]) * objectT[0];
+      double z = (objectPoints[i * 3 + 2] - objectT[3]) * objectT[0];
+      double u = (imagePoints[i * 2] - imageT[1]) * imageT[0];
+      double v = (imagePoints[i * 2 + 1] - imageT[2]) * imageT[0];
+
+      setRow(row, x, y, z, 1, 0, 0, 0, 0, -u * x, -u * y, -u * z, -u);
+      accumulate(ata, row, 12);
+      setRow(row, 0, 0, 0, 0, x, y, z, 1, -v * x, -v * y, -v * z, -v);
+      accumulate(ata, row, 12);
+    }
+
+    double[] pn = smallestEigenvector(ata, 12);
+
+    // Undo the normalization: P = T^-1 * Pn * U
+    double[] p = new double[12];
+    double si = 1 / imageT[0];
+    for (int c = 0; c < 4; c++) {
+      p[c] = si * pn[c] + imageT[1] * pn[8 + c];
+      p[4 + c] = si * pn[4 + c] + imageT[2] * pn[8 + c];
+      p[8 + c] = pn[8 + c];
+    }
+    double so = objectT[0];
+    for (int r = 0; r < 3; r++) {
+      double offset = p[r * 4] * objectT[1] + p[r * 4 + 1] * objectT[2] + p[r * 4 + 2] * objectT[3];
+      p[r * 4] *= so;
+      p[r * 4 + 1] *= so;
+      p[r * 4 + 2] *= so;
+      p[r * 4 + 3] -= so * offset;
+    }
+
+    // P is only known up to scale; pick the sign that puts the points in front of the camera
+    double[] centroid = centroid(objectPoints, n, 3);
+    double w = p[8] * centroid[0] + p[9] * centroid[1] + p[10] * centroid[2] + p[11];
+    if (w < 0) {
+      for (int i = 0; i < 12; i++) {
+        p[i] = -p[i];
+      }
+    }
+
+    // RQ decomposition of the left 3x3 block into K * R, by Gram-Schmidt from the last row up
+    double[] m1 = { p[0], p[1], p[2] };
+    double[] m2 = { p[4], p[5], p[6] };
+    double[] m3 = { p[8], p[9], p[10] };
+
+    double k33 = norm(m3);
+    if (k33 == 0) {
+      return null;
+    }
+    double[] r3 = scale(m3, 1 / k33);
+
+    double k23 = dot(m2, r3);
+    double[] r2 = subtract(m2, scale(r3, k23));
+    double k22 = norm(r2);
+    r2 = scale(r2, 1 / k22);
+
+    double k13 = dot(m1, r3);
+    double k12 = dot(m1, r2);
+    double[] r1 = cross(r2, r3);
+    double k11 = dot(m1, r1);
+
+    // t = K^-1 * p4, by back substitution
+    double t3 = p[11] / k33;
+    double t2 = (p[7] - k23 * t3) / k22;
+    double t1 = (p[3] - k12 * t2 - k13 * t3) / k11;
+
+    double f = (k11 + k22) / (2 * k33);
+    if (!(f > 0)) {
+      // With few or noisy points the intrinsics from the DLT can be meaningless, so fall back
+      // to the intrinsic guess and only take the pose from the DLT
+      return poseFromProjection(p, width * Math.toRadians(80), width / 2.0, height / 2.0);
+    }
+
+    double[] rotation = {
+        r1[0], r1[1], r1[2],
+        r2[0], r2[1], r2[2],
+        r3[0], r3[1], r3[2] };
+    double[] rvec = rodrigues(rotation);
+
+    return new double[] { f, k13 / k33, k23 / k33, rvec[0], rvec[1], rvec[2], t1, t2, t3 };
+  }
+
+  // Given a 3x4 projection matrix and camera intrinsics, returns parameters with those
+  // intrinsics and the nearest pose: K^-1 * P = lambda * [R | t]
+  private static double[] poseFromProjection(double[] p, double f, double cx, double cy) {
+    double[] m1 = { (p[0] - cx * p[8]) / f, (p[1] - cx * p[9]) / f, (p[2] - cx * p[10]) / f };
+    double[] m2 = { (p[4] - cy * p[8]) / f, (p[5] - cy * p[9]) / f, (p[6] - cy * p[10]) / f };
+    double[] m3 = { p[8], p[9], p[10] };
+    double lambda = (norm(m1) + norm(m2) + norm(m3)) / 3;
+    if (lambda == 0) {
+      return null;
+    }
+
+    double[] r3 = scale(m3, 1 / norm(m3));
+    double[] r2 = subtract(m2, scale(r3, dot(m2, r3)));
+    r2 = scale(r2, 1 / norm(r2));
+    double[] r1 = cross(r2, r3);
+
+    double[] rvec = rodrigues(new double[] {
+        r1[0], r1[1], r1[2],
+        r2[0], r2[1], r2[2],
+        r3[0], r3[1], r3[2] });
+
+    return new double[] {
+        f, cx, cy,
+        rvec[0], rvec[1], rvec[2],
+        (p[3] - cx * p[11]) / f / lambda, (p[7] - cy * p[11]) / f / lambda, p[11] / lambda };
+  }
+
+  private static double[] initializeFromHomography(
+      double[] objectPoints, double[] imagePoints, int n, int width, int height) {
+    // Same intrinsic guess as the OpenCV backend
+    double f = width * Math.toRadians(80);
+    double cx = width / 2.0;
+    double cy = height / 2.0;
+
+    // Coordinate frame of the plane: the origin is the centroid, the axes are the principal
+    // directions of the points
+    double[] origin = centroid(objectPoints, n, 3);
+    double[] covariance = new double[9];
+    for (int i = 0; i < n; i++) {
+      for (int r = 0; r < 3; r++) {
+        for (int c = 0; c < 3; c++) {
+          covariance[r * 3 + c] +=
+              (objectPoints[i * 3 + r] - origin[r]) * (objectPoints[i * 3 + c] - origin[c]);
+        }
+      }
+    }
+    double[] values = new double[3];
+    double[] vectors = new double[9];
+    symmetricEigen(covariance, 3, values, vectors);
+
+    int normalAxis = 0;
+    for (int i = 1; i < 3; i++) {
+      if (values[i] < values[normalAxis]) {
+        normalAxis = i;
+      }
+    }
+    double[] e1 = column(vectors, 3, (normalAxis + 1) % 3);
+    double[] e2 = column(vectors, 3, (normalAxis + 2) % 3);
+    double[] normal = cross(e1, e2);
+
+    double[] planePoints = new double[n * 2];
+    for (int i = 0; i < n; i++) {
+      double[] d = {
+          objectPoints[i * 3] - origin[0],
+          objectPoints[i * 3 + 1] - origin[1],
+          objectPoints[i * 3 + 2] - origin[2] };
+      planePoints[i * 2] = dot(d, e1);
+      planePoints[i * 2 + 1] = dot(d, e2);
+    }
+
+    // Homography from the plane to the image, normalized like the DLT
+    double[] imageT = normalization(imagePoints, n, 2);
+    double[] planeT = normalization(planePoints, n, 2);
+
+    double[] ata = new double[9 * 9];
+    double[] row = new double[9];
+    for (int i = 0; i < n; i++) {
+      double a = (planePoints[i * 2] - planeT[1]) * planeT[0];
+      double b = (planePoints[i * 2 + 1] - planeT[2]) * planeT[0];
+      double u = (imagePoints[i * 2] - imageT[1]) * imageT[0];
+      double v = (imagePoints[i * 2 + 1] - imageT[2]) * imageT[0];
+
+      setRow(row, a, b, 1, 0, 0, 0, -u * a, -u * b, -u);
+      accumulate(ata, row, 9);
+      setRow(row, 0, 0, 0, a, b, 1, -v * a, -v * b, -v);
+      accumulate(ata, row, 9);
+    }
+
+    double[] hn = smallestEigenvector(ata, 9);
+
+    double[] h = new double[9];
+    double si = 1 / imageT[0];
+    for (int c = 0; c < 3; c++) {
+      h[c] = si * hn[c] + imageT[1] * hn[6 + c];
+      h[3 + c] = si * hn[3 + c] + imageT[2] * hn[6 + c];
+      h[6 + c] = hn[6 + c];
+    }
+    double sp = planeT[0];
+    for (int r = 0; r < 3; r++) {
+      double offset = h[r * 3] * planeT[1] + h[r * 3 + 1] * planeT[2];
+      h[r * 3] *= sp;
+      h[r * 3 + 1] *= sp;
+      h[r * 3 + 2] -= sp * offset;
+    }
+
+    // K^-1 * H = lambda * [r1 r2 t]
+    double[] m1 = { (h[0] - cx * h[6]) / f, (h[3] - cy * h[6]) / f, h[6] };
+    double[] m2 = { (h[1] - cx * h[7]) / f, (h[4] - cy * h[7]) / f, h[7] };
+    double[] m3 = { (h[2] - cx * h[8]) / f, (h[5] - cy * h[8]) / f, h[8] };
+
+    double lambda = 2 / (norm(m1) + norm(m2));
+    if (m3[2] * lambda < 0) {
+      lambda = -lambda;
+    }
+
+    double[] r1 = scale(m1, lambda);
+    r1 = scale(r1, 1 / norm(r1));
+    double[] r2 = scale(m2, lambda);
+    r2 = subtract(r2, scale(r1, dot(r1, r2)));
+    r2 = scale(r2, 1 / norm(r2));
+    double[] r3 = cross(r1, r2);
+    double[] tPlane = scale(m3, lambda);
+
+    // Rotation from the plane frame to the camera frame, composed with the rotation from model
+    // space to the plane frame, whose rows are e1, e2 and the normal
+    double[] rotation = new double[9];
+    double[][] columns = { r1, r2, r3 };
+    double[][] axes = { e1, e2, normal };
+    for (int r = 0; r < 3; r++) {
+      for (int c = 0; c < 3; c++) {
+        double sum = 0;
+        for (int k = 0; k < 3; k++) {
+          sum += columns[k][r] * axes[k][c];
+        }
+        rotation[r * 3 + c] = sum;
+      }
+    }
+
+    double[] t = new double[3];
+    for (int r = 0; r < 3; r++) {
+      t[r] = tPlane[r]
+          - (rotation[r * 3] * origin[0] + rotation[r * 3 + 1] * origin[1] + rotation[r * 3 + 2] * origin[2]);
+    }
+
+    double[] rvec = rodrigues(rotation);
+    return new double[] { f, cx, cy, rvec[0], rvec[1], rvec[2], t[0], t[1], t[2] };
+  }
+
+  // -- Refinement --
+
+  // Levenberg-Marquardt, in place. Stops early once the error or the parameters stop
+  // changing. Returns the number of iterations run.
+  //
+  // Internally the rotation is kept as a matrix and updated by composing it with a small
+  // rotation each step, which keeps the Jacobian simple enough to compute analytically.
+  private static int refine(
+      double[] params, double[] objectPoints, double[] imagePoints, int n, double damping) {
+    int m = n * 2;
+    double[] residuals = new double[m];
+    double[] candidateResiduals = new double[m];
+    double[] jtj = new double[PARAMS * PARAMS];
+    double[] jtr = new double[PARAMS];
+    double[] system = new double[PARAMS * PARAMS];
+    double[] step = new double[PARAMS];
+    double[] row = new double[PARAMS * 2];
+
+    // State layout: f, cx, cy, rotation matrix (9, row major), translation (3)
+    double[] state = new double[15];
+    double[] candidate = new double[15];
+    state[0] = params[0];
+    state[1] = params[1];
+    state[2] = params[2];
+    System.arraycopy(rodrigues(params[3], params[4], params[5]), 0, state, 3, 9);
+    System.arraycopy(params, 6, state, 12, 3);
+
+    double cost = residuals(state, objectPoints, imagePoints, n, residuals);
+    double lambda = damping;
+    int iterations = MAX_ITERATIONS;
+
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      accumulateNormalEquations(state, objectPoints, n, residuals, row, jtj, jtr);
+
+      boolean improved = false;
+      boolean converged = false;
+      while (!improved && lambda < 1e16) {
+        System.arraycopy(jtj, 0, system, 0, jtj.length);
+        for (int j = 0; j < PARAMS; j++) {
+          system[j * PARAMS + j] += lambda * Math.max(jtj[j * PARAMS + j], 1e-12);
+          step[j] = -jtr[j];
+        }
+
+        if (!solveLinear(system, step, PARAMS)) {
+          lambda *= 10;
+          continue;
+        }
+
+        applyStep(state, step, candidate);
+
+        double candidateCost = residuals(candidate, objectPoints, imagePoints, n, candidateResiduals);
+        if (candidateCost < cost) {
+          improved = true;
+
+          boolean smallStep = Math.abs(step[0]) <= STEP_EPSILON * Math.max(Math.abs(state[0]), 1)
+              && Math.abs(step[1]) <= STEP_EPSILON * Math.max(Math.abs(state[1]), 1)
+              && Math.abs(step[2]) <= STEP_EPSILON * Math.max(Math.abs(state[2]), 1)
+              && Math.abs(step[3]) <= STEP_EPSILON
+              && Math.abs(step[4]) <= STEP_EPSILON
+              && Math.abs(step[5]) <= STEP_EPSILON
+              && Math.abs(step[6]) <= STEP_EPSILON * Math.max(Math.abs(state[12]), 1)
+              && Math.abs(step[7]) <= STEP_EPSILON * Math.max(Math.abs(state[13]), 1)
+              && Math.abs(step[8]) <= STEP_EPSILON * Math.max(Math.abs(state[14]), 1);
+          converged = smallStep || cost - candidateCost <= CONVERGENCE_EPSILON * Math.max(candidateCost, 1);
+
+          System.arraycopy(candidate, 0, state, 0, state.length);
+          System.arraycopy(candidateResiduals, 0, residuals, 0, m);
+          cost = candidateCost;
+          lambda = Math.max(lambda / 10, 1e-12);
+        } else {
+          lambda *= 10;
+        }
+      }
+
+      // Stop once converged, or if no step could improve the error
+      if (converged || !improved) {
+        iterations = iteration + 1;
+        break;
+      }
+    }
+
+    double[] rvec = rodrigues(new double[] {
+        state[3], state[4], state[5],
+        state[6], state[7], state[8],
+        state[9], state[10], state[11] });
+    params[0] = state[0];
+    params[1] = state[1];
+    params[2] = state[2];
+    System.arraycopy(rvec, 0, params, 3, 3);
+    System.arraycopy(state, 12, params, 6, 3);
+    return iterations;
+  }
+
+  // Builds J^T * J and J^T * r for the current state, where J is the Jacobian of the residuals
+  // with respect to f, cx, cy, a small rotation applied on top of the current rotation, and
+  // the translation.
+  private static void accumulateNormalEquations(
+      double[] state, double[] objectPoints, int n, double[] residuals,
+      double[] row, double[] jtj, double[] jtr) {
+    Arrays.fill(jtj, 0);
+    Arrays.fill(jtr, 0);
+
+    double f = state[0];
+    for (int i = 0; i < n; i++) {
+      double x = objectPoints[i * 3];
+      double y = objectPoints[i * 3 + 1];
+      double z = objectPoints[i * 3 + 2];
+
+      // Rotated point, before translation
+      double ax = state[3] * x + state[4] * y + state[5] * z;
+      double ay = state[6] * x + state[7] * y + state[8] * z;
+      double az = state[9] * x + state[10] * y + state[11] * z;
+
+      double xc = ax + state[12];
+      double yc = ay + state[13];
+      double zc = az + state[14];
+      double iz = 1 / zc;
+
+      double dudx = f * iz;
+      double dudz = -f * xc * iz * iz;
+      double dvdy = f * iz;
+      double dvdz = -f * yc * iz * iz;
+
+      // Row for u. Rotating by a small vector d moves the camera space point by d x a, so
+      // the derivatives of (x, y, z) by each component of d are (0, -az, ay), (az, 0, -ax)
+      // and (-ay, ax, 0).
+      row[0] = xc * iz;
+      row[1] = 1;
+      row[2] = 0;
+      row[3] = dudz * ay;
+      row[4] = dudx * az - dudz * ax;
+      row[5] = dudx * -ay;
+      row[6] = dudx;
+      row[7] = 0;
+      row[8] = dudz;
+
+      // Row for v
+      row[9] = yc * iz;
+      row[10] = 0;
+      row[11] = 1;
+      row[12] = dvdy * -az + dvdz * ay;
+      row[13] = dvdz * -ax;
+      row[14] = dvdy * ax;
+      row[15] = 0;
+      row[16] = dvdy;
+      row[17] = dvdz;
+
+      double ru = residuals[i * 2];
+      double rv = residuals[i * 2 + 1];
+      for (int a = 0; a < PARAMS; a++) {
+        double ua = row[a];
+        double va = row[PARAMS + a];
+        jtr[a] += ua * ru + va * rv;
+        for (int b = a; b < PARAMS; b++) {
+          jtj[a * PARAMS + b] += ua * row[b] + va * row[PARAMS + b];
+        }
+      }
+    }
+
+    for (int a = 0; a < PARAMS; a++) {
+      for (int b = 0; b < a; b++) {
+        jtj[a * PARAMS + b] = jtj[b * PARAMS + a];
+      }
+    }
+  }
+
+  private static void applyStep(double[] state, double[] step, double[] out) {
+    out[0] = state[0] + step[0];
+    out[1] = state[1] + step[1];
+    out[2] = state[2] + step[2];
+
+    double[] delta = rodrigues(step[3], step[4], step[5]);
+    for (int r = 0; r < 3; r++) {
+      for (int c = 0; c < 3; c++) {
+        out[3 + r * 3 + c] = delta[r * 3] * state[3 + c]
+            + delta[r * 3 + 1] * state[6 + c]
+            + delta[r * 3 + 2] * state[9 + c];
+      }
+    }
+
+    out[12] = state[12] + step[6];
+    out[13] = state[13] + step[7];
+    out[14] = state[14] + step[8];
+  }
+
+  // Writes the reprojection residuals of each point into `out`, and returns their sum of
+  // squares.
+  private static double residuals(
+      double[] state, double[] objectPoints, double[] imagePoints, int n, double[] out) {
+    double f = state[0];
+    double cx = state[1];
+    double cy = state[2];
+
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      double x = objectPoints[i * 3];
+      double y = objectPoints[i * 3 + 1];
+      double z = objectPoints[i * 3 + 2];
+
+      double xc = state[3] * x + state[4] * y + state[5] * z + state[12];
+      double yc = state[6] * x + state[7] * y + state[8] * z + state[13];
+      double zc = state[9] * x + state[10] * y + state[11] * z + state[14];
+
+      double du = f * xc / zc + cx - imagePoints[i * 2];
+      double dv = f * yc / zc + cy - imagePoints[i * 2 + 1];
+      out[i * 2] = du;
+      out[i * 2 + 1] = dv;
+      sum += du * du + dv * dv;
+    }
+    return Double.isNaN(sum) ? Double.POSITIVE_INFINITY : sum;
+  }
+
+  // -- Rotation helpers --
+
+  // Rotation vector to row major 3x3 rotation matrix
+  static double[] rodrigues(double rx, double ry, double rz) {
+    double theta = Math.sqrt(rx * rx + ry * ry + rz * rz);
+    if (theta < 1e-12) {
+      return new double[] {
+          1, -rz, ry,
+          rz, 1, -rx,
+          -ry, rx, 1 };
+    }
+
+    double kx = rx / theta;
+    double ky = ry / theta;
+    double kz = rz / theta;
+    double c = Math.cos(theta);
+    double s = Math.sin(theta);
+    double v = 1 - c;
+
+    return new double[] {
+        c + kx * kx * v, kx * ky * v - kz * s, kx * kz * v + ky * s,
+        ky * kx * v + kz * s, c + ky * ky * v, ky * kz * v - kx * s,
+        kz * kx * v - ky * s, kz * ky * v + kx * s, c + kz * kz * v };
+  }
+
+  // Row major 3x3 rotation matrix to rotation vector
+  static double[] rodrigues(double[] r) {
+    double cos = Math.max(-1, Math.min(1, (r[0] + r[4] + r[8] - 1) / 2));
+    double theta = Math.acos(cos);
+    double ax = r[7] - r[5];
+    double ay = r[2] - r[6];
+    double az = r[3] - r[1];
+    double sin = Math.sqrt(ax * ax + ay * ay + az * az) / 2;
+
+    if (sin < 1e-6) {
+      if (cos > 0) {
+        // Near the identity
+        return new double[] { ax / 2, ay / 2, az / 2 };
+      }
+
+      // Near a half turn: recover the axis from the symmetric part of the matrix
+      int i = 0;
+      if (r[4] > r[i * 4]) i = 1;
+      if (r[8] > r[i * 4]) i = 2;
+      double[] k = new double[3];
+      k[i] = Math.sqrt(Math.max((r[i * 4] - cos) / (1 - cos), 0));
+      for (int j = 0; j < 3; j++) {
+        if (j != i) {
+          k[j] = (r[i * 3 + j] + r[j * 3 + i]) / (2 * k[i] * (1 - cos));
+        }
+      }
+      double length = norm(k);
+      return scale(k, theta / length);
+    }
+
+    double factor = theta / (2 * sin);
+    return new double[] { ax * factor, ay * factor, az * factor };
+  }
+
+  // -- Linear algebra helpers --
+
+  // Returns { scale, mean_0, mean_1, ... } such that (p - mean) * scale has zero mean and an
+  // average distance of sqrt(dimensions) from the origin.
+  private static double[] normalization(double[] points, int n, int dimensions) {
+    double[] mean = centroid(points, n, dimensions);
+    double distance = 0;
+    for (int i = 0; i < n; i++) {
+      double sq = 0;
+      for (int d = 0; d < dimensions; d++) {
+        double delta = points[i * dimensions + d] - mean[d];
+        sq += delta * delta;
+      }
+      distance += Math.sqrt(sq);
+    }
+    distance /= n;
+
+    double[] result = new double[dimensions + 1];
+    result[0] = distance > 0 ? Math.sqrt(dimensions) / distance : 1;
+    System.arraycopy(mean, 0, result, 1, dimensions);
+    return result;
+  }
+
+  private static double[] centroid(double[] points, int n, int dimensions) {
+    double[] mean = new double[dimensions];
+    for (int i = 0; i < n; i++) {
+      for (int d = 0; d < dimensions; d++) {
+        mean[d] += points[i * dimensions + d];
+      }
+    }
+    for (int d = 0; d < dimensions; d++) {
+      mean[d] /= n;
+    }
+    return mean;
+  }
+
+  private static void setRow(double[] row, double... values) {
+    System.arraycopy(values, 0, row, 0, row.length);
+  }
+
+  // Adds row^T * row to the size x size matrix `ata`
+  private static void accumulate(double[] ata, double[] row, int size) {
+    for (int r = 0; r < size; r++) {
+      if (row[r] == 0) {
+        continue;
+      }
+      for (int c = 0; c < size; c++) {
+        ata[r * size + c] += row[r] * row[c];
+      }
+    }
+  }
+
+  private static double[] smallestEigenvector(double[] matrix, int size) {
+    double[] values = new double[size];
+    double[] vectors = new double[size * size];
+    symmetricEigen(matrix, size, values, vectors);
+
+    int smallest = 0;
+    for (int i = 1; i < size; i++) {
+      if (values[i] < values[smallest]) {
+        smallest = i;
+      }
+    }
+    return column(vectors, size, smallest);
+  }
+
+  // Cyclic Jacobi eigenvalue decomposition of a symmetric size x size matrix. The eigenvectors
+  // are written as the columns of `vectors`. The input matrix is left unchanged.
+  private static void symmetricEigen(double[] matrix, int size, double[] values, double[] vectors) {
+    double[] a = matrix.clone();
+    for (int i = 0; i < size * size; i++) {
+      vectors[i] = 0;
+    }
+    for (int i = 0; i < size; i++) {
+      vectors[i * size + i] = 1;
+    }
+
+    for (int sweep = 0; sweep < 100; sweep++) {
+      double off = 0;
+      double total = 0;
+      for (int p = 0; p < size; p++) {
+        for (int q = 0; q < size; q++) {
+          double sq = a[p * size + q] * a[p * size + q];
+          total += sq;
+          if (p != q) {
+            off += sq;
+          }
+        }
+      }
+      if (off <= 1e-30 * total || off == 0) {
+        break;
+      }
+
+      for (int p = 0; p < size - 1; p++) {
+        for (int q = p + 1; q < size; q++) {
+          double apq = a[p * size + q];
+          if (apq == 0) {
+            continue;
+          }
+
+          double app = a[p * size + p];
+          double aqq = a[q * size + q];
+          double tau = (aqq - app) / (2 * apq);
+          double t = Math.signum(tau) / (Math.abs(tau) + Math.sqrt(1 + tau * tau));
+          if (tau == 0) {
+            t = 1;
+          }
+          double c = 1 / Math.sqrt(1 + t * t);
+          double s = t * c;
+
+          for (int k = 0; k < size; k++) {
+            double akp = a[k * size + p];
+            double akq = a[k * size + q];
+            a[k * size + p] = c * akp - s * akq;
+            a[k * size + q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < size; k++) {
+            double apk = a[p * size + k];
+            double aqk = a[q * size + k];
+            a[p * size + k] = c * apk - s * aqk;
+            a[q * size + k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < size; k++) {
+            double vkp = vectors[k * size + p];
+            double vkq = vectors[k * size + q];
+            vectors[k * size + p] = c * vkp - s * vkq;
+            vectors[k * size + q] = s * vkp + c * vkq;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < size; i++) {
+      values[i] = a[i * size + i];
+    }
+  }
+
+  // Solves the size x size system a * x = b in place by Gaussian elimination with partial
+  // pivoting; the solution is written to b. Returns false if the system is singular.
+  private static boolean solveLinear(double[] a, double[] b, int size) {
+    for (int col = 0; col < size; col++) {
+      int pivot = col;
+      for (int r = col + 1; r < size; r++) {
+        if (Math.abs(a[r * size + col]) > Math.abs(a[pivot * size + col])) {
+          pivot = r;
+        }
+      }
+      if (Math.abs(a[pivot * size + col]) < 1e-300) {
+        return false;
+      }
+      if (pivot != col) {
+        for (int c = 0; c < size; c++) {
+          double tmp = a[col * size + c];
+          a[col * size + c] = a[pivot * size + c];
+          a[pivot * size + c] = tmp;
+        }
+        double tmp = b[col];
+        b[col] = b[pivot];
+        b[pivot] = tmp;
+      }
+
+      for (int r = col + 1; r < size; r++) {
+        double factor = a[r * size + col] / a[col * size + col];
+        if (factor == 0) {
+          continue;
+        }
+        for (int c = col; c < size; c++) {
+          a[r * size + c] -= factor * a[col * size + c];
+        }
+        b[r] -= factor * b[col];
+      }
+    }
+
+    for (int r = size - 1; r >= 0; r--) {
+      double sum = b[r];
+      for (int c = r + 1; c < size; c++) {
+        sum -= a[r * size + c] * b[c];
+      }
+      b[r] = sum / a[r * size + r];
+    }
+    return true;
+  }
+
+  private static double[] column(double[] matrix, int size, int index) {
+    double[] result = new double[size];
+    for (int r = 0; r < size; r++) {
+      result[r] = matrix[r * size + index];
+    }
+    return result;
+  }
+
+  private static double dot(double[] a, double[] b) {
+    return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+  }
+
+  private static double norm(double[] a) {
+    return Math.sqrt(dot(a, a));
+  }
+
+  private static double[] scale(double[] a, double s) {
+    return new double[] { a[0] * s, a[1] * s, a[2] * s };
+  }
+
+  private static double[] subtract(double[] a, double[] b) {
+    return new double[] { a[0] - b[0], a[1] - b[1], a[2] - b[2] };
+  }
+
+  private static double[] cross(double[] a, double[] b) {
+    return new double[] {
+        a[1] * b[2] - a[2] * b[1],
+        a[2] * b[0] - a[0] * b[2],
+        a[0] * b[1] - a[1] * b[0] };
+  }
+
+  private static boolean isFinite(double[] values) {
+    for (double value : values) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
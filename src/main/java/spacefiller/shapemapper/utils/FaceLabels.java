@@ -0,0 +1,106 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+import processing.core.PShape;
+import processing.opengl.PGraphics3D;
+
+import static processing.core.PConstants.NORMAL;
+import static processing.core.PConstants.QUADS;
+
+// Draws the index of every face of a shape as a text label, in a single draw call. The digits
+// are rendered once into a texture atlas, and one textured quad per digit of every label is
+// baked into a single mesh, already transformed by the face's label matrix.
+//
+// Labels are laid out like text(index, 0, 0) with textAlign(CENTER, CENTER) and
+// textSize(TEXT_SIZE) in the face's label space.
+public class FaceLabels {
+  private static final float TEXT_SIZE = 30;
+  // Space around each glyph in the atlas, so that filtering doesn't bleed between glyphs
+  private static final int PADDING = 2;
+
+  private final PShape mesh;
+
+  public FaceLabels(PApplet parent, FaceMetadata faces) {
+    PGraphics atlas = parent.createGraphics(1, 1);
+    atlas.beginDraw();
+    atlas.textSize(TEXT_SIZE);
+    float[] advances = new float[10];
+    float maxAdvance = 0;
+    for (int digit = 0; digit < 10; digit++) {
+      advances[digit] = atlas.textWidth((char) ('0' + digit));
+      maxAdvance = Math.max(maxAdvance, advances[digit]);
+    }
+    float ascent = atlas.textAscent();
+    float descent = atlas.textDescent();
+    atlas.endDraw();
+
+    int cellWidth = (int) Math.ceil(maxAdvance) + PADDING * 2;
+    int cellHeight = (int) Math.ceil(ascent + descent) + PADDING * 2;
+    int atlasWidth = cellWidth * 10;
+
+    atlas = parent.createGraphics(atlasWidth, cellHeight);
+    atlas.beginDraw();
+    atlas.clear();
+    atlas.noStroke();
+    atlas.fill(255);
+    atlas.textSize(TEXT_SIZE);
+    for (int digit = 0; digit < 10; digit++) {
+      atlas.text((char) ('0' + digit), digit * cellWidth + PADDING, PADDING + ascent);
+    }
+    atlas.endDraw();
+    PImage texture = atlas.get();
+
+    mesh = parent.createShape();
+    mesh.beginShape(QUADS);
+    mesh.textureMode(NORMAL);
+    mesh.texture(texture);
+    mesh.noStroke();
+    mesh.fill(255);
+
+    float[] corner = new float[3];
+    // Quads cover the whole atlas cell, padding included, so that nothing is clipped
+    float top = -ascent - PADDING;
+    float bottom = descent + PADDING;
+    float v0 = 0;
+    float v1 = 1;
+
+    for (int face = 0; face < faces.getFaceCount(); face++) {
+      String label = Integer.toString(face);
+
+      float width = 0;
+      for (int i = 0; i < label.length(); i++) {
+        width += advances[label.charAt(i) - '0'];
+      }
+
+      // textAlign(CENTER, CENTER)
+      float x = -width / 2;
+      float baseline = ascent / 2;
+
+      for (int i = 0; i < label.length(); i++) {
+        int digit = label.charAt(i) - '0';
+        float left = x - PADDING;
+        float right = left + cellWidth;
+        float u0 = (float) (digit * cellWidth) / atlasWidth;
+        float u1 = (float) ((digit + 1) * cellWidth) / atlasWidth;
+
+        faces.labelToModel(face, left, baseline + top, corner);
+        mesh.vertex(corner[0], corner[1], corner[2], u0, v0);
+        faces.labelToModel(face, right, baseline + top, corner);
+        mesh.vertex(corner[0], corner[1], corner[2], u1, v0);
+        faces.labelToModel(face, right, baseline + bottom, corner);
+        mesh.vertex(corner[0], corner[1], corner[2], u1, v1);
+        faces.labelToModel(face, left, baseline + bottom, corner);
+        mesh.vertex(corner[0], corner[1], corner[2], u0, v1);
+
+        x += advances[digit];
+      }
+    }
+    mesh.endShape();
+  }
+
+  public void draw(PGraphics3D canvas) {
+    canvas.shape(mesh);
+  }
+}
@@ -0,0 +1,106 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PMatrix3D;
+import processing.core.PVector;
+
+import static processing.core.PConstants.PI;
+
+// Per face data for a shape whose children are its faces, computed once when the shape is
+// added: the centroid and average normal of each face, and the matrix that places the face's
+// number label just in front of the face, facing along the normal.
+public class FaceMetadata {
+  // Distance of the label from the face, along the normal
+  private static final float LABEL_OFFSET = 1;
+  private static final float LABEL_SCALE = 0.25f;
+
+  private final int faceCount;
+
+  // 3 floats per face
+  private final float[] centroids;
+  private final float[] normals;
+
+  // 16 floats per face, row major
+  private final float[] labelMatrices;
+
+  public FaceMetadata(MeshData mesh) {
+    this.faceCount = mesh.getFaceCount();
+    this.centroids = new float[faceCount * 3];
+    this.normals = new float[faceCount * 3];
+    this.labelMatrices = new float[faceCount * 16];
+
+    PMatrix3D matrix = new PMatrix3D();
+    float[] elements = new float[16];
+
+    for (int face = 0; face < faceCount; face++) {
+      int start = mesh.getFaceStart(face);
+      int vertexCount = mesh.getFaceEnd(face) - start;
+
+      float cx = 0, cy = 0, cz = 0;
+      float nx = 0, ny = 0, nz = 0;
+      for (int i = start; i < start + vertexCount; i++) {
+        cx += mesh.getVertexX(i);
+        cy += mesh.getVertexY(i);
+        cz += mesh.getVertexZ(i);
+        nx += mesh.getNormalX(i);
+        ny += mesh.getNormalY(i);
+        nz += mesh.getNormalZ(i);
+      }
+      if (vertexCount > 0) {
+        cx /= vertexCount;
+        cy /= vertexCount;
+        cz /= vertexCount;
+      }
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length > 0) {
+        nx /= length;
+        ny /= length;
+        nz /= length;
+      }
+
+      centroids[face * 3] = cx;
+      centroids[face * 3 + 1] = cy;
+      centroids[face * 3 + 2] = cz;
+      normals[face * 3] = nx;
+      normals[face * 3 + 1] = ny;
+      normals[face * 3 + 2] = nz;
+
+      matrix.reset();
+      matrix.translate(cx + nx * LABEL_OFFSET, cy + ny * LABEL_OFFSET, cz + nz * LABEL_OFFSET);
+      GeometryUtils.rotateToVector(nx, ny, nz, matrix);
+      matrix.rotate(PI / 2, 1, 0, 0);
+      matrix.scale(LABEL_SCALE);
+      matrix.get(elements);
+      System.arraycopy(elements, 0, labelMatrices, face * 16, 16);
+    }
+  }
+
+  public int getFaceCount() {
+    return faceCount;
+  }
+
+  public PVector getCentroid(int face, PVector target) {
+    return target.set(centroids[face * 3], centroids[face * 3 + 1], centroids[face * 3 + 2]);
+  }
+
+  public PVector getNormal(int face, PVector target) {
+    return target.set(normals[face * 3], normals[face * 3 + 1], normals[face * 3 + 2]);
+  }
+
+  public PMatrix3D getLabelMatrix(int face, PMatrix3D target) {
+    int i = face * 16;
+    target.set(
+        labelMatrices[i], labelMatrices[i + 1], labelMatrices[i + 2], labelMatrices[i + 3],
+        labelMatrices[i + 4], labelMatrices[i + 5], labelMatrices[i + 6], labelMatrices[i + 7],
+        labelMatrices[i + 8], labelMatrices[i + 9], labelMatrices[i + 10], labelMatrices[i + 11],
+        labelMatrices[i + 12], labelMatrices[i + 13], labelMatrices[i + 14], labelMatrices[i + 15]);
+    return target;
+  }
+
+  // Transforms the point (x, y, 0) in label space of `face` into model space.
+  void labelToModel(int face, float x, float y, float[] out) {
+    int i = face * 16;
+    out[0] = labelMatrices[i] * x + labelMatrices[i + 1] * y + labelMatrices[i + 3];
+    out[1] = labelMatrices[i + 4] * x + labelMatrices[i + 5] * y + labelMatrices[i + 7];
+    out[2] = labelMatrices[i + 8] * x + labelMatrices[i + 9] * y + labelMatrices[i + 11];
+  }
+}
@@ -1,5 +1,6 @@
 package spacefiller.shapemapper.utils;
 
+import processing.core.PMatrix3D;
 import processing.core.PShape;
 import processing.core.PVector;
 import processing.opengl.PGraphics3D;
@@ -147,4 +148,19 @@ public class GeometryUtils {
     // Rotate around the calculated axis
     canvas.rotate(angle, rotAxis.x, rotAxis.y, rotAxis.z);
   }
+
+  // Same rotation as rotateToVector(PVector, PGraphics3D), applied to a matrix without
+  // allocating.
+  public static void rotateToVector(float x, float y, float z, PMatrix3D matrix) {
+    // up x vec, with up = (0, 1, 0)
+    float axisX = z;
+    float axisZ = -x;
+
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    if (length == 0) {
+      return;
+    }
+    float cos = Math.max(-1, Math.min(1, y / length));
+    matrix.rotate((float) Math.acos(cos), axisX, 0, axisZ);
+  }
 }
@@ -1,26 +1,16 @@
 package spacefiller.shapemapper.utils;
 
-import spacefiller.shapemapper.ShapeMapper;
-
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.stream.Stream;
-
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class IOUtils {
-  public static String[] getFileContents(String filename) {
+  // The lines of the classpath resource at `resourcePath`, or no lines if it can't be read
+  public static String[] getFileContents(String resourcePath) {
     try {
-      InputStream resourceAsStream = ShapeMapper.class.getResourceAsStream("/model.frag.glsl");
-      BufferedReader reader = new BufferedReader(new InputStreamReader(resourceAsStream));
-      Stream<String> lineStream = reader.lines();
-      List<String> lines = lineStream.toList();
-      return lines.toArray(new String[] {});
+      return ResourceCache.getLines(resourcePath);
     } catch (Exception e) {
       e.printStackTrace();
       return new String[] {};
@@ -35,28 +25,28 @@ public class IOUtils {
     return name.substring(lastIndexOf);
   }
 
+  // Copy a classpath resource to a temporary file, for APIs that only take file paths. The
+  // library itself loads its resources through ResourceCache instead.
   public static String extractResourceToFile(String resourcePath) {
     try {
-      InputStream resourceAsStream = ShapeMapper.class.getResourceAsStream(resourcePath);
-      if (resourceAsStream == null) {
-        throw new IllegalArgumentException("Resource not found: " + resourcePath);
-      }
       String extension = getFileExtension(resourcePath);
-      File tempFile = Files.createTempFile(null, extension).toFile();
-      tempFile.deleteOnExit();
-
-      try (FileOutputStream out = new FileOutputStream(tempFile)) {
-        byte[] buffer = new byte[1024];
-        int bytesRead;
-        while ((bytesRead = resourceAsStream.read(buffer)) != -1) {
-          out.write(buffer, 0, bytesRead);
-        }
-      }
-
-      return tempFile.getAbsolutePath();
+      Path tempFile = Files.createTempFile(null, extension);
+      tempFile.toFile().deleteOnExit();
+      Files.write(tempFile, ResourceCache.getBytes(resourcePath));
+      return tempFile.toAbsolutePath().toString();
     } catch (IOException e) {
       e.printStackTrace();
       return null;
     }
   }
+
+  // Sync the directory holding `file`, so that renames and deletes in it survive a crash.
+  // Not every platform can open a directory (Windows can't), in which case this does nothing.
+  public static void syncDirectory(Path file) {
+    try (FileChannel channel = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // The rename or delete still happened, it just may not be durable yet
+    }
+  }
 }
@@ -0,0 +1,261 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PApplet;
+import processing.core.PShape;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static processing.core.PShape.GEOMETRY;
+import static processing.core.PShape.GROUP;
+
+// Immutable copy of a shape's geometry in flat arrays, shared by everything that needs the
+// geometry of a mapped shape: picking, face metadata and face masks. PShapes for drawing are
+// built from the arrays on demand.
+//
+// Each child of the shape is a face, and the vertices of a face are stored contiguously, so a
+// corner shared by several faces appears once per face. The lowest index of each distinct
+// position is that position's canonical vertex, which is what calibration points are keyed by.
+//
+// A shape that isn't a group of plain geometry (e.g. a primitive, or a group of groups) can't
+// be rebuilt from its vertices, so for those a private copy of the shape is kept and copied
+// instead.
+public class MeshData {
+  private final String name;
+  private final boolean group;
+  // Kind of the shape when it is a single piece of geometry
+  private final int kind;
+
+  // 3 floats per vertex
+  final float[] positions;
+  private final float[] normals;
+  // 2 floats per vertex
+  private final float[] uvs;
+  private final int vertexCount;
+  // Canonical vertex of each vertex
+  private final int[] canonical;
+
+  // The vertices of face i are faceStart[i] until faceStart[i + 1]
+  private final int[] faceStart;
+  private final int[] faceKinds;
+  private final String[] faceNames;
+
+  private final PShape source;
+
+  private MeshData(PApplet parent, PShape shape) {
+    this.name = shape.getName();
+    this.group = shape.getFamily() == GROUP;
+    this.kind = shape.getKind();
+
+    int faceCount = group ? shape.getChildCount() : 0;
+    this.faceStart = new int[faceCount + 1];
+    this.faceKinds = new int[faceCount];
+    this.faceNames = new String[faceCount];
+
+    boolean flat = group || shape.getFamily() == GEOMETRY;
+    int total = group ? 0 : countVertices(shape);
+    for (int i = 0; i < faceCount; i++) {
+      PShape face = shape.getChild(i);
+      flat &= face.getFamily() == GEOMETRY && face.getChildCount() == 0;
+      faceKinds[i] = face.getKind();
+      faceNames[i] = face.getName();
+      faceStart[i] = total;
+      total += countVertices(face);
+    }
+    faceStart[faceCount] = total;
+
+    this.vertexCount = total;
+    this.positions = new float[total * 3];
+    this.normals = new float[total * 3];
+    this.uvs = new float[total * 2];
+    collectVertices(shape, 0);
+    this.canonical = weld(positions, total);
+
+    this.source = flat ? null : ShapeUtils.createShape(parent, shape);
+  }
+
+  public static MeshData of(PApplet parent, PShape shape) {
+    return new MeshData(parent, shape);
+  }
+
+  public int getFaceCount() {
+    return faceKinds.length;
+  }
+
+  public int getFaceStart(int face) {
+    return faceStart[face];
+  }
+
+  public int getFaceEnd(int face) {
+    return faceStart[face + 1];
+  }
+
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  public float getVertexX(int index) {
+    return positions[index * 3];
+  }
+
+  public float getVertexY(int index) {
+    return positions[index * 3 + 1];
+  }
+
+  public float getVertexZ(int index) {
+    return positions[index * 3 + 2];
+  }
+
+  public float getNormalX(int index) {
+    return normals[index * 3];
+  }
+
+  public float getNormalY(int index) {
+    return normals[index * 3 + 1];
+  }
+
+  public float getNormalZ(int index) {
+    return normals[index * 3 + 2];
+  }
+
+  // The lowest vertex index with the same position as `index`.
+  public int getCanonicalVertex(int index) {
+    return canonical[index];
+  }
+
+  // The canonical vertex nearest to (x, y, z), or -1 if the mesh has no vertices. A linear
+  // scan, meant for remapping saved points when a model is loaded rather than for picking.
+  public int findNearestVertex(float x, float y, float z) {
+    int nearest = -1;
+    float nearestDistSq = Float.POSITIVE_INFINITY;
+    for (int i = 0; i < vertexCount; i++) {
+      if (canonical[i] != i) {
+        continue;
+      }
+      float dx = positions[i * 3] - x;
+      float dy = positions[i * 3 + 1] - y;
+      float dz = positions[i * 3 + 2] - z;
+      float distSq = dx * dx + dy * dy + dz * dz;
+      if (distSq < nearestDistSq) {
+        nearestDistSq = distSq;
+        nearest = i;
+      }
+    }
+    return nearest;
+  }
+
+  // Build a new shape with the same structure and geometry as the original.
+  public PShape createShape(PApplet parent) {
+    if (source != null) {
+      return ShapeUtils.createShape(parent, source);
+    }
+
+    if (!group) {
+      PShape shape = createGeometry(parent, kind, 0, vertexCount);
+      shape.setName(name);
+      return shape;
+    }
+
+    PShape shape = parent.createShape(GROUP);
+    shape.setName(name);
+    for (int i = 0; i < getFaceCount(); i++) {
+      shape.addChild(createFace(parent, i));
+    }
+    return shape;
+  }
+
+  // Build a group holding only the faces whose index is set in `faces`. Drawn with the OpenGL
+  // renderers, the group is tessellated into a single buffer, so it is drawn in one call
+  // however many faces it has.
+  public PShape createShape(PApplet parent, BitSet faces) {
+    PShape shape = parent.createShape(GROUP);
+    for (int i = faces.nextSetBit(0); i >= 0 && i < getFaceCount(); i = faces.nextSetBit(i + 1)) {
+      shape.addChild(source != null
+          ? ShapeUtils.createShape(parent, source.getChild(i))
+          : createFace(parent, i));
+    }
+    return shape;
+  }
+
+  private PShape createFace(PApplet parent, int face) {
+    PShape shape = createGeometry(parent, faceKinds[face], faceStart[face], faceStart[face + 1]);
+    shape.setName(faceNames[face]);
+    return shape;
+  }
+
+  private PShape createGeometry(PApplet parent, int kind, int start, int end) {
+    PShape shape = parent.createShape();
+    shape.beginShape(kind);
+    for (int i = start; i < end; i++) {
+      shape.normal(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]);
+      shape.vertex(
+          positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2],
+          uvs[i * 2], uvs[i * 2 + 1]);
+    }
+    shape.endShape();
+    return shape;
+  }
+
+  // Map every vertex to the first vertex with a bit for bit identical position, using an open
+  // addressing hash table of vertex indices.
+  private static int[] weld(float[] positions, int count) {
+    int[] canonical = new int[count];
+    int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+    int[] table = new int[capacity];
+    Arrays.fill(table, -1);
+    int mask = capacity - 1;
+
+    for (int i = 0; i < count; i++) {
+      int x = Float.floatToIntBits(positions[i * 3]);
+      int y = Float.floatToIntBits(positions[i * 3 + 1]);
+      int z = Float.floatToIntBits(positions[i * 3 + 2]);
+      int hash = ((x * 31 + y) * 31 + z) * 0x9E3779B9;
+      int slot = (hash ^ hash >>> 16) & mask;
+      while (true) {
+        int other = table[slot];
+        if (other < 0) {
+          table[slot] = i;
+          canonical[i] = i;
+          break;
+        }
+        if (Float.floatToIntBits(positions[other * 3]) == x
+            && Float.floatToIntBits(positions[other * 3 + 1]) == y
+            && Float.floatToIntBits(positions[other * 3 + 2]) == z) {
+          canonical[i] = other;
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+    return canonical;
+  }
+
+  private static int countVertices(PShape shape) {
+    int total = shape.getFamily() == GROUP ? 0 : shape.getVertexCount();
+    for (int i = 0; i < shape.getChildCount(); i++) {
+      total += countVertices(shape.getChild(i));
+    }
+    return total;
+  }
+
+  // Children first, matching the face ranges computed in the constructor.
+  private int collectVertices(PShape shape, int offset) {
+    for (int i = 0; i < shape.getChildCount(); i++) {
+      offset = collectVertices(shape.getChild(i), offset);
+    }
+    if (shape.getFamily() == GROUP) {
+      return offset;
+    }
+    for (int i = 0; i < shape.getVertexCount(); i++, offset++) {
+      positions[offset * 3] = shape.getVertexX(i);
+      positions[offset * 3 + 1] = shape.getVertexY(i);
+      positions[offset * 3 + 2] = shape.getVertexZ(i);
+      normals[offset * 3] = shape.getNormalX(i);
+      normals[offset * 3 + 1] = shape.getNormalY(i);
+      normals[offset * 3 + 2] = shape.getNormalZ(i);
+      uvs[offset * 2] = shape.getTextureU(i);
+      uvs[offset * 2 + 1] = shape.getTextureV(i);
+    }
+    return offset;
+  }
+}
@@ -0,0 +1,158 @@
+package spacefiller.shapemapper.utils;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.calib3d.Calib3d.Rodrigues;
+import static processing.core.PApplet.radians;
+
+// Calibration backend built on OpenCV's calibrateCamera. The OpenCV natives are only loaded
+// the first time this backend is used.
+public class OpenCVCalibrationBackend implements CalibrationBackend {
+  private static volatile boolean nativeLoaded = false;
+
+  // Solves run on several threads at once, so make sure the library is only loaded once.
+  private static void loadNative() {
+    if (nativeLoaded) {
+      return;
+    }
+    synchronized (OpenCVCalibrationBackend.class) {
+      if (!nativeLoaded) {
+        Loader.load(opencv_java.class);
+        nativeLoaded = true;
+      }
+    }
+  }
+
+  @Override
+  public CameraSolution solve(double[] objectPointCoords, double[] imagePointCoords, int width, int height) {
+    return solve(objectPointCoords, imagePointCoords, width, height, null);
+  }
+
+  // calibrateCamera can't be given an extrinsic guess, so only the intrinsics of
+  // `initialGuess` are used. A warm started solve also stops once the error stops changing,
+  // rather than always running the full iteration count.
+  @Override
+  public CameraSolution solve(
+      double[] objectPointCoords,
+      double[] imagePointCoords,
+      int width,
+      int height,
+      CameraSolution initialGuess) {
+    loadNative();
+
+    // Prepare inputs to pass into OpenCV calibrateCamera function
+
+    Mat objectPoints = new MatOfPoint3f();
+    Mat imagePoints = new MatOfPoint3f();
+
+    for (int i = 0; i < objectPointCoords.length / 3; i++) {
+      objectPoints.push_back(new MatOfPoint3f(new Point3(
+          objectPointCoords[i * 3], objectPointCoords[i * 3 + 1], objectPointCoords[i * 3 + 2])));
+      imagePoints.push_back(new MatOfPoint2f(new Point(
+          imagePointCoords[i * 2], imagePointCoords[i * 2 + 1])));
+    }
+
+    float aov = 80;
+    Size imageSize = new Size(width, height);
+    float f = (float) (imageSize.width * radians(aov));
+    Point c = new Point(imageSize.width / 2.0, imageSize.height / 2.0);
+
+    if (initialGuess != null) {
+      f = (float) ((initialGuess.fx + initialGuess.fy) / 2);
+      c = new Point(initialGuess.cx, initialGuess.cy);
+    }
+
+    Mat cameraMatrix = new Mat(3, 3, CvType.CV_32FC1);
+    cameraMatrix.put(0, 0,
+        f, 0, c.x,
+        0, f, c.y,
+        0, 0, 1);
+
+    Mat distCoeffs = new Mat();
+
+    List<Mat> rvecs = new ArrayList<>();
+    List<Mat> tvecs = new ArrayList<>();
+
+    ArrayList<Mat> objectPointViews = new ArrayList<>();
+    objectPointViews.add(objectPoints);
+
+    ArrayList<Mat> imagePointViews = new ArrayList<>();
+    imagePointViews.add(imagePoints);
+
+    int flags = Calib3d.CALIB_USE_INTRINSIC_GUESS
+        | Calib3d.CALIB_FIX_K1
+        | Calib3d.CALIB_FIX_K2
+        | Calib3d.CALIB_FIX_K3
+        | Calib3d.CALIB_ZERO_TANGENT_DIST
+        | Calib3d.CALIB_FIX_ASPECT_RATIO;
+
+    // The default algorithm does not converge to a low error solution for certain common
+    // projector setups. This parameter was empirically determined to be sufficient.
+    TermCriteria criteria = new TermCriteria();
+    criteria.type = TermCriteria.COUNT;
+    criteria.maxCount = 100;
+
+    if (initialGuess != null) {
+      criteria.type |= TermCriteria.EPS;
+      criteria.epsilon = 1e-9;
+    }
+
+    double error = Calib3d.calibrateCamera(
+        objectPointViews,
+        imagePointViews,
+        imageSize,
+        cameraMatrix,
+        distCoeffs,
+        rvecs,
+        tvecs,
+        flags,
+        criteria);
+
+    Mat translation = tvecs.get(0);
+    Mat rotation = rvecs.get(0);
+
+    // Prepare intput for calibrationMatrixValues function
+    double[] fovOutputX = new double[1];
+    double[] fovOutputY = new double[1];
+    double[] focalLengthOutput = new double[1];
+    Point principalPoint = new Point();
+    double[] aspectRatioOutput = new double[1];
+
+    // Call calibrationMatrixValues to get the `principalPoint` value (we don't use the
+    // other outputs of this function currently)
+    Calib3d.calibrationMatrixValues(
+        cameraMatrix,
+        imageSize,
+        0, 0,
+        fovOutputX,
+        fovOutputY,
+        focalLengthOutput,
+        principalPoint,
+        aspectRatioOutput);
+
+    Mat rotationMatrix = new Mat();
+    Rodrigues(rotation, rotationMatrix);
+
+    double[] rm = new double[9];
+    rotationMatrix.get(0, 0, rm);
+
+    double[] tm = new double[3];
+    translation.get(0, 0, tm);
+
+    CameraSolution solution = new CameraSolution(
+        cameraMatrix.get(0, 0)[0],
+        cameraMatrix.get(1, 1)[0],
+        principalPoint.x,
+        principalPoint.y,
+        rm,
+        tm);
+    solution.error = error;
+    return solution;
+  }
+}
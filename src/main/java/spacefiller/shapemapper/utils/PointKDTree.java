@@ -0,0 +1,227 @@
+package spacefiller.shapemapper.utils;
+
+import java.util.Arrays;
+
+// 2D k-d tree mapping non-negative int keys (e.g. vertex indices) to points, supporting
+// incremental insert and remove and nearest neighbour queries within a radius.
+//
+// Removed points are only marked as deleted; once enough of the tree is stale (or it has grown
+// lopsided from incremental inserts), it is rebuilt balanced from the live points.
+//
+// Queries reuse a stack held by the tree, so a tree must not be queried from more than one
+// thread at once.
+public class PointKDTree {
+  private static final int MIN_REBUILD_SIZE = 16;
+
+  private float[] xs = new float[16];
+  private float[] ys = new float[16];
+  private int[] keys = new int[16];
+  private int[] left = new int[16];
+  private int[] right = new int[16];
+  private boolean[] deleted = new boolean[16];
+  private int nodes;
+  private int root = -1;
+
+  // Node of each key, or -1. Grows to the largest key seen.
+  private int[] nodeOfKey = new int[0];
+  private int size;
+  private int deletedCount;
+  private int insertsSinceRebuild;
+
+  // Explicit stack of (node, depth) pairs for nearest(), grown as needed
+  private int[] stack = new int[2 * 64];
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    for (int i = 0; i < nodes; i++) {
+      if (!deleted[i]) {
+        nodeOfKey[keys[i]] = -1;
+      }
+    }
+    nodes = 0;
+    root = -1;
+    size = 0;
+    deletedCount = 0;
+    insertsSinceRebuild = 0;
+  }
+
+  // Insert or move the point for the passed key, which must not be negative.
+  public void put(int key, float x, float y) {
+    if (key < 0) {
+      throw new IllegalArgumentException("Negative key " + key);
+    }
+    remove(key);
+    if (key >= nodeOfKey.length) {
+      int oldLength = nodeOfKey.length;
+      nodeOfKey = Arrays.copyOf(nodeOfKey, Math.max(key + 1, oldLength * 2));
+      Arrays.fill(nodeOfKey, oldLength, nodeOfKey.length, -1);
+    }
+    nodeOfKey[key] = insert(key, x, y);
+    size++;
+    insertsSinceRebuild++;
+
+    // Incremental inserts don't rebalance, so rebuild once they outnumber the points that
+    // were placed by the last balanced build.
+    if (insertsSinceRebuild > MIN_REBUILD_SIZE && insertsSinceRebuild > size()) {
+      rebuild();
+    }
+  }
+
+  public void remove(int key) {
+    int node = key >= 0 && key < nodeOfKey.length ? nodeOfKey[key] : -1;
+    if (node < 0) {
+      return;
+    }
+    nodeOfKey[key] = -1;
+    deleted[node] = true;
+    size--;
+    deletedCount++;
+
+    if (deletedCount > MIN_REBUILD_SIZE && deletedCount > size()) {
+      rebuild();
+    }
+  }
+
+  // Returns the key of the point nearest to (x, y), if it is strictly within `radius`.
+  // Otherwise returns -1.
+  public int nearest(float x, float y, float radius) {
+    int best = -1;
+    float bestDistSq = radius * radius;
+
+    // Iterative descent with an explicit stack of (node, depth)
+    int[] stack = this.stack;
+    int top = 0;
+    if (root >= 0) {
+      stack[top++] = root;
+      stack[top++] = 0;
+    }
+
+    while (top > 0) {
+      int depth = stack[--top];
+      int node = stack[--top];
+
+      float dx = xs[node] - x;
+      float dy = ys[node] - y;
+      float distSq = dx * dx + dy * dy;
+      if (!deleted[node] && distSq < bestDistSq) {
+        bestDistSq = distSq;
+        best = node;
+      }
+
+      float diff = (depth & 1) == 0 ? x - xs[node] : y - ys[node];
+      int near = diff < 0 ? left[node] : right[node];
+      int far = diff < 0 ? right[node] : left[node];
+
+      if (top + 4 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        this.stack = stack;
+      }
+
+      // Push the far side first so the near side is searched first and tightens the radius.
+      if (far >= 0 && diff * diff < bestDistSq) {
+        stack[top++] = far;
+        stack[top++] = depth + 1;
+      }
+      if (near >= 0) {
+        stack[top++] = near;
+        stack[top++] = depth + 1;
+      }
+    }
+
+    return best < 0 ? -1 : keys[best];
+  }
+
+  private int insert(int key, float x, float y) {
+    int node = allocate(key, x, y);
+    if (root < 0) {
+      root = node;
+      return node;
+    }
+
+    int current = root;
+    int depth = 0;
+    while (true) {
+      boolean goLeft = (depth & 1) == 0 ? x < xs[current] : y < ys[current];
+      int next = goLeft ? left[current] : right[current];
+      if (next < 0) {
+        if (goLeft) {
+          left[current] = node;
+        } else {
+          right[current] = node;
+        }
+        return node;
+      }
+      current = next;
+      depth++;
+    }
+  }
+
+  private int allocate(int key, float x, float y) {
+    if (nodes == xs.length) {
+      int capacity = nodes * 2;
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+      keys = Arrays.copyOf(keys, capacity);
+      left = Arrays.copyOf(left, capacity);
+      right = Arrays.copyOf(right, capacity);
+      deleted = Arrays.copyOf(deleted, capacity);
+    }
+    int node = nodes++;
+    xs[node] = x;
+    ys[node] = y;
+    keys[node] = key;
+    left[node] = -1;
+    right[node] = -1;
+    deleted[node] = false;
+    return node;
+  }
+
+  private void rebuild() {
+    int count = size;
+    float[] liveX = new float[count];
+    float[] liveY = new float[count];
+    int[] liveKeys = new int[count];
+    int live = 0;
+    for (int node = 0; node < nodes; node++) {
+      if (!deleted[node]) {
+        liveX[live] = xs[node];
+        liveY[live] = ys[node];
+        liveKeys[live] = keys[node];
+        live++;
+      }
+    }
+
+    clear();
+    size = count;
+
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    root = build(order, 0, count, 0, liveX, liveY, liveKeys);
+  }
+
+  private int build(
+      Integer[] order, int start, int end, int depth,
+      float[] liveX, float[] liveY, int[] liveKeys) {
+    if (start >= end) {
+      return -1;
+    }
+
+    float[] axis = (depth & 1) == 0 ? liveX : liveY;
+    Arrays.sort(order, start, end, (a, b) -> Float.compare(axis[a], axis[b]));
+
+    int mid = (start + end) / 2;
+    int i = order[mid];
+    int key = liveKeys[i];
+    int node = allocate(key, liveX[i], liveY[i]);
+    nodeOfKey[key] = node;
+
+    left[node] = build(order, start, mid, depth + 1, liveX, liveY, liveKeys);
+    right[node] = build(order, mid + 1, end, depth + 1, liveX, liveY, liveKeys);
+    return node;
+  }
+}
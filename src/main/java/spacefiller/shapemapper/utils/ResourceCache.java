@@ -0,0 +1,134 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PApplet;
+import processing.opengl.PShader;
+import spacefiller.shapemapper.ShapeMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Classpath resources the library needs at runtime, such as shader sources, read into memory
+// once per process instead of being extracted to temporary files.
+//
+// Each resource is addressed by the SHA-256 hash of its content. getURL() returns a URL that
+// reads that content straight from memory, which is what Processing's shader loading takes,
+// so shaders still go through Processing's GLSL version handling. Compiled shaders are shared
+// by every ShapeMapper of the same sketch, keyed by the hashes of their sources.
+public class ResourceCache {
+  private static final String PROTOCOL = "shapemapper-resource";
+
+  // Resource path to content hash, and content hash to content
+  private static final Map<String, String> hashes = new ConcurrentHashMap<>();
+  private static final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+  // Shaders are tied to the GL context of their sketch. They are held weakly, so they are
+  // released along with the last ShapeMapper that uses them.
+  private static final Map<PApplet, Map<String, WeakReference<PShader>>> shaders =
+      new WeakHashMap<>();
+
+  private static final URLStreamHandler handler = new URLStreamHandler() {
+    @Override
+    protected URLConnection openConnection(URL url) throws IOException {
+      String path = url.getPath();
+      int separator = path.indexOf('/');
+      byte[] content = contents.get(separator < 0 ? path : path.substring(0, separator));
+      if (content == null) {
+        throw new IOException("Resource not loaded: " + url);
+      }
+      return new URLConnection(url) {
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+          return new ByteArrayInputStream(content);
+        }
+      };
+    }
+  };
+
+  // The SHA-256 hash of the resource at `resourcePath`, as hex. Loads the resource the first
+  // time it is asked for.
+  public static String getHash(String resourcePath) {
+    return hashes.computeIfAbsent(resourcePath, ResourceCache::load);
+  }
+
+  // The content of the resource at `resourcePath`. Shared, so must not be modified.
+  public static byte[] getBytes(String resourcePath) {
+    return contents.get(getHash(resourcePath));
+  }
+
+  // The content of the resource at `resourcePath`, as UTF-8 lines
+  public static String[] getLines(String resourcePath) {
+    return new String(getBytes(resourcePath), StandardCharsets.UTF_8)
+        .lines()
+        .toArray(String[]::new);
+  }
+
+  // A URL that reads the content of the resource at `resourcePath` from memory. Its path is
+  // the content hash followed by the resource path, so errors that name the URL are readable.
+  public static URL getURL(String resourcePath) {
+    String hash = getHash(resourcePath);
+    String name = resourcePath.startsWith("/") ? resourcePath.substring(1) : resourcePath;
+    try {
+      return new URL(null, PROTOCOL + ":" + hash + "/" + name, handler);
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // The shader with the passed vertex and fragment sources, compiled for `parent`. Every
+  // caller with the same sketch and the same source contents gets the same instance.
+  public static PShader getShader(PApplet parent, String vertexPath, String fragmentPath) {
+    String key = getHash(vertexPath) + ":" + getHash(fragmentPath);
+    synchronized (shaders) {
+      Map<String, WeakReference<PShader>> sketchShaders =
+          shaders.computeIfAbsent(parent, p -> new HashMap<>());
+      WeakReference<PShader> reference = sketchShaders.get(key);
+      PShader shader = reference == null ? null : reference.get();
+      if (shader == null) {
+        shader = new PShader(parent, getURL(vertexPath), getURL(fragmentPath));
+        sketchShaders.put(key, new WeakReference<>(shader));
+      }
+      return shader;
+    }
+  }
+
+  // Read the resource at `resourcePath` into memory and return its hash.
+  private static String load(String resourcePath) {
+    byte[] content;
+    try (InputStream in = ShapeMapper.class.getResourceAsStream(resourcePath)) {
+      if (in == null) {
+        throw new IllegalArgumentException("Resource not found: " + resourcePath);
+      }
+      content = in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    String hash;
+    try {
+      hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    contents.putIfAbsent(hash, content);
+    return hash;
+  }
+}
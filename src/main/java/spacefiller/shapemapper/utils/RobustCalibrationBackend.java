@@ -0,0 +1,302 @@
+package spacefiller.shapemapper.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+// Calibration backend that tolerates badly placed points. It wraps another backend and,
+// instead of fitting every correspondence at once, solves many minimal sets of 6 randomly
+// chosen points. Each of these hypotheses is scored against all the points, the best one
+// decides which points are outliers, and the final solution is solved from the inliers only.
+//
+// Hypotheses are solved and scored in parallel, in batches. Solving stops once enough
+// hypotheses have been tried to be confident an outlier free set was among them, or after
+// `maxHypotheses`, whichever comes first, so a solve takes bounded time however noisy the
+// points are.
+//
+// The returned solution's outlierThreshold holds the residual (in pixels) above which a point
+// was treated as an outlier.
+public class RobustCalibrationBackend implements CalibrationBackend {
+  public enum Method {
+    // Counts the points within `inlierThreshold` of a hypothesis as inliers. Hypotheses are
+    // scored by their truncated squared error (MSAC), so of two with as many inliers, the one
+    // that fits them more closely wins.
+    RANSAC,
+    // Scores a hypothesis by the median of its squared residuals, and derives the inlier
+    // threshold from the best median. Needs no threshold, but tolerates at most half of the
+    // points being outliers.
+    LMEDS
+  }
+
+  public static final int SAMPLE_SIZE = 6;
+  public static final double DEFAULT_INLIER_THRESHOLD = 4;
+  public static final int DEFAULT_MAX_HYPOTHESES = 256;
+
+  // Probability that at least one hypothesis was drawn from inliers only, used to stop early
+  private static final double CONFIDENCE = 0.99;
+  private static final int BATCH_SIZE = 32;
+  // Scale from the median residual of a fit to the standard deviation of the noise, for
+  // normally distributed residuals, and the number of standard deviations an inlier can be off
+  private static final double LMEDS_SIGMA_SCALE = 1.4826;
+  private static final double LMEDS_INLIER_SIGMAS = 2.5;
+
+  private final CalibrationBackend backend;
+  private final Method method;
+  private final double inlierThreshold;
+  private final int maxHypotheses;
+
+  public RobustCalibrationBackend(CalibrationBackend backend, Method method) {
+    this(backend, method, DEFAULT_INLIER_THRESHOLD, DEFAULT_MAX_HYPOTHESES);
+  }
+
+  public RobustCalibrationBackend(
+      CalibrationBackend backend, Method method, double inlierThreshold, int maxHypotheses) {
+    this.backend = backend;
+    this.method = method;
+    this.inlierThreshold = inlierThreshold;
+    this.maxHypotheses = maxHypotheses;
+  }
+
+  public CalibrationBackend getBackend() {
+    return backend;
+  }
+
+  public Method getMethod() {
+    return method;
+  }
+
+  @Override
+  public String getCacheKey() {
+    return getClass().getName() + "(" + method + ", " + inlierThreshold + ", " + maxHypotheses
+        + ", " + backend.getCacheKey() + ")";
+  }
+
+  @Override
+  public CameraSolution solve(double[] objectPoints, double[] imagePoints, int width, int height) {
+    return solve(objectPoints, imagePoints, width, height, null);
+  }
+
+  @Override
+  public CameraSolution solve(
+      double[] objectPoints, double[] imagePoints, int width, int height, CameraSolution initialGuess) {
+    int n = objectPoints.length / 3;
+    // With no points to spare there is nothing to vote against an outlier
+    if (n <= SAMPLE_SIZE) {
+      return backend.solve(objectPoints, imagePoints, width, height, initialGuess);
+    }
+
+    Points points = new Points(objectPoints, imagePoints, n);
+
+    // The previous solution is usually still a good fit, so it competes with the hypotheses
+    Hypothesis best = initialGuess == null ? null : score(initialGuess, points);
+
+    // Seeded from the points, so the same points always give the same solution
+    long seed = 31L * Arrays.hashCode(objectPoints) + Arrays.hashCode(imagePoints);
+    int[][] samples = new int[maxHypotheses][];
+    Random random = new Random(seed);
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = sample(random, n);
+    }
+
+    int required = maxHypotheses;
+    for (int start = 0; start < Math.min(required, maxHypotheses); start += BATCH_SIZE) {
+      int end = Math.min(start + BATCH_SIZE, maxHypotheses);
+      Hypothesis batchBest = IntStream.range(start, end)
+          .parallel()
+          .mapToObj(i -> hypothesize(samples[i], points, width, height))
+          .filter(h -> h != null)
+          .reduce(null, RobustCalibrationBackend::better);
+      best = better(best, batchBest);
+
+      if (best != null) {
+        required = requiredHypotheses((double) countInliers(best, threshold(best, n)) / n);
+      }
+    }
+
+    if (best == null) {
+      return null;
+    }
+
+    // Refine using only the inliers of the best hypothesis
+    double threshold = threshold(best, n);
+    double thresholdSq = threshold * threshold;
+    int inlierCount = countInliers(best, threshold);
+    if (inlierCount < SAMPLE_SIZE) {
+      return null;
+    }
+
+    double[] inlierObjectPoints = new double[inlierCount * 3];
+    double[] inlierImagePoints = new double[inlierCount * 2];
+    for (int i = 0, j = 0; i < n; i++) {
+      if (best.residualsSq[i] <= thresholdSq) {
+        System.arraycopy(objectPoints, i * 3, inlierObjectPoints, j * 3, 3);
+        System.arraycopy(imagePoints, i * 2, inlierImagePoints, j * 2, 2);
+        j++;
+      }
+    }
+
+    CameraSolution solution =
+        backend.solve(inlierObjectPoints, inlierImagePoints, width, height, best.solution);
+    if (solution == null) {
+      // The best hypothesis may be the caller's guess, so don't modify it
+      CameraSolution hypothesis = best.solution;
+      solution = new CameraSolution(
+          hypothesis.fx, hypothesis.fy, hypothesis.cx, hypothesis.cy,
+          hypothesis.rotation, hypothesis.translation);
+      solution.error = hypothesis.error;
+    }
+    solution.outlierThreshold = threshold;
+    return solution;
+  }
+
+  private Hypothesis hypothesize(int[] sample, Points points, int width, int height) {
+    double[] objectPoints = new double[SAMPLE_SIZE * 3];
+    double[] imagePoints = new double[SAMPLE_SIZE * 2];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      objectPoints[i * 3] = points.x[sample[i]];
+      objectPoints[i * 3 + 1] = points.y[sample[i]];
+      objectPoints[i * 3 + 2] = points.z[sample[i]];
+      imagePoints[i * 2] = points.u[sample[i]];
+      imagePoints[i * 2 + 1] = points.v[sample[i]];
+    }
+
+    CameraSolution solution;
+    try {
+      solution = backend.solve(objectPoints, imagePoints, width, height);
+    } catch (RuntimeException e) {
+      // A degenerate sample (e.g. collinear points) can make a backend fail outright
+      return null;
+    }
+    return solution == null ? null : score(solution, points);
+  }
+
+  private Hypothesis score(CameraSolution solution, Points points) {
+    int n = points.x.length;
+    float[] residualX = new float[n];
+    float[] residualY = new float[n];
+    CalibrationResult.computeResiduals(
+        solution, points.x, points.y, points.z, points.u, points.v, residualX, residualY);
+
+    double thresholdSq = inlierThreshold * inlierThreshold;
+    double[] residualsSq = new double[n];
+    double cost = 0;
+    for (int i = 0; i < n; i++) {
+      double residualSq = residualX[i] * residualX[i] + residualY[i] * residualY[i];
+      // A degenerate hypothesis can project points to NaN; those count as outliers
+      if (Double.isNaN(residualSq)) {
+        residualSq = Double.POSITIVE_INFINITY;
+      }
+      residualsSq[i] = residualSq;
+      if (residualSq <= thresholdSq) {
+        cost += residualSq;
+      } else {
+        cost += thresholdSq;
+      }
+    }
+
+    if (method == Method.LMEDS) {
+      double[] sorted = residualsSq.clone();
+      Arrays.sort(sorted);
+      cost = sorted[n / 2];
+    }
+    return new Hypothesis(solution, residualsSq, cost);
+  }
+
+  private static Hypothesis better(Hypothesis a, Hypothesis b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    return b.cost < a.cost ? b : a;
+  }
+
+  private double threshold(Hypothesis best, int n) {
+    if (method == Method.RANSAC) {
+      return inlierThreshold;
+    }
+    double sigma = LMEDS_SIGMA_SCALE * (1 + 5.0 / (n - SAMPLE_SIZE)) * Math.sqrt(best.cost);
+    return LMEDS_INLIER_SIGMAS * sigma;
+  }
+
+  private static int countInliers(Hypothesis hypothesis, double threshold) {
+    double thresholdSq = threshold * threshold;
+    int count = 0;
+    for (double residualSq : hypothesis.residualsSq) {
+      if (residualSq <= thresholdSq) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Number of hypotheses needed to draw at least one outlier free sample with probability
+  // CONFIDENCE, given the fraction of points that are inliers.
+  private int requiredHypotheses(double inlierRatio) {
+    double allInliers = Math.pow(inlierRatio, SAMPLE_SIZE);
+    if (allInliers >= 1) {
+      return 1;
+    }
+    if (allInliers <= 0) {
+      return maxHypotheses;
+    }
+    double required = Math.log(1 - CONFIDENCE) / Math.log(1 - allInliers);
+    return (int) Math.min(maxHypotheses, Math.ceil(required));
+  }
+
+  // SAMPLE_SIZE distinct indices below n
+  private static int[] sample(Random random, int n) {
+    int[] sample = new int[SAMPLE_SIZE];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      int index;
+      boolean repeated;
+      do {
+        index = random.nextInt(n);
+        repeated = false;
+        for (int j = 0; j < i; j++) {
+          repeated |= sample[j] == index;
+        }
+      } while (repeated);
+      sample[i] = index;
+    }
+    return sample;
+  }
+
+  // The points laid out for CalibrationResult.computeResiduals
+  private static final class Points {
+    final float[] x;
+    final float[] y;
+    final float[] z;
+    final float[] u;
+    final float[] v;
+
+    Points(double[] objectPoints, double[] imagePoints, int n) {
+      x = new float[n];
+      y = new float[n];
+      z = new float[n];
+      u = new float[n];
+      v = new float[n];
+      for (int i = 0; i < n; i++) {
+        x[i] = (float) objectPoints[i * 3];
+        y[i] = (float) objectPoints[i * 3 + 1];
+        z[i] = (float) objectPoints[i * 3 + 2];
+        u[i] = (float) imagePoints[i * 2];
+        v[i] = (float) imagePoints[i * 2 + 1];
+      }
+    }
+  }
+
+  private static final class Hypothesis {
+    final CameraSolution solution;
+    final double[] residualsSq;
+    // Lower is better
+    final double cost;
+
+    Hypothesis(CameraSolution solution, double[] residualsSq, double cost) {
+      this.solution = solution;
+      this.residualsSq = residualsSq;
+      this.cost = cost;
+    }
+  }
+}
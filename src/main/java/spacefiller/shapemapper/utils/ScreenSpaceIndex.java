@@ -0,0 +1,217 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PMatrix3D;
+import processing.core.PVector;
+import processing.opengl.PGraphics3D;
+
+import java.util.Arrays;
+
+// Caches the screen space positions of every vertex of a shape, bucketed into a uniform grid,
+// so that finding the vertex under the mouse only looks at a handful of grid cells instead of
+// projecting every vertex. The cache is only rebuilt when the projection or model view matrix
+// of the graphics context changes, i.e. when the camera moves.
+public class ScreenSpaceIndex {
+  public static final float DEFAULT_SELECTION_RADIUS = 10;
+  private static final float CELL_SIZE = 16;
+
+  private final float[] positions;
+  private final float[] projected;
+  private final int count;
+
+  private final float[] lastMatrices = new float[32];
+  private final PMatrix3D combined = new PMatrix3D();
+  private boolean built;
+  private int width;
+  private int height;
+
+  private int columns;
+  private int rows;
+  private int[] cellStart;
+  private int[] cellItems;
+
+  private long rebuildCount;
+
+  // Shares the mesh's positions rather than copying them.
+  public ScreenSpaceIndex(MeshData mesh) {
+    this.count = mesh.positions.length / 3;
+    this.positions = mesh.positions;
+    this.projected = new float[count * 3];
+  }
+
+  public int getVertexCount() {
+    return count;
+  }
+
+  public long getRebuildCount() {
+    return rebuildCount;
+  }
+
+  public PVector getClosestPoint(PVector point, PGraphics3D graphics) {
+    return getClosestPoint(point, graphics, DEFAULT_SELECTION_RADIUS);
+  }
+
+  // Returns the model space position of the vertex within `radius` pixels of `point` that is
+  // nearest to the camera, or null if there is none.
+  public PVector getClosestPoint(PVector point, PGraphics3D graphics, float radius) {
+    int index = getClosestVertex(point, graphics, radius);
+    if (index < 0) {
+      return null;
+    }
+    return new PVector(positions[index * 3], positions[index * 3 + 1], positions[index * 3 + 2]);
+  }
+
+  public int getClosestVertex(PVector point, PGraphics3D graphics) {
+    return getClosestVertex(point, graphics, DEFAULT_SELECTION_RADIUS);
+  }
+
+  // Same as getClosestPoint, but returns the index of the vertex, or -1 if there is none.
+  public int getClosestVertex(PVector point, PGraphics3D graphics, float radius) {
+    update(graphics);
+
+    int index = -1;
+    float minDepth = Float.POSITIVE_INFINITY;
+    float radiusSq = radius * radius;
+
+    int range = (int) Math.ceil(radius / CELL_SIZE);
+    int cx = cellX(point.x);
+    int cy = cellY(point.y);
+
+    for (int y = Math.max(cy - range, 0); y <= Math.min(cy + range, rows - 1); y++) {
+      for (int x = Math.max(cx - range, 0); x <= Math.min(cx + range, columns - 1); x++) {
+        int cell = y * columns + x;
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+          int v = cellItems[i] * 3;
+          float dx = projected[v] - point.x;
+          float dy = projected[v + 1] - point.y;
+          if (dx * dx + dy * dy < radiusSq && projected[v + 2] < minDepth) {
+            minDepth = projected[v + 2];
+            index = cellItems[i];
+          }
+        }
+      }
+    }
+
+    return index;
+  }
+
+  private void update(PGraphics3D graphics) {
+    if (built
+        && width == graphics.width
+        && height == graphics.height
+        && matches(graphics.projection, 0)
+        && matches(graphics.modelview, 16)) {
+      return;
+    }
+
+    store(graphics.projection, 0);
+    store(graphics.modelview, 16);
+    width = graphics.width;
+    height = graphics.height;
+
+    project(graphics.projection, graphics.modelview);
+    buildGrid();
+
+    built = true;
+    rebuildCount++;
+  }
+
+  // Same math as PGraphicsOpenGL.screenX/Y/Z, with the two matrices folded into one.
+  private void project(PMatrix3D projection, PMatrix3D modelview) {
+    combined.set(projection);
+    combined.apply(modelview);
+    PMatrix3D m = combined;
+
+    for (int i = 0; i < count * 3; i += 3) {
+      float x = positions[i];
+      float y = positions[i + 1];
+      float z = positions[i + 2];
+
+      float ox = m.m00 * x + m.m01 * y + m.m02 * z + m.m03;
+      float oy = m.m10 * x + m.m11 * y + m.m12 * z + m.m13;
+      float oz = m.m20 * x + m.m21 * y + m.m22 * z + m.m23;
+      float ow = m.m30 * x + m.m31 * y + m.m32 * z + m.m33;
+
+      if (ow != 0) {
+        ox /= ow;
+        oy /= ow;
+        oz /= ow;
+      }
+
+      projected[i] = width * (1 + ox) / 2.0f;
+      projected[i + 1] = height - height * (1 + oy) / 2.0f;
+      projected[i + 2] = (oz + 1) / 2.0f;
+    }
+  }
+
+  // Counting sort of vertex indices by grid cell. The grid extends one cell past each edge of
+  // the canvas so that vertices just off screen can still be picked.
+  private void buildGrid() {
+    columns = (int) Math.ceil(width / CELL_SIZE) + 2;
+    rows = (int) Math.ceil(height / CELL_SIZE) + 2;
+
+    int cells = columns * rows;
+    if (cellStart == null || cellStart.length != cells + 1) {
+      cellStart = new int[cells + 1];
+    } else {
+      Arrays.fill(cellStart, 0);
+    }
+
+    int inside = 0;
+    for (int i = 0; i < count; i++) {
+      int cell = cellOf(i);
+      if (cell >= 0) {
+        cellStart[cell + 1]++;
+        inside++;
+      }
+    }
+
+    for (int c = 0; c < cells; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+
+    if (cellItems == null || cellItems.length < inside) {
+      cellItems = new int[inside];
+    }
+
+    int[] cursor = new int[cells];
+    for (int i = 0; i < count; i++) {
+      int cell = cellOf(i);
+      if (cell >= 0) {
+        cellItems[cellStart[cell] + cursor[cell]++] = i;
+      }
+    }
+  }
+
+  private int cellOf(int vertex) {
+    int x = cellX(projected[vertex * 3]);
+    int y = cellY(projected[vertex * 3 + 1]);
+    if (x < 0 || x >= columns || y < 0 || y >= rows) {
+      return -1;
+    }
+    return y * columns + x;
+  }
+
+  private int cellX(float screenX) {
+    return (int) Math.floor(screenX / CELL_SIZE) + 1;
+  }
+
+  private int cellY(float screenY) {
+    return (int) Math.floor(screenY / CELL_SIZE) + 1;
+  }
+
+  private boolean matches(PMatrix3D m, int offset) {
+    float[] a = lastMatrices;
+    return a[offset] == m.m00 && a[offset + 1] == m.m01 && a[offset + 2] == m.m02 && a[offset + 3] == m.m03
+        && a[offset + 4] == m.m10 && a[offset + 5] == m.m11 && a[offset + 6] == m.m12 && a[offset + 7] == m.m13
+        && a[offset + 8] == m.m20 && a[offset + 9] == m.m21 && a[offset + 10] == m.m22 && a[offset + 11] == m.m23
+        && a[offset + 12] == m.m30 && a[offset + 13] == m.m31 && a[offset + 14] == m.m32 && a[offset + 15] == m.m33;
+  }
+
+  private void store(PMatrix3D m, int offset) {
+    float[] a = lastMatrices;
+    a[offset] = m.m00; a[offset + 1] = m.m01; a[offset + 2] = m.m02; a[offset + 3] = m.m03;
+    a[offset + 4] = m.m10; a[offset + 5] = m.m11; a[offset + 6] = m.m12; a[offset + 7] = m.m13;
+    a[offset + 8] = m.m20; a[offset + 9] = m.m21; a[offset + 10] = m.m22; a[offset + 11] = m.m23;
+    a[offset + 12] = m.m30; a[offset + 13] = m.m31; a[offset + 14] = m.m32; a[offset + 15] = m.m33;
+  }
+}
@@ -0,0 +1,350 @@
+package spacefiller.shapemapper.utils;
+
+import processing.core.PMatrix3D;
+import processing.core.PVector;
+import processing.opengl.PGraphics3D;
+
+// Bounding volume hierarchy over the faces of a mesh, in model space. Used to find the face
+// under the mouse by casting a ray through the current projection, rather than projecting
+// every face to the screen.
+//
+// Each face of the mesh is treated as a triangle, using its first three vertices, which
+// matches GeometryUtils.pickFace.
+public class TriangleBVH {
+  private static final int LEAF_SIZE = 4;
+  private static final float EPSILON = 1e-7f;
+
+  // Triangle vertices, 9 floats per face
+  private final float[] triangles;
+  private final int faceCount;
+
+  // Face indices, reordered so that each leaf covers a contiguous range
+  private final int[] faceOrder;
+
+  // Nodes stored in flat arrays. For leaves, nodeStart/nodeCount is the range in faceOrder.
+  // For inner nodes, nodeCount is 0 and the children are at nodeStart and nodeStart + 1.
+  private float[] nodeBounds;
+  private int[] nodeStart;
+  private int[] nodeCount;
+  private int nodes;
+
+  private final PMatrix3D combined = new PMatrix3D();
+  private final PMatrix3D inverse = new PMatrix3D();
+  private final float[] ray = new float[6];
+  private final float[] unprojected = new float[3];
+  private int[] stack = new int[64];
+
+  public TriangleBVH(MeshData mesh) {
+    this(trianglesOf(mesh));
+  }
+
+  private TriangleBVH(float[] triangles) {
+    this.faceCount = triangles.length / 9;
+    this.triangles = triangles;
+    this.faceOrder = new int[faceCount];
+
+    float[] centroids = new float[faceCount * 3];
+    for (int i = 0; i < faceCount; i++) {
+      for (int axis = 0; axis < 3; axis++) {
+        centroids[i * 3 + axis] = (triangles[i * 9 + axis]
+            + triangles[i * 9 + 3 + axis]
+            + triangles[i * 9 + 6 + axis]) / 3;
+      }
+      faceOrder[i] = i;
+    }
+
+    int capacity = Math.max(1, 2 * faceCount / LEAF_SIZE + 1) * 2;
+    nodeBounds = new float[capacity * 6];
+    nodeStart = new int[capacity];
+    nodeCount = new int[capacity];
+
+    nodes = 1;
+    build(0, 0, faceCount, centroids);
+  }
+
+  // Faces with fewer than three vertices are left degenerate, so they are never hit.
+  private static float[] trianglesOf(MeshData mesh) {
+    float[] triangles = new float[mesh.getFaceCount() * 9];
+    for (int i = 0; i < mesh.getFaceCount(); i++) {
+      int start = mesh.getFaceStart(i);
+      if (mesh.getFaceEnd(i) - start < 3) {
+        continue;
+      }
+      System.arraycopy(mesh.positions, start * 3, triangles, i * 9, 9);
+    }
+    return triangles;
+  }
+
+  public int getFaceCount() {
+    return faceCount;
+  }
+
+  // Returns the index of the face under `point` (in screen coordinates of `graphics`) that
+  // is nearest to the camera, or -1 if there is none.
+  public int pick(PVector point, PGraphics3D graphics) {
+    if (faceCount == 0 || !makeRay(point, graphics)) {
+      return -1;
+    }
+
+    float ox = ray[0], oy = ray[1], oz = ray[2];
+    float dx = ray[3], dy = ray[4], dz = ray[5];
+    float invX = 1 / dx, invY = 1 / dy, invZ = 1 / dz;
+
+    int closestFace = -1;
+    float closestDepth = Float.POSITIVE_INFINITY;
+
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (!intersectsBounds(node, ox, oy, oz, invX, invY, invZ)) {
+        continue;
+      }
+
+      if (nodeCount[node] > 0) {
+        for (int i = nodeStart[node]; i < nodeStart[node] + nodeCount[node]; i++) {
+          int face = faceOrder[i];
+          float t = intersectTriangle(face, ox, oy, oz, dx, dy, dz);
+          if (Float.isNaN(t)) {
+            continue;
+          }
+
+          float depth = screenDepth(ox + t * dx, oy + t * dy, oz + t * dz);
+          if (depth < closestDepth) {
+            closestDepth = depth;
+            closestFace = face;
+          }
+        }
+      } else {
+        if (top + 2 > stack.length) {
+          int[] grown = new int[stack.length * 2];
+          System.arraycopy(stack, 0, grown, 0, top);
+          stack = grown;
+        }
+        stack[top++] = nodeStart[node];
+        stack[top++] = nodeStart[node] + 1;
+      }
+    }
+
+    return closestFace;
+  }
+
+  private void build(int node, int start, int end, float[] centroids) {
+    float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+    float cMinX = Float.POSITIVE_INFINITY, cMinY = Float.POSITIVE_INFINITY, cMinZ = Float.POSITIVE_INFINITY;
+    float cMaxX = Float.NEGATIVE_INFINITY, cMaxY = Float.NEGATIVE_INFINITY, cMaxZ = Float.NEGATIVE_INFINITY;
+
+    for (int i = start; i < end; i++) {
+      int face = faceOrder[i];
+      for (int v = 0; v < 9; v += 3) {
+        float x = triangles[face * 9 + v];
+        float y = triangles[face * 9 + v + 1];
+        float z = triangles[face * 9 + v + 2];
+        minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+        minZ = Math.min(minZ, z); maxZ = Math.max(maxZ, z);
+      }
+      float cx = centroids[face * 3], cy = centroids[face * 3 + 1], cz = centroids[face * 3 + 2];
+      cMinX = Math.min(cMinX, cx); cMaxX = Math.max(cMaxX, cx);
+      cMinY = Math.min(cMinY, cy); cMaxY = Math.max(cMaxY, cy);
+      cMinZ = Math.min(cMinZ, cz); cMaxZ = Math.max(cMaxZ, cz);
+    }
+
+    int b = node * 6;
+    nodeBounds[b] = minX; nodeBounds[b + 1] = minY; nodeBounds[b + 2] = minZ;
+    nodeBounds[b + 3] = maxX; nodeBounds[b + 4] = maxY; nodeBounds[b + 5] = maxZ;
+
+    int count = end - start;
+    float extentX = cMaxX - cMinX, extentY = cMaxY - cMinY, extentZ = cMaxZ - cMinZ;
+    if (count <= LEAF_SIZE || Math.max(extentX, Math.max(extentY, extentZ)) == 0) {
+      nodeStart[node] = start;
+      nodeCount[node] = count;
+      return;
+    }
+
+    // Split at the median centroid along the longest axis
+    int axis = extentX >= extentY && extentX >= extentZ ? 0 : extentY >= extentZ ? 1 : 2;
+    int mid = (start + end) / 2;
+    select(start, end - 1, mid, axis, centroids);
+
+    int left = nodes;
+    nodes += 2;
+    ensureNodeCapacity(nodes);
+    nodeStart[node] = left;
+    nodeCount[node] = 0;
+
+    build(left, start, mid, centroids);
+    build(left + 1, mid, end, centroids);
+  }
+
+  // Quickselect on faceOrder[lo..hi] so that faceOrder[k] has the k-th smallest centroid
+  // along the axis, with smaller ones before it and larger ones after.
+  private void select(int lo, int hi, int k, int axis, float[] centroids) {
+    while (lo < hi) {
+      float pivot = centroids[faceOrder[(lo + hi) >>> 1] * 3 + axis];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (centroids[faceOrder[i] * 3 + axis] < pivot) i++;
+        while (centroids[faceOrder[j] * 3 + axis] > pivot) j--;
+        if (i <= j) {
+          int tmp = faceOrder[i];
+          faceOrder[i] = faceOrder[j];
+          faceOrder[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void ensureNodeCapacity(int required) {
+    if (required <= nodeStart.length) {
+      return;
+    }
+    int capacity = Math.max(required, nodeStart.length * 2);
+    float[] bounds = new float[capacity * 6];
+    System.arraycopy(nodeBounds, 0, bounds, 0, nodeBounds.length);
+    int[] starts = new int[capacity];
+    System.arraycopy(nodeStart, 0, starts, 0, nodeStart.length);
+    int[] counts = new int[capacity];
+    System.arraycopy(nodeCount, 0, counts, 0, nodeCount.length);
+    nodeBounds = bounds;
+    nodeStart = starts;
+    nodeCount = counts;
+  }
+
+  // Build the model space line that projects onto `point`, by unprojecting two depths
+  // through the inverse of the current projection * model view matrix.
+  private boolean makeRay(PVector point, PGraphics3D graphics) {
+    combined.set(graphics.projection);
+    combined.apply(graphics.modelview);
+    inverse.set(combined);
+    if (!inverse.invert()) {
+      return false;
+    }
+
+    float ndcX = 2 * point.x / graphics.width - 1;
+    float ndcY = 1 - 2 * point.y / graphics.height;
+
+    if (!unproject(ndcX, ndcY, -1) && !unproject(ndcX, ndcY, 0.5f)) {
+      return false;
+    }
+    float ax = unprojected[0], ay = unprojected[1], az = unprojected[2];
+
+    if (!unproject(ndcX, ndcY, 1) && !unproject(ndcX, ndcY, 0)) {
+      return false;
+    }
+
+    ray[0] = ax;
+    ray[1] = ay;
+    ray[2] = az;
+    ray[3] = unprojected[0] - ax;
+    ray[4] = unprojected[1] - ay;
+    ray[5] = unprojected[2] - az;
+    return ray[3] != 0 || ray[4] != 0 || ray[5] != 0;
+  }
+
+  private boolean unproject(float x, float y, float z) {
+    PMatrix3D m = inverse;
+    float w = m.m30 * x + m.m31 * y + m.m32 * z + m.m33;
+    if (Math.abs(w) < EPSILON) {
+      return false;
+    }
+    unprojected[0] = (m.m00 * x + m.m01 * y + m.m02 * z + m.m03) / w;
+    unprojected[1] = (m.m10 * x + m.m11 * y + m.m12 * z + m.m13) / w;
+    unprojected[2] = (m.m20 * x + m.m21 * y + m.m22 * z + m.m23) / w;
+    return true;
+  }
+
+  // Same as graphics.screenZ, using the matrix captured in makeRay. Depth is affine across a
+  // triangle in screen space, so this equals the interpolated depth used by pickFace.
+  private float screenDepth(float x, float y, float z) {
+    PMatrix3D m = combined;
+    float oz = m.m20 * x + m.m21 * y + m.m22 * z + m.m23;
+    float ow = m.m30 * x + m.m31 * y + m.m32 * z + m.m33;
+    if (ow != 0) {
+      oz /= ow;
+    }
+    return (oz + 1) / 2.0f;
+  }
+
+  // Slab test against an unbounded line, since faces on either side of the unprojected points
+  // can be under the mouse.
+  private boolean intersectsBounds(
+      int node, float ox, float oy, float oz, float invX, float invY, float invZ) {
+    int b = node * 6;
+    float tMin = Float.NEGATIVE_INFINITY;
+    float tMax = Float.POSITIVE_INFINITY;
+
+    float t1 = (nodeBounds[b] - ox) * invX, t2 = (nodeBounds[b + 3] - ox) * invX;
+    if (!Float.isNaN(t1) && !Float.isNaN(t2)) {
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+    } else if (ox < nodeBounds[b] || ox > nodeBounds[b + 3]) {
+      return false;
+    }
+
+    t1 = (nodeBounds[b + 1] - oy) * invY;
+    t2 = (nodeBounds[b + 4] - oy) * invY;
+    if (!Float.isNaN(t1) && !Float.isNaN(t2)) {
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+    } else if (oy < nodeBounds[b + 1] || oy > nodeBounds[b + 4]) {
+      return false;
+    }
+
+    t1 = (nodeBounds[b + 2] - oz) * invZ;
+    t2 = (nodeBounds[b + 5] - oz) * invZ;
+    if (!Float.isNaN(t1) && !Float.isNaN(t2)) {
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+    } else if (oz < nodeBounds[b + 2] || oz > nodeBounds[b + 5]) {
+      return false;
+    }
+
+    return tMin <= tMax;
+  }
+
+  // Moller-Trumbore intersection of the line with a face. Returns the line parameter of the
+  // hit, or NaN if the line misses the face.
+  private float intersectTriangle(
+      int face, float ox, float oy, float oz, float dx, float dy, float dz) {
+    int t = face * 9;
+    float ax = triangles[t], ay = triangles[t + 1], az = triangles[t + 2];
+    float e1x = triangles[t + 3] - ax, e1y = triangles[t + 4] - ay, e1z = triangles[t + 5] - az;
+    float e2x = triangles[t + 6] - ax, e2y = triangles[t + 7] - ay, e2z = triangles[t + 8] - az;
+
+    float px = dy * e2z - dz * e2y;
+    float py = dz * e2x - dx * e2z;
+    float pz = dx * e2y - dy * e2x;
+    float det = e1x * px + e1y * py + e1z * pz;
+    if (det == 0) {
+      return Float.NaN;
+    }
+    float invDet = 1 / det;
+
+    float sx = ox - ax, sy = oy - ay, sz = oz - az;
+    float u = (sx * px + sy * py + sz * pz) * invDet;
+    if (u < -EPSILON || u > 1 + EPSILON) {
+      return Float.NaN;
+    }
+
+    float qx = sy * e1z - sz * e1y;
+    float qy = sz * e1x - sx * e1z;
+    float qz = sx * e1y - sy * e1x;
+    float v = (dx * qx + dy * qy + dz * qz) * invDet;
+    if (v < -EPSILON || u + v > 1 + EPSILON) {
+      return Float.NaN;
+    }
+
+    return (e2x * qx + e2y * qy + e2z * qz) * invDet;
+  }
+}
@@ -0,0 +1,94 @@
+package spacefiller.peasy;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import processing.core.PApplet;
+import processing.opengl.PGraphics3D;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+// Plays the same camera moves on a hand-advanced clock at several frame rates, and checks the
+// camera is in the same state at the same times whatever the rate.
+class PeasyCamFrameRateTest {
+	private static final int[] FRAME_RATES = { 20, 30, 60, 144 };
+	// Times to compare at, which fall on a frame at every rate above
+	private static final long[] CHECK_NANOS = { 500_000_000L, 1_000_000_000L, 3_000_000_000L };
+	// The state is read back as floats
+	private static final double TOLERANCE = 1e-4;
+
+	private static PApplet sketch;
+
+	private interface Moves {
+		void start(PeasyCam camera);
+	}
+
+	@BeforeAll
+	static void createSketch() {
+		sketch = new PApplet();
+		final PGraphics3D graphics = new PGraphics3D();
+		graphics.setParent(sketch);
+		graphics.setPrimary(true);
+		graphics.setSize(400, 300);
+		sketch.g = graphics;
+		sketch.width = 400;
+		sketch.height = 300;
+		sketch.mouseX = 300;
+		sketch.mouseY = 100;
+	}
+
+	// The camera's state at each of CHECK_NANOS
+	private static double[][] play(final int frameRate, final Moves moves) {
+		final long[] now = { 0 };
+		final PeasyCam camera = new PeasyCam(sketch, 500);
+		camera.setClock(() -> now[0]);
+		moves.start(camera);
+
+		final double[][] states = new double[CHECK_NANOS.length][];
+		int next = 0;
+		for (int frame = 1; next < CHECK_NANOS.length; frame++) {
+			now[0] = Math.round(frame * 1e9 / frameRate);
+			camera.update();
+			if (now[0] == CHECK_NANOS[next]) {
+				states[next++] = state(camera);
+			}
+		}
+		return states;
+	}
+
+	private static double[] state(final PeasyCam camera) {
+		final float[] lookAt = camera.getLookAt();
+		final float[] position = camera.getPosition();
+		final float[] rotations = camera.getRotations();
+		return new double[] { lookAt[0], lookAt[1], lookAt[2], position[0], position[1],
+				position[2], rotations[0], rotations[1], rotations[2], camera.getDistance() };
+	}
+
+	private static void assertSameAtEveryFrameRate(final Moves moves) {
+		final double[][] expected = play(60, moves);
+		for (final int frameRate : FRAME_RATES) {
+			final double[][] actual = play(frameRate, moves);
+			for (int i = 0; i < CHECK_NANOS.length; i++) {
+				assertArrayEquals(expected[i], actual[i], TOLERANCE,
+						frameRate + " fps at " + CHECK_NANOS[i] / 1e9 + " s");
+			}
+		}
+	}
+
+	@Test
+	void dampedDragsMatch() {
+		assertSameAtEveryFrameRate(camera -> {
+			camera.getRotateDragHandler().handleDrag(30, 20);
+			camera.getPanDragHandler().handleDrag(40, 10);
+			camera.getZoomDragHandler().handleDrag(0, 10);
+		});
+	}
+
+	@Test
+	void dampedDragsDuringInterpolationMatch() {
+		assertSameAtEveryFrameRate(camera -> {
+			camera.getRotateDragHandler().handleDrag(-20, 15);
+			camera.getZoomDragHandler().handleDrag(0, -20);
+			camera.lookAt(5, 6, 7, 700.0, 800L);
+		});
+	}
+}
@@ -0,0 +1,86 @@
+package spacefiller.shapemapper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import spacefiller.shapemapper.utils.CalibrationResult;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CalibrationExecutorTest {
+  private static final int REQUESTS = 100;
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 600;
+
+  @Test
+  @Timeout(10)
+  void solvesOnlyTheLatestOfRepeatedRequests() throws InterruptedException {
+    // Tasks wait for the gate, so every request arrives while the first is still queued
+    CountDownLatch gate = new CountDownLatch(1);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    CalibrationExecutor executor = new CalibrationExecutor(runnable -> pool.execute(() -> {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      runnable.run();
+    }));
+
+    try {
+      PointCorrespondences points = new PointCorrespondences();
+      Mapping mapping = new Mapping(points, new BitSet(), 0);
+      for (int i = 0; i < REQUESTS; i++) {
+        movePoints(points, i);
+        executor.submit(mapping, points, WIDTH, HEIGHT);
+      }
+      assertTrue(executor.isPending(mapping));
+
+      gate.countDown();
+      executor.awaitIdle();
+
+      assertEquals(1, executor.getSolveCount());
+      assertEquals(REQUESTS - 1, executor.getCoalescedCount());
+      assertSolved(mapping, REQUESTS - 1);
+
+      // Once idle, the next request is solved on its own
+      movePoints(points, REQUESTS);
+      executor.submit(mapping, points, WIDTH, HEIGHT);
+      executor.awaitIdle();
+
+      assertEquals(2, executor.getSolveCount());
+      assertSolved(mapping, REQUESTS);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // Put the corners of a cube seen through a pinhole camera, shifted right by `shift` pixels
+  private static void movePoints(PointCorrespondences points, int shift) {
+    for (int vertex = 0; vertex < 8; vertex++) {
+      float x = (vertex & 1) == 0 ? -1 : 1;
+      float y = (vertex & 2) == 0 ? -1 : 1;
+      float z = (vertex & 4) == 0 ? -1 : 1;
+      float u = WIDTH / 2f + 500 * x / (z + 6) + shift;
+      float v = HEIGHT / 2f + 500 * y / (z + 6);
+      points.put(vertex, x, y, z, u, v);
+    }
+  }
+
+  private static void assertSolved(Mapping mapping, int shift) {
+    CalibrationResult result = mapping.getCalibrationResult();
+    assertNotNull(result);
+    assertEquals(8, result.size());
+    for (int i = 0; i < result.size(); i++) {
+      float x = result.modelX[i];
+      float z = result.modelZ[i];
+      assertEquals(WIDTH / 2f + 500 * x / (z + 6) + shift, result.imageX[i], 1e-3f);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package spacefiller.shapemapper;
+
+import org.junit.jupiter.api.Test;
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
+import processing.opengl.PGraphics3D;
+import spacefiller.shapemapper.utils.MeshData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CalibrationFormatTest {
+  // Offsets into the encoding of calibration() below
+  private static final int SHAPE_COUNT = 8;
+  private static final int NAME_LENGTH = 12;
+  private static final int MAPPING_COUNT = 17;
+  private static final int POINT_COUNT = 21;
+  private static final int FIRST_VERTEX = 25;
+  private static final int FACE_COUNT = 25 + 2 * 24;
+  private static final int WORD_COUNT = FACE_COUNT + 4;
+
+  // One shape named "a" with one mapping of two points, and faces 1 and 70 of 100 masked
+  private static List<MappedShape> calibration() {
+    PointCorrespondences points = new PointCorrespondences();
+    points.put(3, 1, 2, 3, 10, 20);
+    points.put(-1, 4, 5, 6, 30, 40);
+    BitSet mask = new BitSet();
+    mask.set(1);
+    mask.set(70);
+
+    List<Mapping> mappings = new ArrayList<>();
+    mappings.add(new Mapping(points, mask, 100));
+    List<MappedShape> shapes = new ArrayList<>();
+    shapes.add(new MappedShape("a", mappings));
+    return shapes;
+  }
+
+  private static ByteBuffer encoded() {
+    return ByteBuffer.wrap(CalibrationFormat.encode(calibration())).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void assertCorrupt(ByteBuffer buffer) {
+    assertThrows(IOException.class, () -> CalibrationFormat.decode(buffer));
+  }
+
+  @Test
+  void roundTrips() throws IOException {
+    List<MappedShape> shapes = CalibrationFormat.decode(encoded());
+
+    assertEquals(1, shapes.size());
+    assertEquals("a", shapes.get(0).getName());
+    Mapping mapping = shapes.get(0).getMapping(0);
+    PointCorrespondences points = mapping.getCorrespondences();
+    assertEquals(2, points.size());
+    assertEquals(0, points.slotOf(3));
+    assertEquals(30, points.getImageX(points.find(-1, 4, 5, 6)));
+    assertEquals(100, mapping.getFaceCount());
+    assertTrue(mapping.getFaceMask(70));
+    assertFalse(mapping.getFaceMask(2));
+  }
+
+  @Test
+  void rejectsTruncatedData() {
+    ByteBuffer buffer = encoded();
+    buffer.limit(buffer.limit() - 1);
+    assertCorrupt(buffer);
+  }
+
+  @Test
+  void rejectsCountsLargerThanTheData() {
+    for (int offset : new int[] { SHAPE_COUNT, NAME_LENGTH, MAPPING_COUNT, POINT_COUNT, WORD_COUNT }) {
+      for (int count : new int[] { Integer.MAX_VALUE, 1 << 20, -1 }) {
+        assertCorrupt(encoded().putInt(offset, count));
+      }
+    }
+  }
+
+  @Test
+  void rejectsFaceCountsThatDontMatchTheMask() {
+    assertCorrupt(encoded().putInt(FACE_COUNT, -1));
+    assertCorrupt(encoded().putInt(FACE_COUNT, 10));
+  }
+
+  @Test
+  void rejectsInvalidVertexIndices() {
+    assertCorrupt(encoded().putInt(FIRST_VERTEX, -2));
+    assertCorrupt(encoded().putInt(FIRST_VERTEX, PointCorrespondences.MAX_VERTEX + 1));
+    assertCorrupt(encoded().putInt(FIRST_VERTEX, Integer.MAX_VALUE));
+  }
+
+  private static PGraphics3D graphics() {
+    PApplet sketch = new PApplet();
+    PGraphics3D graphics = new PGraphics3D();
+    graphics.setParent(sketch);
+    graphics.setPrimary(true);
+    graphics.setSize(100, 100);
+    sketch.g = graphics;
+    return graphics;
+  }
+
+  // A live mapping of a group of `faces` separate triangles
+  private static Mapping mapping(int faces) {
+    PGraphics3D graphics = graphics();
+    PApplet sketch = graphics.parent;
+    PShape group = sketch.createShape(PShape.GROUP);
+    for (int i = 0; i < faces; i++) {
+      PShape face = sketch.createShape();
+      face.beginShape(PConstants.TRIANGLES);
+      face.vertex(i, 0, 0);
+      face.vertex(i + 1, 0, 0);
+      face.vertex(i, 1, 0);
+      face.endShape();
+      group.addChild(face);
+    }
+    return new Mapping(sketch, graphics, MeshData.of(sketch, group));
+  }
+
+  private static Mapping roundTrip(Mapping mapping) throws IOException {
+    List<Mapping> mappings = new ArrayList<>();
+    mappings.add(mapping);
+    List<MappedShape> shapes = new ArrayList<>();
+    shapes.add(new MappedShape("a", mappings));
+    byte[] bytes = CalibrationFormat.encode(shapes);
+    return CalibrationFormat.decode(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN))
+        .get(0).getMapping(0);
+  }
+
+  @Test
+  void roundTripsMasksOfFacesAddedSinceSaving() throws IOException {
+    // Saved when the model had 2 faces
+    BitSet savedMask = new BitSet();
+    savedMask.set(1);
+    Mapping saved = new Mapping(new PointCorrespondences(), savedMask, 2);
+
+    Mapping mapping = mapping(100);
+    mapping.copyFrom(saved);
+    mapping.setFaceMask(70, true);
+    assertFalse(saved.getFaceMask(70));
+
+    Mapping loaded = roundTrip(mapping);
+    assertEquals(100, loaded.getFaceCount());
+    assertTrue(loaded.getFaceMask(1));
+    assertTrue(loaded.getFaceMask(70));
+  }
+
+  @Test
+  void dropsMasksOfFacesRemovedSinceSaving() throws IOException {
+    Mapping mapping = mapping(50);
+    mapping.copyFrom(calibration().get(0).getMapping(0));
+
+    Mapping loaded = roundTrip(mapping);
+    assertEquals(50, loaded.getFaceCount());
+    assertTrue(loaded.getFaceMask(1));
+    assertFalse(loaded.getFaceMask(70));
+  }
+}
@@ -0,0 +1,76 @@
+package spacefiller.shapemapper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Drives the writer's debounce from a clock advanced by hand, one poll() per frame as in a
+// sketch.
+class CalibrationWriterTest {
+  private static final long FRAME_NANOS = 16_666_667L;
+  private static final int REQUESTS = 500;
+
+  @TempDir
+  Path directory;
+
+  private long now;
+  private final AtomicInteger snapshots = new AtomicInteger();
+
+  @Test
+  void writesABurstWithinOneFrameOnce() throws IOException {
+    CalibrationWriter writer = writer();
+    for (int i = 0; i < REQUESTS; i++) {
+      writer.requestSave();
+    }
+    runFrames(writer, 60);
+    writer.flush();
+
+    assertEquals(REQUESTS, writer.getRequestCount());
+    assertEquals(1, snapshots.get());
+    assertEquals(1, writer.getWriteCount());
+    assertArrayEquals(new byte[] { 1 }, Files.readAllBytes(directory.resolve("calibration")));
+  }
+
+  @Test
+  void writesABurstSpreadOverFramesAFewTimes() {
+    // A drag: one request every frame for a little over 8 seconds. Saves are held back while
+    // requests keep coming, but never for longer than the maximum delay of 2 seconds.
+    CalibrationWriter writer = writer();
+    for (int i = 0; i < REQUESTS; i++) {
+      writer.requestSave();
+      runFrames(writer, 1);
+    }
+    runFrames(writer, 60);
+    writer.flush();
+
+    assertEquals(REQUESTS, writer.getRequestCount());
+    assertTrue(snapshots.get() >= 4 && snapshots.get() <= 5, snapshots + " snapshots");
+    assertEquals(snapshots.get(), writer.getWriteCount());
+  }
+
+  private CalibrationWriter writer() {
+    return new CalibrationWriter(
+        directory.resolve("calibration").toString(),
+        () -> {
+          snapshots.incrementAndGet();
+          return new byte[] { 1 };
+        },
+        CalibrationWriter.DEFAULT_GENERATIONS,
+        () -> now);
+  }
+
+  private void runFrames(CalibrationWriter writer, int frames) {
+    for (int i = 0; i < frames; i++) {
+      now += FRAME_NANOS;
+      writer.poll();
+    }
+  }
+}
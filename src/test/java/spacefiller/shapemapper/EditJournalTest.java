@@ -0,0 +1,91 @@
+package spacefiller.shapemapper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EditJournalTest {
+  @TempDir
+  Path directory;
+
+  private static List<MappedShape> shapes(String... names) {
+    List<MappedShape> shapes = new ArrayList<>();
+    for (String name : names) {
+      List<Mapping> mappings = new ArrayList<>();
+      mappings.add(new Mapping(new PointCorrespondences(), new BitSet(), 4));
+      shapes.add(new MappedShape(name, mappings));
+    }
+    return shapes;
+  }
+
+  // "Aa" and "BB" have the same String.hashCode(), so entries for one must not be replayed onto
+  // the other
+  @Test
+  void replaysOntoTheShapeTheEditWasMadeTo() throws IOException {
+    Path path = directory.resolve("calibration.bin");
+    List<MappedShape> shapes = shapes("Aa", "BB");
+    CalibrationWriter writer = new CalibrationWriter(path.toString(), () -> null);
+    EditJournal journal = new EditJournal(writer, shapes);
+
+    journal.setFaceMask(shapes.get(0), shapes.get(0).getMapping(0), 1, true);
+    journal.setFaceMask(shapes.get(1), shapes.get(1).getMapping(0), 2, true);
+    writer.flush();
+
+    List<MappedShape> loaded = shapes("Aa", "BB");
+    assertEquals(2, EditJournal.replay(CalibrationWriter.journalPath(path), loaded));
+
+    Mapping aa = loaded.get(0).getMapping(0);
+    Mapping bb = loaded.get(1).getMapping(0);
+    assertTrue(aa.getFaceMask(1));
+    assertFalse(aa.getFaceMask(2));
+    assertFalse(bb.getFaceMask(1));
+    assertTrue(bb.getFaceMask(2));
+  }
+
+  @Test
+  void skipsEditsToShapesMissingFromTheSnapshot() throws IOException {
+    Path path = directory.resolve("calibration.bin");
+    List<MappedShape> snapshot = shapes("a");
+    CalibrationWriter writer = new CalibrationWriter(path.toString(), () -> null);
+    EditJournal journal = new EditJournal(writer, snapshot);
+
+    MappedShape added = shapes("b").get(0);
+    journal.setFaceMask(added, added.getMapping(0), 1, true);
+    writer.flush();
+
+    List<MappedShape> loaded = shapes("b");
+    assertEquals(0, EditJournal.replay(CalibrationWriter.journalPath(path), loaded));
+    assertFalse(loaded.get(0).getMapping(0).getFaceMask(1));
+  }
+
+  // The snapshot was saved when the model had 4 faces, and face 70 was masked after it gained
+  // more
+  @Test
+  void replaysMasksOfFacesAddedSinceTheSnapshot() throws IOException {
+    Path path = directory.resolve("calibration.bin");
+    List<MappedShape> shapes = new ArrayList<>();
+    List<Mapping> mappings = new ArrayList<>();
+    mappings.add(new Mapping(new PointCorrespondences(), new BitSet(), 100));
+    shapes.add(new MappedShape("a", mappings));
+    CalibrationWriter writer = new CalibrationWriter(path.toString(), () -> null);
+    EditJournal journal = new EditJournal(writer, shapes);
+
+    journal.setFaceMask(shapes.get(0), shapes.get(0).getMapping(0), 70, true);
+    writer.flush();
+
+    List<MappedShape> loaded = shapes("a");
+    assertEquals(1, EditJournal.replay(CalibrationWriter.journalPath(path), loaded));
+    Mapping mapping = loaded.get(0).getMapping(0);
+    assertTrue(mapping.getFaceMask(70));
+    assertEquals(71, mapping.getFaceCount());
+  }
+}
@@ -0,0 +1,33 @@
+package spacefiller.shapemapper;
+
+import org.junit.jupiter.api.Test;
+import spacefiller.shapemapper.FrameProfiler.Phase;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FrameProfilerTest {
+  @Test
+  void endingTheFrameEndsPhasesLeftOpen() {
+    FrameProfiler profiler = new FrameProfiler();
+
+    // As when an exception is thrown part way through a phase
+    profiler.begin(Phase.FRAME);
+    profiler.begin(Phase.PROJECTION_RENDER);
+    profiler.begin(Phase.PICKING);
+    profiler.end(Phase.FRAME);
+
+    assertEquals(1, profiler.getCount(Phase.FRAME));
+    assertEquals(1, profiler.getCount(Phase.PROJECTION_RENDER));
+    assertEquals(1, profiler.getCount(Phase.PICKING));
+
+    // Phases that were ended aren't recorded again
+    profiler.begin(Phase.FRAME);
+    profiler.begin(Phase.PICKING);
+    profiler.end(Phase.PICKING);
+    profiler.end(Phase.FRAME);
+
+    assertEquals(2, profiler.getCount(Phase.FRAME));
+    assertEquals(1, profiler.getCount(Phase.PROJECTION_RENDER));
+    assertEquals(2, profiler.getCount(Phase.PICKING));
+  }
+}
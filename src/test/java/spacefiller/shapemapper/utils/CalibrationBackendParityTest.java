@@ -0,0 +1,131 @@
+package spacefiller.shapemapper.utils;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_java;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Solves the vertices of every bundled model, seen by random cameras, with both backends and
+// checks the DLT backend fits the points as well as calibrateCamera does.
+class CalibrationBackendParityTest {
+  private static final int TRIALS = 300;
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 800;
+  // Standard deviation of the noise added to the projected points, in pixels
+  private static final double NOISE = 0.5;
+  // How much higher (in pixels) the DLT backend's RMS reprojection error may be than the OpenCV
+  // backend's, for any one camera
+  private static final double TOLERANCE = 0.05;
+
+  // The OpenCV natives need a desktop (GTK on Linux) to load, so without one there's nothing to
+  // compare against
+  @BeforeAll
+  static void loadOpenCV() {
+    try {
+      Loader.load(opencv_java.class);
+    } catch (Throwable e) {
+      assumeTrue(false, "OpenCV natives could not be loaded: " + e);
+    }
+  }
+
+  static Stream<Path> models() throws IOException {
+    return Files.list(Paths.get("models"))
+        .filter(path -> path.toString().endsWith(".obj"))
+        .sorted();
+  }
+
+  @ParameterizedTest
+  @MethodSource("models")
+  void dltFitsAsWellAsOpenCV(Path model) throws IOException {
+    double[] objectPoints = readVertices(model);
+    int n = objectPoints.length / 3;
+
+    CalibrationBackend dlt = new DLTCalibrationBackend();
+    CalibrationBackend openCV = new OpenCVCalibrationBackend();
+    Random random = new Random(1);
+
+    for (int trial = 0; trial < TRIALS; trial++) {
+      double f = 800 + random.nextDouble() * 1500;
+      double cx = WIDTH / 2.0 + random.nextGaussian() * 40;
+      double cy = HEIGHT / 2.0 + random.nextGaussian() * 40;
+      double[] rotation = DLTCalibrationBackend.rodrigues(
+          random.nextGaussian() * 0.5, random.nextGaussian() * 0.5, random.nextGaussian() * 0.5);
+      double[] translation = {
+          random.nextGaussian() * 50, random.nextGaussian() * 50, 600 + random.nextDouble() * 800 };
+      CameraSolution camera = new CameraSolution(f, f, cx, cy, rotation, translation);
+
+      double[] imagePoints = new double[n * 2];
+      for (int i = 0; i < n; i++) {
+        double[] projected = project(camera, objectPoints, i);
+        imagePoints[i * 2] = projected[0] + random.nextGaussian() * NOISE;
+        imagePoints[i * 2 + 1] = projected[1] + random.nextGaussian() * NOISE;
+      }
+
+      CameraSolution expected = openCV.solve(objectPoints, imagePoints, WIDTH, HEIGHT);
+      CameraSolution actual = dlt.solve(objectPoints, imagePoints, WIDTH, HEIGHT);
+      assertNotNull(actual, model + ", trial " + trial);
+
+      double expectedError = rmsError(expected, objectPoints, imagePoints);
+      double actualError = rmsError(actual, objectPoints, imagePoints);
+      assertTrue(
+          actualError <= expectedError + TOLERANCE,
+          String.format("%s, trial %d: DLT error %.4f, OpenCV error %.4f",
+              model, trial, actualError, expectedError));
+    }
+  }
+
+  private static double[] readVertices(Path model) throws IOException {
+    List<Double> coordinates = new ArrayList<>();
+    for (String line : Files.readAllLines(model)) {
+      if (line.startsWith("v ")) {
+        String[] parts = line.trim().split("\\s+");
+        for (int i = 1; i <= 3; i++) {
+          coordinates.add(Double.parseDouble(parts[i]));
+        }
+      }
+    }
+    return coordinates.stream().mapToDouble(Double::doubleValue).toArray();
+  }
+
+  private static double[] project(CameraSolution camera, double[] objectPoints, int i) {
+    double[] r = camera.rotation;
+    double[] t = camera.translation;
+    double x = objectPoints[i * 3];
+    double y = objectPoints[i * 3 + 1];
+    double z = objectPoints[i * 3 + 2];
+    double xc = r[0] * x + r[1] * y + r[2] * z + t[0];
+    double yc = r[3] * x + r[4] * y + r[5] * z + t[1];
+    double zc = r[6] * x + r[7] * y + r[8] * z + t[2];
+    return new double[] { camera.fx * xc / zc + camera.cx, camera.fy * yc / zc + camera.cy };
+  }
+
+  private static double rmsError(CameraSolution camera, double[] objectPoints, double[] imagePoints) {
+    if (camera == null) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    int n = objectPoints.length / 3;
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      double[] projected = project(camera, objectPoints, i);
+      double du = projected[0] - imagePoints[i * 2];
+      double dv = projected[1] - imagePoints[i * 2 + 1];
+      sum += du * du + dv * dv;
+    }
+    return Math.sqrt(sum / n);
+  }
+}
@@ -0,0 +1,107 @@
+package spacefiller.shapemapper.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Cache files are read when a sketch starts, so damaged ones must fail with an IOException
+// (which the sketch reports and ignores) rather than anything that would stop it.
+class CalibrationCacheTest {
+  // Offset of the first entry's point count: magic, version and entry count, then the
+  // backend name ("a", as a 2 byte length and 1 byte), width and height
+  private static final int POINT_COUNT_OFFSET = 3 * Integer.BYTES + 3 + 2 * Integer.BYTES;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void roundTripsEntries() throws IOException {
+    Path path = writeCache();
+
+    CalibrationCache cache = new CalibrationCache();
+    cache.read(path);
+
+    assertEquals(1, cache.size());
+    CameraSolution solution = cache.get(key());
+    assertNotNull(solution);
+    assertEquals(500, solution.fx);
+    assertArrayEquals(new double[] { 1, 2, 3 }, solution.translation);
+    assertEquals(7, solution.iterations);
+  }
+
+  @Test
+  void rejectsACorruptEntryCount() throws IOException {
+    Path path = writeCache();
+    overwriteInt(path, 2 * Integer.BYTES, Integer.MAX_VALUE);
+    assertThrows(IOException.class, () -> new CalibrationCache().read(path));
+
+    overwriteInt(path, 2 * Integer.BYTES, -1);
+    assertThrows(IOException.class, () -> new CalibrationCache().read(path));
+  }
+
+  @Test
+  void rejectsACorruptPointCount() throws IOException {
+    Path path = writeCache();
+    overwriteInt(path, POINT_COUNT_OFFSET, Integer.MAX_VALUE);
+    assertThrows(IOException.class, () -> new CalibrationCache().read(path));
+
+    // Negative counts used to throw NegativeArraySizeException
+    overwriteInt(path, POINT_COUNT_OFFSET, -4);
+    assertThrows(IOException.class, () -> new CalibrationCache().read(path));
+  }
+
+  @Test
+  void rejectsATruncatedFile() throws IOException {
+    Path path = writeCache();
+    byte[] bytes = Files.readAllBytes(path);
+    for (int length = 0; length < bytes.length; length++) {
+      Files.write(path, Arrays.copyOf(bytes, length));
+      assertThrows(IOException.class, () -> new CalibrationCache().read(path), "length " + length);
+    }
+  }
+
+  private Path writeCache() throws IOException {
+    CameraSolution solution = new CameraSolution(
+        500, 500, 400, 300, new double[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 }, new double[] { 1, 2, 3 });
+    solution.iterations = 7;
+
+    CalibrationCache cache = new CalibrationCache();
+    cache.put(key(), solution);
+    Path path = directory.resolve("cache.bin");
+    cache.write(path);
+    return path;
+  }
+
+  private static CalibrationCache.Key key() {
+    CalibrationBackend backend = new CalibrationBackend() {
+      @Override
+      public CameraSolution solve(double[] objectPoints, double[] imagePoints, int width, int height) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public String getCacheKey() {
+        return "a";
+      }
+    };
+    double[] objectPoints = { 0, 0, 0, 1, 0, 0, 0, 1, 0, 1, 1, 0 };
+    double[] imagePoints = { 10, 10, 90, 10, 10, 90, 90, 90 };
+    return CalibrationCache.key(backend, objectPoints, imagePoints, 800, 600);
+  }
+
+  private static void overwriteInt(Path path, int offset, int value) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+    ByteBuffer.wrap(bytes).putInt(offset, value);
+    Files.write(path, bytes);
+  }
+}
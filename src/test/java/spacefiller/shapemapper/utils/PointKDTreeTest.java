@@ -0,0 +1,71 @@
+package spacefiller.shapemapper.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs random puts, moves, removes and clears against both the tree and a plain map, checking
+// every nearest query against a linear scan of the map.
+class PointKDTreeTest {
+  private static final int OPERATIONS = 20000;
+  private static final int KEYS = 300;
+
+  @Test
+  void findsTheSameNearestPointAsALinearScan() {
+    Random random = new Random(3);
+    PointKDTree tree = new PointKDTree();
+    Map<Integer, float[]> points = new HashMap<>();
+
+    for (int step = 0; step < OPERATIONS; step++) {
+      int key = random.nextInt(KEYS);
+      int operation = random.nextInt(100);
+      if (operation < 60) {
+        float x = random.nextFloat() * 800;
+        float y = random.nextFloat() * 600;
+        tree.put(key, x, y);
+        points.put(key, new float[] { x, y });
+      } else if (operation < 99) {
+        tree.remove(key);
+        points.remove(key);
+      } else {
+        tree.clear();
+        points.clear();
+      }
+      assertEquals(points.size(), tree.size(), "step " + step);
+
+      float x = random.nextFloat() * 800;
+      float y = random.nextFloat() * 600;
+      float radius = random.nextFloat() * 60;
+
+      int expected = -1;
+      float expectedDistSq = radius * radius;
+      for (Map.Entry<Integer, float[]> entry : points.entrySet()) {
+        float distSq = distSq(entry.getValue(), x, y);
+        if (distSq < expectedDistSq) {
+          expectedDistSq = distSq;
+          expected = entry.getKey();
+        }
+      }
+
+      int actual = tree.nearest(x, y, radius);
+      if (expected < 0) {
+        assertEquals(-1, actual, "step " + step);
+      } else {
+        // Points at exactly the same distance may be returned in either order
+        assertTrue(actual >= 0, "step " + step);
+        assertEquals(expectedDistSq, distSq(points.get(actual), x, y), "step " + step);
+      }
+    }
+  }
+
+  private static float distSq(float[] point, float x, float y) {
+    float dx = point[0] - x;
+    float dy = point[1] - y;
+    return dx * dx + dy * dy;
+  }
+}
@@ -0,0 +1,110 @@
+package spacefiller.shapemapper.utils;
+
+import org.junit.jupiter.api.Test;
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PShape;
+import processing.core.PVector;
+import processing.opengl.PGraphics3D;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Checks the hierarchy picks the same face as the brute force GeometryUtils.pickFace, which
+// projects every face to the screen.
+class TriangleBVHTest {
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 600;
+  private static final int FACES = 3000;
+  private static final int QUERIES = 2000;
+  // The two disagree on points this close (in pixels) to the edge of a face, where the brute
+  // force inside test and the ray cast round differently
+  private static final float EDGE_TOLERANCE = 0.01f;
+
+  // Small random triangles scattered through a cube, so that many of them overlap on screen
+  // and the nearest has to be chosen by depth
+  private static PShape randomTriangles(PApplet sketch, Random random) {
+    PShape group = sketch.createShape(PShape.GROUP);
+    for (int i = 0; i < FACES; i++) {
+      float x = random.nextFloat() * 200 - 100;
+      float y = random.nextFloat() * 200 - 100;
+      float z = random.nextFloat() * 200 - 100;
+
+      PShape face = sketch.createShape();
+      face.beginShape(PConstants.TRIANGLES);
+      for (int v = 0; v < 3; v++) {
+        face.vertex(x + random.nextFloat() * 30, y + random.nextFloat() * 30, z + random.nextFloat() * 30);
+      }
+      face.endShape();
+      group.addChild(face);
+    }
+    return group;
+  }
+
+  @Test
+  void picksTheSameFaceAsBruteForce() {
+    PApplet sketch = new PApplet();
+    PGraphics3D graphics = new PGraphics3D();
+    graphics.setParent(sketch);
+    graphics.setPrimary(true);
+    graphics.setSize(WIDTH, HEIGHT);
+    sketch.g = graphics;
+
+    Random random = new Random(1);
+    PShape shape = randomTriangles(sketch, random);
+    TriangleBVH hierarchy = new TriangleBVH(MeshData.of(sketch, shape));
+    assertEquals(FACES, hierarchy.getFaceCount());
+
+    int hits = 0;
+    for (float angle : new float[] { 0, 0.3f, 1.2f, 2.5f }) {
+      graphics.perspective();
+      graphics.camera(0, 0, 500, 0, 0, 0, 0, 1, 0);
+      graphics.rotateY(angle);
+      graphics.rotateX(angle / 2);
+
+      for (int q = 0; q < QUERIES; q++) {
+        // Aim at the middle of the screen, where the faces are
+        PVector point = new PVector(
+            WIDTH / 2f + (random.nextFloat() - 0.5f) * 300,
+            HEIGHT / 2f + (random.nextFloat() - 0.5f) * 300);
+        int expected = GeometryUtils.pickFace(shape, point, graphics);
+        int actual = hierarchy.pick(point, graphics);
+        if (actual != expected) {
+          String message = "angle " + angle + ", query " + q + ": expected " + expected + " but was " + actual;
+          assertTrue(onEdge(shape, expected, point, graphics) || onEdge(shape, actual, point, graphics), message);
+        }
+        if (expected >= 0) {
+          hits++;
+        }
+      }
+    }
+
+    // Make sure the queries actually landed on faces
+    assertTrue(hits > QUERIES, "only " + hits + " queries hit a face");
+  }
+
+  private static boolean onEdge(PShape shape, int faceIndex, PVector point, PGraphics3D graphics) {
+    if (faceIndex < 0) {
+      return false;
+    }
+
+    PShape face = shape.getChild(faceIndex);
+    PVector[] corners = new PVector[3];
+    for (int v = 0; v < 3; v++) {
+      corners[v] = GeometryUtils.worldToScreen(
+          new PVector(face.getVertexX(v), face.getVertexY(v), face.getVertexZ(v)), graphics);
+      corners[v].z = 0;
+    }
+    for (int v = 0; v < 3; v++) {
+      PVector a = corners[v];
+      PVector edge = PVector.sub(corners[(v + 1) % 3], a);
+      float t = PApplet.constrain(PVector.sub(point, a).dot(edge) / edge.magSq(), 0, 1);
+      if (PVector.add(a, edge.mult(t)).dist(point) < EDGE_TOLERANCE) {
+        return true;
+      }
+    }
+    return false;
+  }
+}